@@ -0,0 +1,635 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.dataliberation;
+
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.EpisodesQuery;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.SeasonsQuery;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.ShowsQuery;
+import com.battlelancer.seriesguide.dataliberation.model.Episode;
+import com.battlelancer.seriesguide.dataliberation.model.List;
+import com.battlelancer.seriesguide.dataliberation.model.ListItem;
+import com.battlelancer.seriesguide.dataliberation.model.Season;
+import com.battlelancer.seriesguide.dataliberation.model.Show;
+import com.battlelancer.seriesguide.util.EpisodeTools;
+
+import android.database.Cursor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary backup of shows and lists, several times smaller and faster to write and read
+ * than the JSON export. Used for auto backups, the JSON files remain the format to exchange data
+ * with other apps.
+ *
+ * <p> A backup starts with the magic bytes "SGBK", then the format version and flags as varints.
+ * If {@link #FLAG_DEFLATED} is set, everything after this header is deflated. Next is a sequence
+ * of records, each made up of its type and payload length as varints and the payload. Seasons
+ * belong to the show before them, episodes to the season before them, list items to the list
+ * before them. A record of type {@link #RECORD_END} ends the backup. Readers skip records of
+ * unknown type and payload bytes after the fields they know, so later versions can add fields
+ * to the end of a record.
+ *
+ * <p> Integers are written as varints, values which may be negative zigzag-encoded first. Strings
+ * are written as their UTF-8 byte length plus one followed by the bytes, a length of 0 means
+ * null. Doubles are written as their 8 IEEE 754 bytes.
+ */
+public class BinaryBackup {
+
+    public static final int VERSION = 1;
+
+    public static final int FLAG_DEFLATED = 1;
+
+    static final int RECORD_END = 0;
+    static final int RECORD_SHOW = 1;
+    static final int RECORD_SEASON = 2;
+    static final int RECORD_EPISODE = 3;
+    static final int RECORD_LIST = 4;
+    static final int RECORD_LIST_ITEM = 5;
+
+    private static final byte[] MAGIC = new byte[] {
+            'S', 'G', 'B', 'K'
+    };
+
+    private static final String UTF_8 = "UTF-8";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // show flags
+    private static final int SHOW_FAVORITE = 1;
+    private static final int SHOW_HIDDEN = 1 << 1;
+    private static final int SHOW_SYNC = 1 << 2;
+    private static final int SHOW_FULL_DUMP = 1 << 3;
+
+    // episode flags
+    private static final int EPISODE_WATCHED = 1;
+    private static final int EPISODE_SKIPPED = 1 << 1;
+    private static final int EPISODE_COLLECTED = 1 << 2;
+    private static final int EPISODE_FULL_DUMP = 1 << 3;
+
+    /* This class is never initialized */
+    private BinaryBackup() {
+    }
+
+    /**
+     * Writes a backup. Write all shows, then all lists, then {@link #close()} the writer.
+     */
+    public static class Writer implements JsonExportTask.ShowsWriter {
+
+        private final OutputStream mOut;
+
+        private final Deflater mDeflater;
+
+        private final Record mRecord = new Record();
+
+        private final boolean mIsFullDump;
+
+        /**
+         * @param isDeflating Whether to compress records, makes the backup several times smaller.
+         * @param isFullDump  Whether to also write meta-data like descriptions, ratings, actors,
+         *                    etc.
+         */
+        public Writer(OutputStream out, boolean isDeflating, boolean isFullDump)
+                throws IOException {
+            mIsFullDump = isFullDump;
+
+            out = new BufferedOutputStream(out, BUFFER_SIZE);
+            out.write(MAGIC);
+            writeVarint(out, VERSION);
+            writeVarint(out, isDeflating ? FLAG_DEFLATED : 0);
+
+            if (isDeflating) {
+                // favor speed, auto backups are written often
+                mDeflater = new Deflater(Deflater.BEST_SPEED);
+                out = new DeflaterOutputStream(out, mDeflater, BUFFER_SIZE);
+            } else {
+                mDeflater = null;
+            }
+            mOut = out;
+        }
+
+        @Override
+        public void beginShow(Cursor show) throws IOException {
+            Record record = mRecord;
+            record.reset();
+            record.writeVarint(show.getInt(ShowsQuery.ID));
+            record.writeString(show.getString(ShowsQuery.TITLE));
+            int flags = 0;
+            if (show.getInt(ShowsQuery.FAVORITE) == 1) {
+                flags |= SHOW_FAVORITE;
+            }
+            if (show.getInt(ShowsQuery.HIDDEN) == 1) {
+                flags |= SHOW_HIDDEN;
+            }
+            if (show.getInt(ShowsQuery.SYNC) == 1) {
+                flags |= SHOW_SYNC;
+            }
+            if (mIsFullDump) {
+                flags |= SHOW_FULL_DUMP;
+            }
+            record.writeVarint(flags);
+            record.writeSignedVarint(show.getLong(ShowsQuery.AIRTIME));
+            record.writeString(show.getString(ShowsQuery.AIRDAY));
+            record.writeString(show.getString(ShowsQuery.GETGLUEID));
+            record.writeSignedVarint(show.getInt(ShowsQuery.LASTWATCHEDID));
+            record.writeString(show.getString(ShowsQuery.POSTER));
+            record.writeString(show.getString(ShowsQuery.CONTENTRATING));
+            record.writeString(JsonExportTask.toShowStatusExport(
+                    show.getInt(ShowsQuery.STATUS)));
+            record.writeSignedVarint(show.getInt(ShowsQuery.RUNTIME));
+            record.writeString(show.getString(ShowsQuery.NETWORK));
+            record.writeString(show.getString(ShowsQuery.IMDBID));
+            record.writeString(show.getString(ShowsQuery.FIRSTAIRED));
+            if (mIsFullDump) {
+                record.writeString(show.getString(ShowsQuery.OVERVIEW));
+                record.writeDouble(show.getDouble(ShowsQuery.RATING));
+                record.writeString(show.getString(ShowsQuery.GENRES));
+                record.writeString(show.getString(ShowsQuery.ACTORS));
+                record.writeSignedVarint(show.getLong(ShowsQuery.LAST_UPDATED));
+                record.writeSignedVarint(show.getLong(ShowsQuery.LAST_EDITED));
+            }
+            writeRecord(RECORD_SHOW);
+        }
+
+        @Override
+        public void beginSeason(Cursor season) throws IOException {
+            Record record = mRecord;
+            record.reset();
+            record.writeVarint(season.getInt(SeasonsQuery.ID));
+            record.writeSignedVarint(season.getInt(SeasonsQuery.COMBINED));
+            writeRecord(RECORD_SEASON);
+        }
+
+        @Override
+        public void writeEpisode(Cursor episode) throws IOException {
+            Record record = mRecord;
+            record.reset();
+            record.writeVarint(episode.getInt(EpisodesQuery.ID));
+            record.writeSignedVarint(episode.getInt(EpisodesQuery.NUMBER));
+            record.writeSignedVarint(episode.getInt(EpisodesQuery.NUMBER_ABSOLUTE));
+            record.writeString(episode.getString(EpisodesQuery.TITLE));
+            record.writeSignedVarint(episode.getLong(EpisodesQuery.FIRSTAIRED));
+            int episodeFlag = episode.getInt(EpisodesQuery.WATCHED);
+            int flags = 0;
+            if (EpisodeTools.isWatched(episodeFlag)) {
+                flags |= EPISODE_WATCHED;
+            }
+            if (EpisodeTools.isSkipped(episodeFlag)) {
+                flags |= EPISODE_SKIPPED;
+            }
+            if (episode.getInt(EpisodesQuery.COLLECTED) == 1) {
+                flags |= EPISODE_COLLECTED;
+            }
+            if (mIsFullDump) {
+                flags |= EPISODE_FULL_DUMP;
+            }
+            record.writeVarint(flags);
+            record.writeString(episode.getString(EpisodesQuery.IMDBID));
+            record.writeDouble(episode.getDouble(EpisodesQuery.NUMBER_DVD));
+            if (mIsFullDump) {
+                record.writeString(episode.getString(EpisodesQuery.OVERVIEW));
+                record.writeString(episode.getString(EpisodesQuery.IMAGE));
+                record.writeString(episode.getString(EpisodesQuery.WRITERS));
+                record.writeString(episode.getString(EpisodesQuery.GUESTSTARS));
+                record.writeString(episode.getString(EpisodesQuery.DIRECTORS));
+                record.writeDouble(episode.getDouble(EpisodesQuery.RATING));
+                record.writeSignedVarint(episode.getLong(EpisodesQuery.LAST_EDITED));
+            }
+            writeRecord(RECORD_EPISODE);
+        }
+
+        @Override
+        public void endSeason() {
+        }
+
+        @Override
+        public void endShow() {
+        }
+
+        public void writeList(List list) throws IOException {
+            Record record = mRecord;
+            record.reset();
+            record.writeString(list.listId);
+            record.writeString(list.name);
+            writeRecord(RECORD_LIST);
+
+            if (list.items == null) {
+                return;
+            }
+            for (ListItem item : list.items) {
+                record.reset();
+                record.writeString(item.listItemId);
+                record.writeVarint(item.tvdbId);
+                record.writeString(item.type);
+                writeRecord(RECORD_LIST_ITEM);
+            }
+        }
+
+        /**
+         * Closes the underlying stream without ending the backup, so readers reject it. Use
+         * instead of {@link #close()} if writing failed or was cancelled.
+         */
+        public void abort() {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            } finally {
+                if (mDeflater != null) {
+                    mDeflater.end();
+                }
+            }
+        }
+
+        /**
+         * Ends the backup and closes the underlying stream.
+         */
+        public void close() throws IOException {
+            mRecord.reset();
+            writeRecord(RECORD_END);
+            try {
+                mOut.close();
+            } finally {
+                if (mDeflater != null) {
+                    mDeflater.end();
+                }
+            }
+        }
+
+        private void writeRecord(int type) throws IOException {
+            writeVarint(mOut, type);
+            writeVarint(mOut, mRecord.size());
+            mRecord.writeTo(mOut);
+        }
+    }
+
+    /**
+     * Reads a backup written by {@link Writer} into the models also used for JSON backups.
+     */
+    public static class Reader {
+
+        /**
+         * Receives each show with all its seasons and episodes and each list with all its items.
+         */
+        public interface Callback {
+            void onShow(Show show) throws IOException;
+
+            void onList(List list) throws IOException;
+        }
+
+        private final InputStream mIn;
+
+        private final Inflater mInflater;
+
+        private byte[] mBuffer = new byte[256];
+
+        public Reader(InputStream in) throws IOException {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+
+            byte[] magic = new byte[MAGIC.length];
+            readFully(in, magic, magic.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a backup file");
+            }
+            int version = (int) readVarint(in);
+            if (version > VERSION) {
+                throw new IOException("Unsupported backup version " + version);
+            }
+            int flags = (int) readVarint(in);
+
+            if ((flags & FLAG_DEFLATED) != 0) {
+                mInflater = new Inflater();
+                in = new InflaterInputStream(in, mInflater, BUFFER_SIZE);
+            } else {
+                mInflater = null;
+            }
+            mIn = in;
+        }
+
+        /**
+         * Reads the whole backup. Throws if it ends before its end record, e.g. because writing
+         * it was interrupted.
+         */
+        public void read(Callback callback) throws IOException {
+            Show show = null;
+            Season season = null;
+            List list = null;
+
+            while (true) {
+                int type = (int) readVarint(mIn);
+                int length = (int) readVarint(mIn);
+                if (type == RECORD_END) {
+                    break;
+                }
+                if (length < 0) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                if (mBuffer.length < length) {
+                    mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+                }
+                readFully(mIn, mBuffer, length);
+                Payload payload = new Payload(mBuffer, length);
+
+                switch (type) {
+                    case RECORD_SHOW:
+                        deliver(callback, show, list);
+                        list = null;
+                        season = null;
+                        show = readShow(payload);
+                        break;
+                    case RECORD_SEASON:
+                        if (show == null) {
+                            throw new IOException("Season without show");
+                        }
+                        season = readSeason(payload);
+                        show.seasons.add(season);
+                        break;
+                    case RECORD_EPISODE:
+                        if (season == null) {
+                            throw new IOException("Episode without season");
+                        }
+                        season.episodes.add(readEpisode(payload));
+                        break;
+                    case RECORD_LIST:
+                        deliver(callback, show, list);
+                        show = null;
+                        season = null;
+                        list = readList(payload);
+                        break;
+                    case RECORD_LIST_ITEM:
+                        if (list == null) {
+                            throw new IOException("List item without list");
+                        }
+                        list.items.add(readListItem(payload));
+                        break;
+                    default:
+                        // written by a later version, skip
+                        break;
+                }
+            }
+
+            deliver(callback, show, list);
+        }
+
+        public void close() throws IOException {
+            try {
+                mIn.close();
+            } finally {
+                if (mInflater != null) {
+                    mInflater.end();
+                }
+            }
+        }
+
+        private static void deliver(Callback callback, Show show, List list) throws IOException {
+            if (show != null) {
+                callback.onShow(show);
+            }
+            if (list != null) {
+                callback.onList(list);
+            }
+        }
+
+        private static Show readShow(Payload payload) throws IOException {
+            Show show = new Show();
+            show.tvdbId = (int) payload.readVarint();
+            show.title = payload.readString();
+            int flags = (int) payload.readVarint();
+            show.favorite = (flags & SHOW_FAVORITE) != 0;
+            show.hidden = (flags & SHOW_HIDDEN) != 0;
+            show.sync = (flags & SHOW_SYNC) != 0;
+            show.airtime = payload.readSignedVarint();
+            show.airday = payload.readString();
+            show.checkInGetGlueId = payload.readString();
+            show.lastWatchedEpisode = (int) payload.readSignedVarint();
+            show.poster = payload.readString();
+            show.contentRating = payload.readString();
+            show.status = payload.readString();
+            show.runtime = (int) payload.readSignedVarint();
+            show.network = payload.readString();
+            show.imdbId = payload.readString();
+            show.firstAired = payload.readString();
+            if ((flags & SHOW_FULL_DUMP) != 0) {
+                show.overview = payload.readString();
+                show.rating = payload.readDouble();
+                show.genres = payload.readString();
+                show.actors = payload.readString();
+                show.lastUpdated = payload.readSignedVarint();
+                show.lastEdited = payload.readSignedVarint();
+            }
+            show.seasons = new ArrayList<>();
+            return show;
+        }
+
+        private static Season readSeason(Payload payload) throws IOException {
+            Season season = new Season();
+            season.tvdbId = (int) payload.readVarint();
+            season.season = (int) payload.readSignedVarint();
+            season.episodes = new ArrayList<>();
+            return season;
+        }
+
+        private static Episode readEpisode(Payload payload) throws IOException {
+            Episode episode = new Episode();
+            episode.tvdbId = (int) payload.readVarint();
+            episode.episode = (int) payload.readSignedVarint();
+            episode.episodeAbsolute = (int) payload.readSignedVarint();
+            episode.title = payload.readString();
+            episode.firstAired = payload.readSignedVarint();
+            int flags = (int) payload.readVarint();
+            episode.watched = (flags & EPISODE_WATCHED) != 0;
+            episode.skipped = (flags & EPISODE_SKIPPED) != 0;
+            episode.collected = (flags & EPISODE_COLLECTED) != 0;
+            episode.imdbId = payload.readString();
+            episode.episodeDvd = payload.readDouble();
+            if ((flags & EPISODE_FULL_DUMP) != 0) {
+                episode.overview = payload.readString();
+                episode.image = payload.readString();
+                episode.writers = payload.readString();
+                episode.gueststars = payload.readString();
+                episode.directors = payload.readString();
+                episode.rating = payload.readDouble();
+                episode.lastEdited = payload.readSignedVarint();
+            }
+            return episode;
+        }
+
+        private static List readList(Payload payload) throws IOException {
+            List list = new List();
+            list.listId = payload.readString();
+            list.name = payload.readString();
+            list.items = new ArrayList<>();
+            return list;
+        }
+
+        private static ListItem readListItem(Payload payload) throws IOException {
+            ListItem item = new ListItem();
+            item.listItemId = payload.readString();
+            item.tvdbId = (int) payload.readVarint();
+            item.type = payload.readString();
+            return item;
+        }
+    }
+
+    /**
+     * Buffers the payload of a record, so its length can be written before it.
+     */
+    private static class Record extends ByteArrayOutputStream {
+
+        Record() {
+            super(256);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeSignedVarint(long value) {
+            // zigzag, so small negative values stay short
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                write((int) (bits >>> (i * 8)));
+            }
+        }
+    }
+
+    /**
+     * Reads the fields of a record payload.
+     */
+    private static class Payload {
+
+        private final byte[] mData;
+
+        private final int mLength;
+
+        private int mPosition;
+
+        Payload(byte[] data, int length) {
+            mData = data;
+            mLength = length;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readSignedVarint() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() throws IOException {
+            int length = (int) readVarint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > mLength - mPosition) {
+                throw new IOException("Truncated record");
+            }
+            String value = new String(mData, mPosition, length, UTF_8);
+            mPosition += length;
+            return value;
+        }
+
+        double readDouble() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits |= (long) readByte() << (i * 8);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        private int readByte() throws IOException {
+            if (mPosition >= mLength) {
+                throw new IOException("Truncated record");
+            }
+            return mData[mPosition++] & 0xFF;
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Backup ended unexpectedly");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buffer, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Backup ended unexpectedly");
+            }
+            read += count;
+        }
+    }
+
+}
@@ -22,14 +22,13 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.widget.Toast;
 
-import com.battlelancer.seriesguide.dataliberation.model.Episode;
 import com.battlelancer.seriesguide.dataliberation.model.List;
 import com.battlelancer.seriesguide.dataliberation.model.ListItem;
-import com.battlelancer.seriesguide.dataliberation.model.Season;
-import com.battlelancer.seriesguide.dataliberation.model.Show;
 import com.battlelancer.seriesguide.provider.SeriesContract;
 import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesContract.ListItemTypes;
@@ -64,6 +63,8 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
     public static final String EXPORT_FOLDER_AUTO = "SeriesGuide" + File.separator + "AutoBackup";
     public static final String EXPORT_JSON_FILE_SHOWS = "sg-shows-export.json";
     public static final String EXPORT_JSON_FILE_LISTS = "sg-lists-export.json";
+    public static final String EXPORT_BINARY_FILE = "sg-backup.bin";
+    private static final String TEMP_SUFFIX = ".tmp";
 
     private static final String TAG = "Json Export";
     private static final int SUCCESS = 1;
@@ -86,6 +87,23 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         String EPISODE = "episode";
     }
 
+    /**
+     * Receives shows in order, each followed by its seasons, each season followed by its
+     * episodes. The cursors are positioned on the row to write and have the columns of {@link
+     * ShowsQuery}, {@link SeasonsQuery} and {@link EpisodesQuery}.
+     */
+    interface ShowsWriter {
+        void beginShow(Cursor show) throws IOException;
+
+        void beginSeason(Cursor season) throws IOException;
+
+        void writeEpisode(Cursor episode) throws IOException;
+
+        void endSeason() throws IOException;
+
+        void endShow() throws IOException;
+    }
+
     private Context mContext;
     private OnTaskProgressListener mProgressListener;
     private OnTaskFinishedListener mListener;
@@ -142,24 +160,57 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
             return SUCCESS;
         }
 
+        // seasons and episodes of all shows, in the same show order
+        final Cursor seasons = mContext.getContentResolver().query(Seasons.CONTENT_URI,
+                SeasonsQuery.PROJECTION, null, null, SeasonsQuery.SORT);
+        final Cursor episodes = mContext.getContentResolver().query(Episodes.CONTENT_URI,
+                mIsFullDump ? EpisodesQuery.PROJECTION_FULL : EpisodesQuery.PROJECTION, null,
+                null, EpisodesQuery.SORT);
+        if (seasons == null || episodes == null) {
+            shows.close();
+            if (seasons != null) {
+                seasons.close();
+            }
+            if (episodes != null) {
+                episodes.close();
+            }
+            return ERROR;
+        }
+
         publishProgress(shows.getCount(), 0);
 
+        if (mIsAutoBackupMode) {
+            // auto backups also get the compact format, which auto restore prefers, it also
+            // holds lists
+            int result = exportBinary(new File(path, EXPORT_BINARY_FILE), shows, seasons,
+                    episodes);
+            if (result != SUCCESS) {
+                shows.close();
+                seasons.close();
+                episodes.close();
+                return result;
+            }
+
+            // write the JSON files from the same cursors
+            shows.moveToPosition(-1);
+            publishProgress(shows.getCount(), 0);
+        }
+
         File backup = new File(path, EXPORT_JSON_FILE_SHOWS);
         try {
             OutputStream out = new FileOutputStream(backup);
 
-            writeJsonStreamShows(out, shows);
-        } catch (JsonIOException e) {
-            // Only catch IO exception as we want to know if exporting fails due
-            // to a JsonSyntaxException
-            Utils.trackExceptionAndLog(mContext, TAG, e);
-            return ERROR;
+            JsonShowsWriter writer = new JsonShowsWriter(out, mIsFullDump);
+            writeShows(writer, shows, seasons, episodes);
+            writer.close();
         } catch (IOException e) {
             // Backup failed
             Utils.trackExceptionAndLog(mContext, TAG, e);
             return ERROR;
         } finally {
             shows.close();
+            seasons.close();
+            episodes.close();
         }
 
         if (isCancelled()) {
@@ -177,6 +228,7 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         if (lists.getCount() == 0) {
             // There are no lists? Done.
             lists.close();
+            onBackupComplete();
             return SUCCESS;
         }
 
@@ -199,16 +251,70 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
             lists.close();
         }
 
-        if (mIsAutoBackupMode) {
-            // store current time = last backup time
-            final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-            prefs.edit().putLong(AdvancedSettings.KEY_LASTBACKUP, System.currentTimeMillis())
-                    .commit();
+        onBackupComplete();
+        return SUCCESS;
+    }
+
+    /**
+     * Writes shows and lists into a single {@link BinaryBackup}. Writes to a temporary file first
+     * and only replaces the given file once the backup is complete, so a failed or cancelled
+     * backup keeps the last one. Leaves the given cursors open.
+     */
+    private int exportBinary(File backup, Cursor shows, Cursor seasons, Cursor episodes) {
+        final File tempBackup = new File(backup.getPath() + TEMP_SUFFIX);
+        final Cursor lists = mContext.getContentResolver().query(SeriesContract.Lists.CONTENT_URI,
+                ListsQuery.PROJECTION, null, null, ListsQuery.SORT);
+        BinaryBackup.Writer writer = null;
+        try {
+            if (lists == null) {
+                return ERROR;
+            }
+
+            writer = new BinaryBackup.Writer(new FileOutputStream(tempBackup), true, mIsFullDump);
+            writeShows(writer, shows, seasons, episodes);
+            while (lists.moveToNext() && !isCancelled()) {
+                writer.writeList(buildList(lists));
+            }
+            if (isCancelled()) {
+                return ERROR;
+            }
+
+            // only a complete backup gets the end record
+            BinaryBackup.Writer completeWriter = writer;
+            writer = null;
+            completeWriter.close();
+            // a rename within the same directory is atomic
+            if (!tempBackup.renameTo(backup)) {
+                throw new IOException("Could not replace " + backup + " with " + tempBackup);
+            }
+        } catch (IOException e) {
+            // Backup failed
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+            return ERROR;
+        } finally {
+            if (writer != null) {
+                writer.abort();
+            }
+            // gone if it replaced the backup
+            tempBackup.delete();
+            if (lists != null) {
+                lists.close();
+            }
         }
 
         return SUCCESS;
     }
 
+    private void onBackupComplete() {
+        if (!mIsAutoBackupMode) {
+            return;
+        }
+        // store current time = last backup time
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putLong(AdvancedSettings.KEY_LASTBACKUP, System.currentTimeMillis())
+                .commit();
+    }
+
     @Override
     protected void onProgressUpdate(Integer... values) {
         if (mProgressListener != null) {
@@ -239,130 +345,197 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         }
     }
 
-    private void writeJsonStreamShows(OutputStream out, Cursor shows) throws IOException {
+    /**
+     * Writes all shows with their seasons and episodes. Walks the seasons and episodes cursors
+     * along with the shows cursor, so all need to be sorted by show id, then season number.
+     */
+    private void writeShows(ShowsWriter writer, Cursor shows, Cursor seasons, Cursor episodes)
+            throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
         int numTotal = shows.getCount();
         int numExported = 0;
+        int numRows = 0;
 
-        Gson gson = new Gson();
-        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
-        writer.setIndent("  ");
-        writer.beginArray();
-
+        boolean hasSeason = seasons.moveToFirst();
+        boolean hasEpisode = episodes.moveToFirst();
         while (shows.moveToNext()) {
             if (isCancelled()) {
                 break;
             }
 
-            Show show = new Show();
-            show.tvdbId = shows.getInt(ShowsQuery.ID);
-            show.title = shows.getString(ShowsQuery.TITLE);
-            show.favorite = shows.getInt(ShowsQuery.FAVORITE) == 1;
-            show.hidden = shows.getInt(ShowsQuery.HIDDEN) == 1;
-            show.airtime = shows.getLong(ShowsQuery.AIRTIME);
-            show.airday = shows.getString(ShowsQuery.AIRDAY);
-            show.checkInGetGlueId = shows.getString(ShowsQuery.GETGLUEID);
-            show.lastWatchedEpisode = shows.getInt(ShowsQuery.LASTWATCHEDID);
-            show.poster = shows.getString(ShowsQuery.POSTER);
-            show.contentRating = shows.getString(ShowsQuery.CONTENTRATING);
-            switch (shows.getInt(ShowsQuery.STATUS)) {
-                case ShowStatus.CONTINUING:
-                    show.status = ShowStatusExport.CONTINUING;
-                    break;
-                case ShowStatus.ENDED:
-                    show.status = ShowStatusExport.ENDED;
-                    break;
-                default:
-                    show.status = ShowStatusExport.UNKNOWN;
-                    break;
+            int showTvdbId = shows.getInt(ShowsQuery.ID);
+            writer.beginShow(shows);
+
+            // skip seasons of shows which do not exist
+            while (hasSeason && seasons.getInt(SeasonsQuery.REF_SHOW_ID) < showTvdbId) {
+                hasSeason = seasons.moveToNext();
             }
-            show.runtime = shows.getInt(ShowsQuery.RUNTIME);
-            show.network = shows.getString(ShowsQuery.NETWORK);
-            show.imdbId = shows.getString(ShowsQuery.IMDBID);
-            show.firstAired = shows.getString(ShowsQuery.FIRSTAIRED);
-            if (mIsFullDump) {
-                show.overview = shows.getString(ShowsQuery.OVERVIEW);
-                show.rating = shows.getDouble(ShowsQuery.RATING);
-                show.genres = shows.getString(ShowsQuery.GENRES);
-                show.actors = shows.getString(ShowsQuery.ACTORS);
-                show.lastUpdated = shows.getLong(ShowsQuery.LAST_UPDATED);
-                show.lastEdited = shows.getLong(ShowsQuery.LAST_EDITED);
+            while (hasSeason && seasons.getInt(SeasonsQuery.REF_SHOW_ID) == showTvdbId) {
+                int seasonNumber = seasons.getInt(SeasonsQuery.COMBINED);
+                writer.beginSeason(seasons);
+
+                // skip episodes without season
+                while (hasEpisode && compare(episodes.getInt(EpisodesQuery.REF_SHOW_ID),
+                        episodes.getInt(EpisodesQuery.SEASON), showTvdbId, seasonNumber) < 0) {
+                    hasEpisode = episodes.moveToNext();
+                }
+                while (hasEpisode
+                        && episodes.getInt(EpisodesQuery.REF_SHOW_ID) == showTvdbId
+                        && episodes.getInt(EpisodesQuery.SEASON) == seasonNumber) {
+                    writer.writeEpisode(episodes);
+                    numRows++;
+                    hasEpisode = episodes.moveToNext();
+                }
+
+                writer.endSeason();
+                numRows++;
+                hasSeason = seasons.moveToNext();
             }
 
-            addSeasons(show);
-
-            gson.toJson(show, Show.class, writer);
+            writer.endShow();
+            numRows++;
 
             publishProgress(numTotal, ++numExported);
         }
 
-        writer.endArray();
-        writer.close();
+        long duration = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+        Log.d(TAG, "Exported " + numRows + " rows in " + duration + " ms ("
+                + numRows * 1000 / duration + " rows/s)");
     }
 
-    private void addSeasons(Show show) {
-        show.seasons = Lists.newArrayList();
-        final Cursor seasonsCursor = mContext.getContentResolver().query(
-                Seasons.buildSeasonsOfShowUri(String.valueOf(show.tvdbId)),
-                new String[] {
-                        Seasons._ID,
-                        Seasons.COMBINED
-                }, null, null, null);
-
-        if (seasonsCursor == null) {
-            return;
-        }
+    /**
+     * Writes shows as a JSON array, in the format the {@link
+     * com.battlelancer.seriesguide.dataliberation.model.Show} model is serialized to.
+     */
+    static class JsonShowsWriter implements ShowsWriter {
 
-        while (seasonsCursor.moveToNext()) {
-            Season season = new Season();
-            season.tvdbId = seasonsCursor.getInt(0);
-            season.season = seasonsCursor.getInt(1);
+        private final JsonWriter mWriter;
 
-            addEpisodes(season);
+        private final boolean mIsFullDump;
 
-            show.seasons.add(season);
+        JsonShowsWriter(OutputStream out, boolean isFullDump) throws IOException {
+            mWriter = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            mWriter.setIndent("  ");
+            mWriter.beginArray();
+            mIsFullDump = isFullDump;
         }
 
-        seasonsCursor.close();
-    }
+        @Override
+        public void beginShow(Cursor shows) throws IOException {
+            JsonWriter writer = mWriter;
+            writer.beginObject();
+            writer.name("tvdb_id").value(shows.getInt(ShowsQuery.ID));
+            writeString(writer, "title", shows.getString(ShowsQuery.TITLE));
+            writer.name("favorite").value(shows.getInt(ShowsQuery.FAVORITE) == 1);
+            writer.name("hidden").value(shows.getInt(ShowsQuery.HIDDEN) == 1);
+            writer.name("sync").value(shows.getInt(ShowsQuery.SYNC) == 1);
+            writer.name("airtime").value(shows.getLong(ShowsQuery.AIRTIME));
+            writeString(writer, "airday", shows.getString(ShowsQuery.AIRDAY));
+            writeString(writer, "check_in_getglue_id", shows.getString(ShowsQuery.GETGLUEID));
+            writer.name("last_watched_episode").value(shows.getInt(ShowsQuery.LASTWATCHEDID));
+            writeString(writer, "poster", shows.getString(ShowsQuery.POSTER));
+            writeString(writer, "content_rating", shows.getString(ShowsQuery.CONTENTRATING));
+            writer.name("status").value(toShowStatusExport(shows.getInt(ShowsQuery.STATUS)));
+            writer.name("runtime").value(shows.getInt(ShowsQuery.RUNTIME));
+            writeString(writer, "network", shows.getString(ShowsQuery.NETWORK));
+            writeString(writer, "imdb_id", shows.getString(ShowsQuery.IMDBID));
+            writeString(writer, "first_aired", shows.getString(ShowsQuery.FIRSTAIRED));
+            if (mIsFullDump) {
+                writeString(writer, "overview", shows.getString(ShowsQuery.OVERVIEW));
+                writer.name("rating").value(shows.getDouble(ShowsQuery.RATING));
+                writeString(writer, "genres", shows.getString(ShowsQuery.GENRES));
+                writeString(writer, "actors", shows.getString(ShowsQuery.ACTORS));
+                writer.name("last_updated").value(shows.getLong(ShowsQuery.LAST_UPDATED));
+                writer.name("last_edited").value(shows.getLong(ShowsQuery.LAST_EDITED));
+            }
+
+            writer.name("seasons");
+            writer.beginArray();
+        }
 
-    private void addEpisodes(Season season) {
-        season.episodes = Lists.newArrayList();
-        final Cursor episodesCursor = mContext.getContentResolver().query(
-                Episodes.buildEpisodesOfSeasonUri(String.valueOf(season.tvdbId)),
-                mIsFullDump ? EpisodesQuery.PROJECTION_FULL : EpisodesQuery.PROJECTION, null, null,
-                EpisodesQuery.SORT);
+        @Override
+        public void beginSeason(Cursor seasons) throws IOException {
+            mWriter.beginObject();
+            mWriter.name("tvdb_id").value(seasons.getInt(SeasonsQuery.ID));
+            mWriter.name("season").value(seasons.getInt(SeasonsQuery.COMBINED));
 
-        if (episodesCursor == null) {
-            return;
+            mWriter.name("episodes");
+            mWriter.beginArray();
         }
 
-        while (episodesCursor.moveToNext()) {
-            Episode episode = new Episode();
-            episode.tvdbId = episodesCursor.getInt(EpisodesQuery.ID);
-            episode.episode = episodesCursor.getInt(EpisodesQuery.NUMBER);
-            episode.episodeAbsolute = episodesCursor.getInt(EpisodesQuery.NUMBER_ABSOLUTE);
-            episode.episodeDvd = episodesCursor.getDouble(EpisodesQuery.NUMBER_DVD);
-            int episodeFlag = episodesCursor.getInt(EpisodesQuery.WATCHED);
-            episode.watched = EpisodeTools.isWatched(episodeFlag);
-            episode.skipped = EpisodeTools.isSkipped(episodeFlag);
-            episode.collected = episodesCursor.getInt(EpisodesQuery.COLLECTED) == 1;
-            episode.title = episodesCursor.getString(EpisodesQuery.TITLE);
-            episode.firstAired = episodesCursor.getLong(EpisodesQuery.FIRSTAIRED);
-            episode.imdbId = episodesCursor.getString(EpisodesQuery.IMDBID);
+        @Override
+        public void writeEpisode(Cursor episodes) throws IOException {
+            JsonWriter writer = mWriter;
+            writer.beginObject();
+            writer.name("tvdb_id").value(episodes.getInt(EpisodesQuery.ID));
+            writer.name("episode").value(episodes.getInt(EpisodesQuery.NUMBER));
+            writer.name("episode_absolute").value(
+                    episodes.getInt(EpisodesQuery.NUMBER_ABSOLUTE));
+            writeString(writer, "title", episodes.getString(EpisodesQuery.TITLE));
+            writer.name("first_aired").value(episodes.getLong(EpisodesQuery.FIRSTAIRED));
+            int episodeFlag = episodes.getInt(EpisodesQuery.WATCHED);
+            writer.name("watched").value(EpisodeTools.isWatched(episodeFlag));
+            writer.name("skipped").value(EpisodeTools.isSkipped(episodeFlag));
+            writer.name("collected").value(episodes.getInt(EpisodesQuery.COLLECTED) == 1);
+            writeString(writer, "imdb_id", episodes.getString(EpisodesQuery.IMDBID));
+            writer.name("episode_dvd").value(episodes.getDouble(EpisodesQuery.NUMBER_DVD));
             if (mIsFullDump) {
-                episode.overview = episodesCursor.getString(EpisodesQuery.OVERVIEW);
-                episode.image = episodesCursor.getString(EpisodesQuery.IMAGE);
-                episode.writers = episodesCursor.getString(EpisodesQuery.WRITERS);
-                episode.gueststars = episodesCursor.getString(EpisodesQuery.GUESTSTARS);
-                episode.directors = episodesCursor.getString(EpisodesQuery.DIRECTORS);
-                episode.rating = episodesCursor.getDouble(EpisodesQuery.RATING);
-                episode.lastEdited = episodesCursor.getLong(EpisodesQuery.LAST_EDITED);
+                writeString(writer, "overview", episodes.getString(EpisodesQuery.OVERVIEW));
+                writeString(writer, "image", episodes.getString(EpisodesQuery.IMAGE));
+                writeString(writer, "writers", episodes.getString(EpisodesQuery.WRITERS));
+                writeString(writer, "gueststars", episodes.getString(EpisodesQuery.GUESTSTARS));
+                writeString(writer, "directors", episodes.getString(EpisodesQuery.DIRECTORS));
+                writer.name("rating").value(episodes.getDouble(EpisodesQuery.RATING));
+                writer.name("last_edited").value(episodes.getLong(EpisodesQuery.LAST_EDITED));
             }
+            writer.endObject();
+        }
 
-            season.episodes.add(episode);
+        @Override
+        public void endSeason() throws IOException {
+            mWriter.endArray();
+            mWriter.endObject();
         }
 
-        episodesCursor.close();
+        @Override
+        public void endShow() throws IOException {
+            mWriter.endArray();
+            mWriter.endObject();
+        }
+
+        void close() throws IOException {
+            mWriter.endArray();
+            mWriter.close();
+        }
+    }
+
+    static String toShowStatusExport(int status) {
+        switch (status) {
+            case ShowStatus.CONTINUING:
+                return ShowStatusExport.CONTINUING;
+            case ShowStatus.ENDED:
+                return ShowStatusExport.ENDED;
+            default:
+                return ShowStatusExport.UNKNOWN;
+        }
+    }
+
+    /**
+     * Like Gson, leaves out values which are null.
+     */
+    private static void writeString(JsonWriter writer, String name, String value)
+            throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+
+    private static int compare(int showTvdbId, int season, int otherShowTvdbId,
+            int otherSeason) {
+        if (showTvdbId != otherShowTvdbId) {
+            return showTvdbId < otherShowTvdbId ? -1 : 1;
+        }
+        return season < otherSeason ? -1 : (season == otherSeason ? 0 : 1);
     }
 
     private void writeJsonStreamLists(OutputStream out, Cursor lists) throws IOException {
@@ -379,13 +552,7 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
                 break;
             }
 
-            List list = new List();
-            list.listId = lists.getString(ListsQuery.ID);
-            list.name = lists.getString(ListsQuery.NAME);
-
-            addListItems(list);
-
-            gson.toJson(list, List.class, writer);
+            gson.toJson(buildList(lists), List.class, writer);
 
             publishProgress(numTotal, ++numExported);
         }
@@ -394,6 +561,16 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         writer.close();
     }
 
+    private List buildList(Cursor lists) {
+        List list = new List();
+        list.listId = lists.getString(ListsQuery.ID);
+        list.name = lists.getString(ListsQuery.NAME);
+
+        addListItems(list);
+
+        return list;
+    }
+
     private void addListItems(List list) {
         final Cursor listItems = mContext.getContentResolver().query(
                 ListItems.CONTENT_URI, ListItemsQuery.PROJECTION,
@@ -444,7 +621,8 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
                 Shows.LASTUPDATED, Shows.LASTEDIT
         };
 
-        String SORT = Shows.TITLE + " COLLATE NOCASE ASC";
+        // same order as seasons and episodes
+        String SORT = Shows._ID + " ASC";
 
         int ID = 0;
         int TITLE = 1;
@@ -471,20 +649,36 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         int LAST_EDITED = 21;
     }
 
+    public interface SeasonsQuery {
+        String[] PROJECTION = new String[] {
+                Seasons._ID, Seasons.COMBINED, Shows.REF_SHOW_ID
+        };
+
+        // show ids are stored as text, sort them like numbers
+        String SORT = "CAST(" + Shows.REF_SHOW_ID + " AS INTEGER) ASC, " + Seasons.COMBINED
+                + " ASC";
+
+        int ID = 0;
+        int COMBINED = 1;
+        int REF_SHOW_ID = 2;
+    }
+
     public interface EpisodesQuery {
         String[] PROJECTION = new String[] {
                 Episodes._ID, Episodes.NUMBER, Episodes.ABSOLUTE_NUMBER, Episodes.WATCHED,
                 Episodes.COLLECTED, Episodes.TITLE, Episodes.FIRSTAIREDMS, Episodes.IMDBID,
-                Episodes.DVDNUMBER
+                Episodes.DVDNUMBER, Shows.REF_SHOW_ID, Episodes.SEASON
         };
         String[] PROJECTION_FULL = new String[] {
                 Episodes._ID, Episodes.NUMBER, Episodes.ABSOLUTE_NUMBER, Episodes.WATCHED,
                 Episodes.COLLECTED, Episodes.TITLE, Episodes.FIRSTAIREDMS, Episodes.IMDBID,
-                Episodes.DVDNUMBER, Episodes.OVERVIEW, Episodes.IMAGE, Episodes.WRITERS,
-                Episodes.GUESTSTARS, Episodes.DIRECTORS, Episodes.RATING, Episodes.LAST_EDITED
+                Episodes.DVDNUMBER, Shows.REF_SHOW_ID, Episodes.SEASON, Episodes.OVERVIEW,
+                Episodes.IMAGE, Episodes.WRITERS, Episodes.GUESTSTARS, Episodes.DIRECTORS,
+                Episodes.RATING, Episodes.LAST_EDITED
         };
 
-        String SORT = Episodes.NUMBER + " ASC";
+        String SORT = "CAST(" + Shows.REF_SHOW_ID + " AS INTEGER) ASC, " + Episodes.SEASON
+                + " ASC, " + Episodes.NUMBER + " ASC";
 
         int ID = 0;
         int NUMBER = 1;
@@ -495,14 +689,16 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         int FIRSTAIRED = 6;
         int IMDBID = 7;
         int NUMBER_DVD = 8;
+        int REF_SHOW_ID = 9;
+        int SEASON = 10;
         // Full dump only
-        int OVERVIEW = 9;
-        int IMAGE = 10;
-        int WRITERS = 11;
-        int GUESTSTARS = 12;
-        int DIRECTORS = 13;
-        int RATING = 14;
-        int LAST_EDITED = 15;
+        int OVERVIEW = 11;
+        int IMAGE = 12;
+        int WRITERS = 13;
+        int GUESTSTARS = 14;
+        int DIRECTORS = 15;
+        int RATING = 16;
+        int LAST_EDITED = 17;
 
     }
 
@@ -19,7 +19,11 @@ package com.battlelancer.seriesguide.dataliberation;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.SQLException;
 import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
 import android.widget.Toast;
 
 import com.battlelancer.seriesguide.dataliberation.JsonExportTask.ListItemTypesExport;
@@ -30,18 +34,19 @@ import com.battlelancer.seriesguide.dataliberation.model.ListItem;
 import com.battlelancer.seriesguide.dataliberation.model.Season;
 import com.battlelancer.seriesguide.dataliberation.model.Show;
 import com.battlelancer.seriesguide.enums.EpisodeFlags;
-import com.battlelancer.seriesguide.provider.SeriesContract;
-import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeSearch;
 import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesContract.ListItemTypes;
 import com.battlelancer.seriesguide.provider.SeriesContract.ListItems;
 import com.battlelancer.seriesguide.provider.SeriesContract.Lists;
 import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.provider.StagingDatabase;
+import com.battlelancer.seriesguide.settings.TraktSettings;
 import com.battlelancer.seriesguide.sync.SgSyncAdapter;
 import com.battlelancer.seriesguide.util.TaskManager;
 import com.battlelancer.seriesguide.util.Utils;
 import com.battlelancer.thetvdbapi.TheTVDB.ShowStatus;
+import com.battlelancer.thetvdbapi.ValidatorCache;
 import com.google.myjson.Gson;
 import com.google.myjson.JsonParseException;
 import com.google.myjson.stream.JsonReader;
@@ -68,6 +73,8 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
     private static final int ERROR = -1;
     private static final int ERROR_LARGE_DB_OP = -2;
     private static final int ERROR_FILE_ACCESS = -3;
+    private static final long SYNC_STOP_TIMEOUT = 10 * DateUtils.SECOND_IN_MILLIS;
+    private static final long SYNC_STOP_POLL_INTERVAL = 250;
     private Context mContext;
     private OnTaskFinishedListener mListener;
     private boolean mIsAutoBackupMode;
@@ -91,20 +98,87 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
             return ERROR_LARGE_DB_OP;
         }
 
-        // Ensure JSON file is available
+        // Ensure a backup is available, auto backups also have the binary format
         File path = JsonExportTask.getExportPath(mIsAutoBackupMode);
+        File binaryBackup = new File(path, JsonExportTask.EXPORT_BINARY_FILE);
+        boolean isBinary = mIsAutoBackupMode && binaryBackup.exists()
+                && binaryBackup.canRead();
         File backup = new File(path, JsonExportTask.EXPORT_JSON_FILE_SHOWS);
-        if (!backup.exists() || !backup.canRead()) {
+        if (!isBinary && (!backup.exists() || !backup.canRead())) {
             return ERROR_FILE_ACCESS;
         }
 
-        // Clean out all existing tables
-        mContext.getContentResolver().delete(Shows.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(Seasons.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(Episodes.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(SeriesContract.Lists.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(ListItems.CONTENT_URI, null, null);
+        // Write into a new database, only replace the current one once all went well
+        long startTime = SystemClock.elapsedRealtime();
+        StagingDatabase staging = new StagingDatabase(mContext);
+        try {
+            if (isBinary) {
+                int result = importBinary(staging, binaryBackup);
+                if (result != SUCCESS) {
+                    return result;
+                }
+            } else {
+                int result = importShows(staging, backup);
+                if (result != SUCCESS) {
+                    return result;
+                }
+
+                // Skip lists if the file is not accessible
+                File backupLists = new File(path, JsonExportTask.EXPORT_JSON_FILE_LISTS);
+                if (backupLists.exists() && backupLists.canRead()) {
+                    result = importLists(staging, backupLists);
+                    if (result != SUCCESS) {
+                        return result;
+                    }
+                }
+            }
+
+            if (isCancelled()) {
+                return ERROR;
+            }
+
+            // a sync or show added meanwhile would keep writing shows of the replaced database
+            if (!stopDatabaseWriters(tm)) {
+                return ERROR_LARGE_DB_OP;
+            }
+            staging.swapIn();
+        } catch (SQLException e) {
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+            return ERROR;
+        } catch (IOException e) {
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+            return ERROR;
+        } finally {
+            staging.close();
+        }
+        Log.d(TAG, "Imported in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+
+        // Imported episodes may differ from TVDb, make sure next update processes them
+        ValidatorCache.clear(mContext);
+        // trakt may not know about imported flags, upload all of them next time
+        TraktSettings.setFlagJournalComplete(mContext, false);
 
+        return SUCCESS;
+    }
+
+    /**
+     * Cancels a sync started since the import began and waits for it to stop, as cancelling only
+     * requests it to. Returns false if a sync is still active after {@link
+     * #SYNC_STOP_TIMEOUT} or a show is being added, the database must not be replaced then.
+     */
+    private boolean stopDatabaseWriters(TaskManager tm) {
+        SgSyncAdapter.cancelSync(mContext);
+        long deadline = SystemClock.elapsedRealtime() + SYNC_STOP_TIMEOUT;
+        while (SgSyncAdapter.isSyncActive(mContext, false)) {
+            if (SystemClock.elapsedRealtime() > deadline) {
+                return false;
+            }
+            SystemClock.sleep(SYNC_STOP_POLL_INTERVAL);
+        }
+        return !tm.isAddTaskRunning();
+    }
+
+    private int importShows(StagingDatabase staging, File backup) {
         // Access JSON from backup folder to create new database
         try {
             InputStream in = new FileInputStream(backup);
@@ -115,8 +189,9 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
             reader.beginArray();
 
             while (reader.hasNext()) {
+                // bind one show at a time, its id may follow its seasons
                 Show show = gson.fromJson(reader, Show.class);
-                addShowToDatabase(show);
+                addShowToDatabase(staging, show);
             }
 
             reader.endArray();
@@ -131,15 +206,37 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
             return ERROR;
         }
 
-        /*
-         * Lists
-         */
-        File backupLists = new File(path, JsonExportTask.EXPORT_JSON_FILE_LISTS);
-        if (!backupLists.exists() || !backupLists.canRead()) {
-            // Skip lists if the file is not accessible
-            return SUCCESS;
+        return SUCCESS;
+    }
+
+    private int importBinary(final StagingDatabase staging, File backup) {
+        try {
+            BinaryBackup.Reader reader = new BinaryBackup.Reader(new FileInputStream(backup));
+            try {
+                reader.read(new BinaryBackup.Reader.Callback() {
+                    @Override
+                    public void onShow(Show show) {
+                        addShowToDatabase(staging, show);
+                    }
+
+                    @Override
+                    public void onList(List list) {
+                        addListToDatabase(staging, list);
+                    }
+                });
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // the backup might be incomplete or unreadable
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+            return ERROR;
         }
 
+        return SUCCESS;
+    }
+
+    private int importLists(StagingDatabase staging, File backupLists) {
         // Access JSON from backup folder to create new database
         try {
             InputStream in = new FileInputStream(backupLists);
@@ -151,7 +248,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
 
             while (reader.hasNext()) {
                 List list = gson.fromJson(reader, List.class);
-                addListToDatabase(list);
+                addListToDatabase(staging, list);
             }
 
             reader.endArray();
@@ -166,10 +263,6 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
             return ERROR;
         }
 
-        // Renew search table
-        mContext.getContentResolver().query(EpisodeSearch.CONTENT_URI_RENEWFTSTABLE, null, null,
-                null, null);
-
         return SUCCESS;
     }
 
@@ -200,7 +293,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         }
     }
 
-    private void addShowToDatabase(Show show) {
+    private static void addShowToDatabase(StagingDatabase staging, Show show) {
         // Insert the show
         ContentValues showValues = new ContentValues();
         showValues.put(Shows._ID, show.tvdbId);
@@ -234,7 +327,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         showValues.put(Shows.LASTUPDATED, show.lastUpdated);
         showValues.put(Shows.LASTEDIT, show.lastEdited);
 
-        mContext.getContentResolver().insert(Shows.CONTENT_URI, showValues);
+        staging.insertShow(showValues);
 
         if (show.seasons == null) {
             return;
@@ -242,13 +335,11 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
 
         ContentValues[][] seasonsAndEpisodes = buildSeasonAndEpisodeBatches(show);
 
-        // Insert all seasons
-        mContext.getContentResolver().bulkInsert(Seasons.CONTENT_URI,
-                (ContentValues[]) seasonsAndEpisodes[0]);
+        // Insert all seasons, update duplicates
+        staging.insertSeasons(seasonsAndEpisodes[0]);
 
-        // Insert all episodes
-        mContext.getContentResolver().bulkInsert(Episodes.CONTENT_URI,
-                (ContentValues[]) seasonsAndEpisodes[1]);
+        // Insert all episodes, update duplicates
+        staging.insertEpisodes(seasonsAndEpisodes[1]);
     }
 
     /**
@@ -324,12 +415,12 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         };
     }
 
-    private void addListToDatabase(List list) {
+    private static void addListToDatabase(StagingDatabase staging, List list) {
         // Insert the list
         ContentValues values = new ContentValues();
         values.put(Lists.LIST_ID, list.listId);
         values.put(Lists.NAME, list.name);
-        mContext.getContentResolver().insert(Lists.CONTENT_URI, values);
+        staging.insertList(values);
 
         if (list.items == null || list.items.isEmpty()) {
             return;
@@ -359,6 +450,6 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         }
 
         ContentValues[] itemsArray = new ContentValues[items.size()];
-        mContext.getContentResolver().bulkInsert(ListItems.CONTENT_URI, items.toArray(itemsArray));
+        staging.insertListItems(items.toArray(itemsArray));
     }
 }
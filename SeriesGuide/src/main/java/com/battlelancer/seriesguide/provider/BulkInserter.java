@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.provider;
+
+import com.uwetrottmann.androidutils.AndroidUtils;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inserts many rows into a table using compiled {@link SQLiteStatement}s. A statement is compiled
+ * only once for each distinct set of columns, values are then bound by index. Optionally updates
+ * rows which already exist instead of inserting them (upsert), or only updates rows.
+ *
+ * <p> Must be used inside a transaction.
+ */
+class BulkInserter {
+
+    /**
+     * Number of rows after which other threads get a chance to access the database.
+     */
+    private static final int YIELD_INTERVAL = 100;
+
+    private final SQLiteDatabase mDb;
+
+    private final String mTable;
+
+    private final String mKeyColumn;
+
+    private final Map<Set<String>, CompiledStatements> mStatements = new HashMap<>();
+
+    private boolean mIsUpdateOnly;
+
+    /**
+     * @param keyColumn If not null, rows with a matching value in this column are updated instead
+     *                  of inserted. Only columns present in the given values are updated, all
+     *                  other columns keep their value.
+     */
+    BulkInserter(SQLiteDatabase db, String table, String keyColumn) {
+        mDb = db;
+        mTable = table;
+        mKeyColumn = keyColumn;
+    }
+
+    /**
+     * Inserts (or updates if upserting) all given rows. Throws if a row can not be inserted.
+     *
+     * @return The number of rows inserted or updated.
+     */
+    int execute(ContentValues[] values) {
+        try {
+            final int numValues = values.length;
+            for (int i = 0; i < numValues; i++) {
+                executeRow(values[i]);
+                if (i % YIELD_INTERVAL == YIELD_INTERVAL - 1) {
+                    mDb.yieldIfContendedSafely();
+                }
+            }
+            return numValues;
+        } finally {
+            for (CompiledStatements statements : mStatements.values()) {
+                statements.close();
+            }
+            mStatements.clear();
+        }
+    }
+
+    /**
+     * Updates the rows where the key column matches the given keys with the given values, does
+     * not insert missing rows. Only columns present in the values are changed.
+     *
+     * @param keys   Key column values, {@code keys[i]} identifies the row to update with {@code
+     *               values[i]}.
+     * @return The number of rows changed.
+     */
+    int executeUpdates(long[] keys, ContentValues[] values) {
+        if (mKeyColumn == null) {
+            throw new IllegalStateException("Updates require a key column");
+        }
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Need one key per row of values");
+        }
+        mIsUpdateOnly = true;
+        try {
+            int changedRows = 0;
+            final int numValues = values.length;
+            for (int i = 0; i < numValues; i++) {
+                changedRows += updateRow(keys[i], values[i]);
+                if (i % YIELD_INTERVAL == YIELD_INTERVAL - 1) {
+                    mDb.yieldIfContendedSafely();
+                }
+            }
+            return changedRows;
+        } finally {
+            for (CompiledStatements statements : mStatements.values()) {
+                statements.close();
+            }
+            mStatements.clear();
+        }
+    }
+
+    private int updateRow(long key, ContentValues row) {
+        if (!AndroidUtils.isHoneycombOrHigher()) {
+            // statements can not report changed rows or column names, use generic path
+            return mDb.update(mTable, row, mKeyColumn + "=" + key, null);
+        }
+
+        return updateRowWithStatements(key, row);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int updateRowWithStatements(long key, ContentValues row) {
+        CompiledStatements statements = getStatements(row);
+        statements.bind(statements.update, row);
+        statements.update.bindLong(statements.columns.length + 1, key);
+        return executeUpdateDelete(statements.update);
+    }
+
+    private void executeRow(ContentValues row) {
+        if (!AndroidUtils.isHoneycombOrHigher()) {
+            // statements can not report changed rows or column names, use generic path
+            Object key = mKeyColumn != null ? row.get(mKeyColumn) : null;
+            if (key == null || mDb.update(mTable, row, mKeyColumn + "=?", new String[] {
+                    key.toString()
+            }) == 0) {
+                mDb.insertOrThrow(mTable, null, row);
+            }
+            return;
+        }
+
+        executeRowWithStatements(row);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void executeRowWithStatements(ContentValues row) {
+        CompiledStatements statements = getStatements(row);
+
+        if (statements.update != null && row.get(mKeyColumn) != null) {
+            statements.bind(statements.update, row);
+            // bind key as last argument of WHERE clause
+            DatabaseUtils.bindObjectToProgram(statements.update, statements.columns.length + 1,
+                    row.get(mKeyColumn));
+            if (executeUpdateDelete(statements.update) > 0) {
+                return;
+            }
+        }
+
+        statements.bind(statements.insert, row);
+        statements.insert.executeInsert();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private CompiledStatements getStatements(ContentValues row) {
+        CompiledStatements statements = mStatements.get(row.keySet());
+        if (statements == null) {
+            statements = compile(new HashSet<>(row.keySet()));
+            mStatements.put(statements.columnSet, statements);
+        }
+        return statements;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int executeUpdateDelete(SQLiteStatement statement) {
+        return statement.executeUpdateDelete();
+    }
+
+    private CompiledStatements compile(Set<String> columnSet) {
+        final String[] columns = columnSet.toArray(new String[columnSet.size()]);
+
+        SQLiteStatement insertStatement = null;
+        if (!mIsUpdateOnly) {
+            insertStatement = mDb.compileStatement(buildInsert(columns));
+        }
+
+        SQLiteStatement updateStatement = null;
+        if (mKeyColumn != null) {
+            StringBuilder update = new StringBuilder("UPDATE ").append(mTable).append(" SET ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    update.append(',');
+                }
+                update.append(columns[i]).append("=?");
+            }
+            update.append(" WHERE ").append(mKeyColumn).append("=?");
+            updateStatement = mDb.compileStatement(update.toString());
+        }
+
+        return new CompiledStatements(columnSet, columns, insertStatement, updateStatement);
+    }
+
+    private String buildInsert(String[] columns) {
+        StringBuilder insert = new StringBuilder("INSERT INTO ").append(mTable).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                insert.append(',');
+                params.append(',');
+            }
+            insert.append(columns[i]);
+            params.append('?');
+        }
+        insert.append(") VALUES (").append(params).append(')');
+        return insert.toString();
+    }
+
+    private static class CompiledStatements {
+
+        final Set<String> columnSet;
+
+        final String[] columns;
+
+        final SQLiteStatement insert;
+
+        final SQLiteStatement update;
+
+        CompiledStatements(Set<String> columnSet, String[] columns, SQLiteStatement insert,
+                SQLiteStatement update) {
+            this.columnSet = columnSet;
+            this.columns = columns;
+            this.insert = insert;
+            this.update = update;
+        }
+
+        void bind(SQLiteStatement statement, ContentValues row) {
+            statement.clearBindings();
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, row.get(columns[i]));
+            }
+        }
+
+        void close() {
+            if (insert != null) {
+                insert.close();
+            }
+            if (update != null) {
+                update.close();
+            }
+        }
+    }
+
+}
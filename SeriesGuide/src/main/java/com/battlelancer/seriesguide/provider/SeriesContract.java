@@ -225,13 +225,28 @@ public class SeriesContract {
         String TYPE = "item_type";
     }
 
+    interface EpisodeFlagJournalColumns {
+        /** TVDb id of the show of the episode. */
+        String SHOW_ID = "journal_show_id";
+
+        String SEASON = "journal_season";
+
+        String NUMBER = "journal_number";
+
+        /** The watched flag the episode was changed to. */
+        String WATCHED = "journal_watched";
+    }
+
     public interface ListItemTypes {
         int SHOW = 1;
         int SEASON = 2;
         int EPISODE = 3;
     }
 
-    private static final Uri BASE_CONTENT_URI = Uri.parse("content://"
+    /**
+     * Notifying a change of this URI reloads all content of the provider.
+     */
+    static final Uri BASE_CONTENT_URI = Uri.parse("content://"
             + SeriesGuideApplication.CONTENT_AUTHORITY);
 
     public static final String PATH_SHOWS = "shows";
@@ -264,6 +279,50 @@ public class SeriesContract {
 
     public static final String PATH_WITH_EPISODE = "with_episode";
 
+    public static final String PATH_NEXT_EPISODES = "nextepisodes";
+
+    public static final String PATH_EPISODE_FLAG_JOURNAL = "episodeflagjournal";
+
+    /**
+     * Provider method, see {@link android.content.ContentResolver#call}, which recalculates the
+     * episode counters of seasons. Requires the current time in {@link #EXTRA_NOW}. Pass {@link
+     * #EXTRA_SEASON_ID} or {@link #EXTRA_SHOW_ID} to only update a single season or the seasons of
+     * a single show.
+     */
+    public static final String METHOD_UPDATE_UNWATCHED_COUNTS = "updateUnwatchedCounts";
+
+    public static final String EXTRA_NOW = "now";
+
+    public static final String EXTRA_SEASON_ID = "seasonId";
+
+    public static final String EXTRA_SHOW_ID = "showId";
+
+    /**
+     * Query parameter for bulk inserts. If {@code true}, rows which already exist are updated
+     * instead of inserted.
+     */
+    public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+    /**
+     * Query parameter for {@link Shows#CONTENT_URI_NEXT_EPISODES}. If {@code true}, specials are
+     * not considered as next episode.
+     */
+    public static final String QUERY_PARAMETER_NO_SPECIALS = "nospecials";
+
+    /**
+     * Query parameter for {@link Shows#CONTENT_URI_NEXT_EPISODES}. If set, only episodes airing
+     * at or after this time in ms are considered as next episode. Otherwise any episode with an
+     * air date.
+     */
+    public static final String QUERY_PARAMETER_AIRED_AFTER = "airedafter";
+
+    /**
+     * Builds a {@link Uri} which tells bulk inserts to update rows which already exist.
+     */
+    public static Uri buildUpsertUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(QUERY_PARAMETER_UPSERT, "true").build();
+    }
+
     public static class Shows implements ShowsColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_SHOWS)
                 .build();
@@ -275,6 +334,16 @@ public class SeriesContract {
 
         public static final Uri CONTENT_FILTER_URI = Uri.withAppendedPath(CONTENT_URI, "filter");
 
+        /**
+         * Returns one row per show with its current next episode values and the calculated next
+         * episode. Selection applies to shows. See {@link #QUERY_PARAMETER_NO_SPECIALS} and
+         * {@link #QUERY_PARAMETER_AIRED_AFTER} for options.
+         */
+        public static final Uri CONTENT_URI_NEXT_EPISODES = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SHOWS)
+                .appendPath(PATH_NEXT_EPISODES)
+                .build();
+
         /** Use if multiple items get returned */
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.seriesguide.show";
 
@@ -467,6 +536,20 @@ public class SeriesContract {
         }
     }
 
+    /**
+     * Changes of the watched flag of episodes, in the order they were made. The {@link #_ID} is
+     * a sequence number which only ever increases. Rows are added by the database whenever the
+     * flag of an episode changes.
+     */
+    public static class EpisodeFlagJournal implements EpisodeFlagJournalColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_EPISODE_FLAG_JOURNAL).build();
+
+        /** Use if multiple items get returned */
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.seriesguide.episodeflagjournal";
+    }
+
     private SeriesContract() {
     }
 }
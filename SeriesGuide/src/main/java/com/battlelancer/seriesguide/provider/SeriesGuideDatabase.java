@@ -21,12 +21,17 @@ import android.app.SearchManager;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import com.battlelancer.seriesguide.enums.EpisodeFlags;
+import com.battlelancer.seriesguide.enums.SeasonTags;
+import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeFlagJournalColumns;
 import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeSearch;
 import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeSearchColumns;
 import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
@@ -34,6 +39,7 @@ import com.battlelancer.seriesguide.provider.SeriesContract.EpisodesColumns;
 import com.battlelancer.seriesguide.provider.SeriesContract.ListItemsColumns;
 import com.battlelancer.seriesguide.provider.SeriesContract.Lists;
 import com.battlelancer.seriesguide.provider.SeriesContract.ListsColumns;
+import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesContract.SeasonsColumns;
 import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
 import com.battlelancer.seriesguide.provider.SeriesContract.ShowsColumns;
@@ -79,7 +85,15 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
     public static final int DBVER_LASTWATCHEDID = 31;
 
-    public static final int DATABASE_VERSION = DBVER_LASTWATCHEDID;
+    public static final int DBVER_INDICES = 32;
+
+    public static final int DBVER_SEARCH_TRIGGERS = 33;
+
+    public static final int DBVER_FTS4 = 34;
+
+    public static final int DBVER_FLAG_JOURNAL = 35;
+
+    public static final int DATABASE_VERSION = DBVER_FLAG_JOURNAL;
 
     /**
      * Qualifies column names by prefixing their {@link Tables} name.
@@ -89,7 +103,9 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
         String SHOWS_NEXTEPISODE = Tables.SHOWS + "." + Shows.NEXTEPISODE;
         String EPISODES_ID = Tables.EPISODES + "." + Episodes._ID;
         String EPISODES_SHOW_ID = Tables.EPISODES + "." + Shows.REF_SHOW_ID;
+        String SEASONS_ID = Tables.SEASONS + "." + Seasons._ID;
         String SEASONS_SHOW_ID = Tables.SEASONS + "." + Shows.REF_SHOW_ID;
+        String EPISODES_SEASON_ID = Tables.EPISODES + "." + Seasons.REF_SEASON_ID;
     }
 
     public interface Tables {
@@ -114,6 +130,8 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
         String LIST_ITEMS = "listitems";
 
+        String EPISODE_FLAG_JOURNAL = "episodeflagjournal";
+
         String LIST_ITEMS_WITH_DETAILS = "(SELECT "
                 + Selections.SHOWS_COLUMNS + " FROM "
                 + "((SELECT " + Selections.LIST_ITEMS_COLUMNS_INTERNAL
@@ -169,6 +187,14 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
         String LIST_ID = "REFERENCES " + Tables.LISTS + "(" + Lists.LIST_ID + ")";
     }
 
+    interface Indices {
+        String EPISODES_SHOW_WATCHED_AIRED = "episodes_show_watched_aired";
+
+        String EPISODES_SEASON_WATCHED = "episodes_season_watched";
+
+        String SEASONS_SHOW = "seasons_show";
+    }
+
     private static final String CREATE_SHOWS_TABLE = "CREATE TABLE " + Tables.SHOWS
             + " ("
 
@@ -294,7 +320,11 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
             + ");";
 
-    private static final String CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+    /**
+     * Used if FTS4 external content tables are not supported. Stores its own copy of titles and
+     * overviews.
+     */
+    private static final String CREATE_SEARCH_TABLE_FTS3 = "CREATE VIRTUAL TABLE "
             + Tables.EPISODES_SEARCH + " USING FTS3("
 
             + EpisodeSearchColumns.TITLE + " TEXT,"
@@ -303,6 +333,31 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
             + ");";
 
+    /**
+     * Reads titles and overviews from the episodes table instead of storing a copy. Indexes
+     * prefixes of two and three characters to speed up search as you type.
+     */
+    private static final String CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+            + Tables.EPISODES_SEARCH + " USING FTS4("
+
+            + EpisodeSearchColumns.TITLE + ","
+
+            + EpisodeSearchColumns.OVERVIEW + ","
+
+            + "content=\"" + Tables.EPISODES + "\","
+
+            + "prefix=\"2,3\""
+
+            + ");";
+
+    /**
+     * SQLite version which added FTS4 external content tables (prefix indexes were added
+     * earlier).
+     */
+    private static final int[] SQLITE_VERSION_FTS4_CONTENT = new int[] {
+            3, 7, 9
+    };
+
     private static final String CREATE_LISTS_TABLE = "CREATE TABLE " + Tables.LISTS
             + " ("
 
@@ -333,10 +388,135 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
             + ");";
 
+    // AUTOINCREMENT, so sequence numbers are never reused after rows were deleted
+    private static final String CREATE_EPISODE_FLAG_JOURNAL_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + Tables.EPISODE_FLAG_JOURNAL + " ("
+
+            + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+            + EpisodeFlagJournalColumns.SHOW_ID + " INTEGER NOT NULL,"
+
+            + EpisodeFlagJournalColumns.SEASON + " INTEGER NOT NULL,"
+
+            + EpisodeFlagJournalColumns.NUMBER + " INTEGER NOT NULL,"
+
+            + EpisodeFlagJournalColumns.WATCHED + " INTEGER NOT NULL"
+
+            + ");";
+
+    private static final String CREATE_EPISODES_SHOW_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Indices.EPISODES_SHOW_WATCHED_AIRED + " ON " + Tables.EPISODES + "("
+            + ShowsColumns.REF_SHOW_ID + ","
+            + EpisodesColumns.WATCHED + ","
+            + EpisodesColumns.FIRSTAIREDMS + ");";
+
+    private static final String CREATE_EPISODES_SEASON_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Indices.EPISODES_SEASON_WATCHED + " ON " + Tables.EPISODES + "("
+            + SeasonsColumns.REF_SEASON_ID + ","
+            + EpisodesColumns.WATCHED + ");";
+
+    private static final String CREATE_SEASONS_SHOW_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Indices.SEASONS_SHOW + " ON " + Tables.SEASONS + "("
+            + ShowsColumns.REF_SHOW_ID + ");";
+
+    interface Triggers {
+        String EPISODES_SEARCH_INSERT = "episodes_search_insert";
+
+        /**
+         * Only used up to {@link SeriesGuideDatabase#DBVER_SEARCH_TRIGGERS}.
+         */
+        String EPISODES_SEARCH_UPDATE = "episodes_search_update";
+
+        String EPISODES_SEARCH_BEFORE_UPDATE = "episodes_search_before_update";
+
+        String EPISODES_SEARCH_AFTER_UPDATE = "episodes_search_after_update";
+
+        String EPISODES_SEARCH_DELETE = "episodes_search_delete";
+
+        String EPISODES_FLAG_JOURNAL = "episodes_flag_journal";
+
+        String SHOWS_SYNC_JOURNAL = "shows_sync_journal";
+    }
+
+    /*
+     * Keep the search table in sync with episode titles and overviews, so it does not have to be
+     * rebuilt after episodes change. An external content table reads the old values from the
+     * episodes table to remove them from its index, so remove before an update or delete and
+     * add again after an update. This also works for a regular FTS3 table.
+     */
+
+    private static final String INSERT_SEARCH_ROW = " BEGIN INSERT INTO "
+            + Tables.EPISODES_SEARCH + "(docid," + EpisodeSearchColumns.TITLE + ","
+            + EpisodeSearchColumns.OVERVIEW + ") VALUES (new." + Episodes._ID + ",new."
+            + Episodes.TITLE + ",new." + Episodes.OVERVIEW + "); END;";
+
+    private static final String DELETE_SEARCH_ROW = " BEGIN DELETE FROM "
+            + Tables.EPISODES_SEARCH + " WHERE docid=old." + Episodes._ID + "; END;";
+
+    // only if title or overview actually changed, upserts set them on every update
+    private static final String ON_SEARCH_COLUMNS_CHANGED = " UPDATE OF " + Episodes.TITLE + ","
+            + Episodes.OVERVIEW + " ON " + Tables.EPISODES
+            + " WHEN old." + Episodes.TITLE + " IS NOT new." + Episodes.TITLE
+            + " OR old." + Episodes.OVERVIEW + " IS NOT new." + Episodes.OVERVIEW;
+
+    private static final String CREATE_SEARCH_INSERT_TRIGGER = "CREATE TRIGGER "
+            + Triggers.EPISODES_SEARCH_INSERT + " AFTER INSERT ON " + Tables.EPISODES
+            + INSERT_SEARCH_ROW;
+
+    private static final String CREATE_SEARCH_BEFORE_UPDATE_TRIGGER = "CREATE TRIGGER "
+            + Triggers.EPISODES_SEARCH_BEFORE_UPDATE + " BEFORE" + ON_SEARCH_COLUMNS_CHANGED
+            + DELETE_SEARCH_ROW;
+
+    private static final String CREATE_SEARCH_AFTER_UPDATE_TRIGGER = "CREATE TRIGGER "
+            + Triggers.EPISODES_SEARCH_AFTER_UPDATE + " AFTER" + ON_SEARCH_COLUMNS_CHANGED
+            + INSERT_SEARCH_ROW;
+
+    private static final String CREATE_SEARCH_DELETE_TRIGGER = "CREATE TRIGGER "
+            + Triggers.EPISODES_SEARCH_DELETE + " BEFORE DELETE ON " + Tables.EPISODES
+            + DELETE_SEARCH_ROW;
+
+    /*
+     * Record each change of the watched flag of an episode of a show synced with trakt in the
+     * journal, so only changes have to be uploaded. Once syncing of a show is turned on, record
+     * the current flags of all its episodes, so they are uploaded as well. Syncing is on by
+     * default, so while trakt is not connected FlagTask and the sync adapter empty the journal.
+     * While connected, changes trakt already knows about are removed again, as they were either
+     * sent through the tape queue or pulled from trakt. The sync adapter also keeps only the
+     * latest change of each episode.
+     */
+
+    private static final String CREATE_FLAG_JOURNAL_TRIGGER = "CREATE TRIGGER "
+            + Triggers.EPISODES_FLAG_JOURNAL + " AFTER UPDATE OF " + Episodes.WATCHED + " ON "
+            + Tables.EPISODES + " WHEN old." + Episodes.WATCHED + " IS NOT new."
+            + Episodes.WATCHED + " AND (SELECT " + Shows.SYNCENABLED + " FROM " + Tables.SHOWS
+            + " WHERE " + Shows._ID + "=new." + Shows.REF_SHOW_ID + ")=1"
+            + " BEGIN INSERT INTO " + Tables.EPISODE_FLAG_JOURNAL + "("
+            + EpisodeFlagJournalColumns.SHOW_ID + "," + EpisodeFlagJournalColumns.SEASON + ","
+            + EpisodeFlagJournalColumns.NUMBER + "," + EpisodeFlagJournalColumns.WATCHED
+            + ") VALUES (new." + Shows.REF_SHOW_ID + ",new." + Episodes.SEASON + ",new."
+            + Episodes.NUMBER + ",new." + Episodes.WATCHED + "); END;";
+
+    private static final String CREATE_SYNC_JOURNAL_TRIGGER = "CREATE TRIGGER "
+            + Triggers.SHOWS_SYNC_JOURNAL + " AFTER UPDATE OF " + Shows.SYNCENABLED + " ON "
+            + Tables.SHOWS + " WHEN new." + Shows.SYNCENABLED + "=1 AND old."
+            + Shows.SYNCENABLED + " IS NOT 1 BEGIN INSERT INTO " + Tables.EPISODE_FLAG_JOURNAL
+            + "(" + EpisodeFlagJournalColumns.SHOW_ID + "," + EpisodeFlagJournalColumns.SEASON
+            + "," + EpisodeFlagJournalColumns.NUMBER + "," + EpisodeFlagJournalColumns.WATCHED
+            + ") SELECT " + Shows.REF_SHOW_ID + "," + Episodes.SEASON + "," + Episodes.NUMBER
+            + "," + Episodes.WATCHED + " FROM " + Tables.EPISODES + " WHERE "
+            + Shows.REF_SHOW_ID + "=new." + Shows._ID + "; END;";
+
     public SeriesGuideDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * Opens a database with the same schema stored in another file, see {@link StagingDatabase}.
+     */
+    SeriesGuideDatabase(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_SHOWS_TABLE);
@@ -345,11 +525,84 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
         db.execSQL(CREATE_EPISODES_TABLE);
 
-        db.execSQL(CREATE_SEARCH_TABLE);
+        createSearchTable(db);
 
         db.execSQL(CREATE_LISTS_TABLE);
 
         db.execSQL(CREATE_LIST_ITEMS_TABLE);
+
+        createIndices(db);
+
+        createSearchTriggers(db);
+
+        createFlagJournal(db);
+    }
+
+    /**
+     * Creates the flag journal table if it does not exist and (re-)creates its triggers. Safe to
+     * run again, e.g. when upgrading from an older version falls through multiple steps.
+     */
+    private static void createFlagJournal(SQLiteDatabase db) {
+        db.execSQL(CREATE_EPISODE_FLAG_JOURNAL_TABLE);
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_FLAG_JOURNAL);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.SHOWS_SYNC_JOURNAL);
+
+        db.execSQL(CREATE_FLAG_JOURNAL_TRIGGER);
+
+        db.execSQL(CREATE_SYNC_JOURNAL_TRIGGER);
+    }
+
+    private static void createSearchTable(SQLiteDatabase db) {
+        if (isFts4ContentSupported(db)) {
+            db.execSQL(CREATE_SEARCH_TABLE);
+        } else {
+            db.execSQL(CREATE_SEARCH_TABLE_FTS3);
+        }
+    }
+
+    /**
+     * (Re-)creates the triggers maintaining the search table, replacing any older versions of
+     * them. Safe to run again.
+     */
+    private static void createSearchTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_INSERT);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_UPDATE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_BEFORE_UPDATE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_AFTER_UPDATE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_DELETE);
+
+        db.execSQL(CREATE_SEARCH_INSERT_TRIGGER);
+
+        db.execSQL(CREATE_SEARCH_BEFORE_UPDATE_TRIGGER);
+
+        db.execSQL(CREATE_SEARCH_AFTER_UPDATE_TRIGGER);
+
+        db.execSQL(CREATE_SEARCH_DELETE_TRIGGER);
+    }
+
+    /**
+     * Returns whether the SQLite library supports FTS4 external content tables. Older Android
+     * versions ship an older SQLite.
+     */
+    private static boolean isFts4ContentSupported(SQLiteDatabase db) {
+        final String version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null);
+        final String[] parts = version.split("\\.");
+        for (int i = 0; i < SQLITE_VERSION_FTS4_CONTENT.length; i++) {
+            final int part = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+            if (part != SQLITE_VERSION_FTS4_CONTENT[i]) {
+                return part > SQLITE_VERSION_FTS4_CONTENT[i];
+            }
+        }
+        return true;
+    }
+
+    private static void createIndices(SQLiteDatabase db) {
+        db.execSQL(CREATE_EPISODES_SHOW_INDEX);
+
+        db.execSQL(CREATE_EPISODES_SEASON_INDEX);
+
+        db.execSQL(CREATE_SEASONS_SHOW_INDEX);
     }
 
     @Override
@@ -427,6 +680,18 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
             case 30:
                 upgradeToThirtyOne(db);
                 version = 31;
+            case 31:
+                upgradeToThirtyTwo(db);
+                version = 32;
+            case 32:
+                upgradeToThirtyThree(db);
+                version = 33;
+            case 33:
+                upgradeToThirtyFour(db);
+                version = 34;
+            case 34:
+                upgradeToThirtyFive(db);
+                version = 35;
         }
 
         // drop all tables if version is not right
@@ -446,6 +711,7 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.EPISODES);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.LISTS);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.LIST_ITEMS);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.EPISODE_FLAG_JOURNAL);
 
         db.execSQL("DROP TABLE IF EXISTS " + Tables.EPISODES_SEARCH);
 
@@ -461,6 +727,39 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
             + Episodes.SEASON + " DESC,"
             + Episodes.NUMBER + " DESC";
 
+    /**
+     * Add the journal of episode flag changes. It starts out empty, the first upload to trakt
+     * afterwards uploads all flags.
+     */
+    private static void upgradeToThirtyFive(SQLiteDatabase db) {
+        createFlagJournal(db);
+    }
+
+    /**
+     * Replace the FTS3 search table with an FTS4 external content table with prefix indexes if
+     * supported. Rebuilding it also makes it complete for the triggers added in {@link
+     * #upgradeToThirtyThree(SQLiteDatabase)}.
+     */
+    private static void upgradeToThirtyFour(SQLiteDatabase db) {
+        onRenewFTSTable(db);
+    }
+
+    /**
+     * Add triggers to keep the search table up to date. The search table is rebuilt in {@link
+     * #upgradeToThirtyFour(SQLiteDatabase)}, which always runs next.
+     */
+    private static void upgradeToThirtyThree(SQLiteDatabase db) {
+        createSearchTriggers(db);
+    }
+
+    /**
+     * Add indices on the show and season references of {@link Episodes} and seasons so
+     * queries for a single show or season do not have to scan the whole table.
+     */
+    private static void upgradeToThirtyTwo(SQLiteDatabase db) {
+        createIndices(db);
+    }
+
     /**
      * Add {@link Shows} column to store the last watched episode id for better
      * prediction of next episode.
@@ -716,14 +1015,205 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
                 + " INTEGER DEFAULT 0;");
     }
 
+    private interface UnwatchedCountsQuery {
+        /**
+         * Counts episodes of each season in a single pass. Seasons without episodes are included
+         * with all counters at 0. Current time has to be bound twice.
+         */
+        String SELECT = "SELECT " + Qualified.SEASONS_ID + ","
+                + "COUNT(" + Qualified.EPISODES_ID + "),"
+                // unwatched, aired
+                + "SUM(CASE WHEN " + Episodes.WATCHED + "=0 AND " + Episodes.FIRSTAIREDMS
+                + "!=-1 AND " + Episodes.FIRSTAIREDMS + "<=? THEN 1 ELSE 0 END),"
+                // unwatched, airing in the future
+                + "SUM(CASE WHEN " + Episodes.WATCHED + "=0 AND " + Episodes.FIRSTAIREDMS
+                + ">? THEN 1 ELSE 0 END),"
+                // unwatched, no air date
+                + "SUM(CASE WHEN " + Episodes.WATCHED + "=0 AND " + Episodes.FIRSTAIREDMS
+                + "=-1 THEN 1 ELSE 0 END),"
+                // skipped
+                + "SUM(CASE WHEN " + Episodes.WATCHED + "=" + EpisodeFlags.SKIPPED
+                + " THEN 1 ELSE 0 END)"
+                + " FROM " + Tables.SEASONS + " LEFT OUTER JOIN " + Tables.EPISODES
+                + " ON " + Qualified.EPISODES_SEASON_ID + "=" + Qualified.SEASONS_ID;
+
+        String GROUP_BY = " GROUP BY " + Qualified.SEASONS_ID;
+
+        String UPDATE = "UPDATE " + Tables.SEASONS + " SET "
+                + Seasons.TOTALCOUNT + "=?,"
+                + Seasons.WATCHCOUNT + "=?,"
+                + Seasons.UNAIREDCOUNT + "=?,"
+                + Seasons.NOAIRDATECOUNT + "=?,"
+                + Seasons.TAGS + "=?"
+                + " WHERE " + Seasons._ID + "=?";
+
+        int ID = 0;
+        int TOTAL = 1;
+        int UNWATCHED_AIRED = 2;
+        int UNWATCHED_FUTURE = 3;
+        int UNWATCHED_NOAIRDATE = 4;
+        int SKIPPED = 5;
+    }
+
+    /**
+     * Recalculates the episode counters (total, unwatched aired, unwatched in the future,
+     * unwatched without air date) and the skipped tag of all matching seasons using a single
+     * grouped query, then writes them in one transaction.
+     *
+     * @param selection Optional selection on the seasons table with at most one argument, null to
+     *                  update all seasons.
+     * @param now       Time used to determine if an episode has aired.
+     * @return The number of seasons updated.
+     */
+    public static int updateUnwatchedCounts(SQLiteDatabase db, String selection,
+            String selectionArg, long now) {
+        final String nowString = String.valueOf(now);
+        final StringBuilder query = new StringBuilder(UnwatchedCountsQuery.SELECT);
+        final String[] selectionArgs;
+        if (selection != null) {
+            query.append(" WHERE ").append(selection);
+            selectionArgs = new String[] {
+                    nowString, nowString, selectionArg
+            };
+        } else {
+            selectionArgs = new String[] {
+                    nowString, nowString
+            };
+        }
+        query.append(UnwatchedCountsQuery.GROUP_BY);
+
+        int updated = 0;
+        db.beginTransaction();
+        try {
+            final Cursor counts = db.rawQuery(query.toString(), selectionArgs);
+            if (counts == null) {
+                return 0;
+            }
+            final SQLiteStatement update = db.compileStatement(UnwatchedCountsQuery.UPDATE);
+            try {
+                while (counts.moveToNext()) {
+                    update.bindLong(1, counts.getLong(UnwatchedCountsQuery.TOTAL));
+                    update.bindLong(2, counts.getLong(UnwatchedCountsQuery.UNWATCHED_AIRED));
+                    update.bindLong(3, counts.getLong(UnwatchedCountsQuery.UNWATCHED_FUTURE));
+                    update.bindLong(4, counts.getLong(UnwatchedCountsQuery.UNWATCHED_NOAIRDATE));
+                    update.bindString(5, counts.getInt(UnwatchedCountsQuery.SKIPPED) > 0
+                            ? SeasonTags.SKIPPED : SeasonTags.NONE);
+                    update.bindLong(6, counts.getLong(UnwatchedCountsQuery.ID));
+                    update.execute();
+                    updated++;
+                }
+            } finally {
+                update.close();
+                counts.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return updated;
+    }
+
+    /**
+     * Columns returned by {@link #queryNextEpisodes}.
+     */
+    public interface NextEpisodesQuery {
+        int SHOW_ID = 0;
+        int SHOW_NEXTEPISODE = 1;
+        int SHOW_NEXTAIRDATEMS = 2;
+        int SHOW_NEXTTEXT = 3;
+        int SHOW_NEXTAIRDATETEXT = 4;
+        int NEXT_ID = 5;
+        int NEXT_SEASON = 6;
+        int NEXT_NUMBER = 7;
+        int NEXT_FIRSTAIREDMS = 8;
+        int NEXT_TITLE = 9;
+    }
+
+    /**
+     * Calculates the next episode of all matching shows with a single query. The next episode is
+     * the unwatched episode airing closest after or at the same time as the last watched one, but
+     * with a different number. Uses a correlated sub-query limited to one row per show instead
+     * of a window function which is not available in SQLite on Android.
+     *
+     * @param selection  Optional selection on the shows table.
+     * @param airedAfter If not null, only considers episodes airing at or after this time.
+     *                   Otherwise any episode with an air date.
+     * @return A cursor with columns as defined in {@link NextEpisodesQuery}.
+     */
+    public static Cursor queryNextEpisodes(SQLiteDatabase db, String selection,
+            String[] selectionArgs, boolean isNoSpecials, Long airedAfter) {
+        final String lastAired = "COALESCE(lastwatched." + Episodes.FIRSTAIREDMS + ","
+                + Long.MIN_VALUE + ")";
+
+        // unqualified columns in the sub-query refer to the candidate episode
+        StringBuilder next = new StringBuilder("(SELECT ").append(Episodes._ID)
+                .append(" FROM ").append(Tables.EPISODES).append(" WHERE ")
+                // compare as text so the show index can be used
+                .append(Shows.REF_SHOW_ID).append("=CAST(").append(Qualified.SHOWS_ID)
+                .append(" AS TEXT) AND ")
+                .append(Episodes.WATCHED).append("=0 AND ((")
+                .append(Episodes.FIRSTAIREDMS).append("=").append(lastAired).append(" AND (")
+                .append(Episodes.NUMBER).append("!=COALESCE(lastwatched.")
+                .append(Episodes.NUMBER).append(",-1) OR ")
+                .append(Episodes.SEASON).append("!=COALESCE(lastwatched.")
+                .append(Episodes.SEASON).append(",-1))) OR ")
+                .append(Episodes.FIRSTAIREDMS).append(">").append(lastAired).append(")");
+        if (isNoSpecials) {
+            next.append(Episodes.SELECTION_NOSPECIALS);
+        }
+        if (airedAfter != null) {
+            next.append(" AND ").append(Episodes.FIRSTAIREDMS).append(">=").append(airedAfter);
+        } else {
+            next.append(" AND ").append(Episodes.FIRSTAIREDMS).append("!=-1");
+        }
+        // airing first, then lowest season, or if identical lowest episode number
+        next.append(" ORDER BY ").append(Episodes.FIRSTAIREDMS).append(" ASC,")
+                .append(Episodes.SEASON).append(" ASC,")
+                .append(Episodes.NUMBER).append(" ASC LIMIT 1)");
+
+        StringBuilder query = new StringBuilder("SELECT ")
+                .append(Qualified.SHOWS_ID).append(",")
+                .append(Shows.NEXTEPISODE).append(",")
+                .append(Shows.NEXTAIRDATEMS).append(",")
+                .append(Shows.NEXTTEXT).append(",")
+                .append(Shows.NEXTAIRDATETEXT).append(",")
+                .append("nextepisode.").append(Episodes._ID).append(",")
+                .append("nextepisode.").append(Episodes.SEASON).append(",")
+                .append("nextepisode.").append(Episodes.NUMBER).append(",")
+                .append("nextepisode.").append(Episodes.FIRSTAIREDMS).append(",")
+                .append("nextepisode.").append(Episodes.TITLE)
+                .append(" FROM ").append(Tables.SHOWS)
+                .append(" LEFT OUTER JOIN ").append(Tables.EPISODES).append(" AS lastwatched ON ")
+                .append("lastwatched.").append(Episodes._ID).append("=")
+                .append(Shows.LASTWATCHEDID)
+                .append(" LEFT OUTER JOIN ").append(Tables.EPISODES).append(" AS nextepisode ON ")
+                .append("nextepisode.").append(Episodes._ID).append("=").append(next);
+        if (selection != null) {
+            query.append(" WHERE ").append(selection);
+        }
+
+        return db.rawQuery(query.toString(), selectionArgs);
+    }
+
+    /**
+     * Drops and rebuilds the search table from all episodes. The search table is normally kept up
+     * to date by triggers, so only use this to repair it.
+     */
     public static void onRenewFTSTable(SQLiteDatabase db) {
         db.beginTransaction();
         try {
             db.execSQL("drop table if exists " + Tables.EPISODES_SEARCH);
-            db.execSQL(CREATE_SEARCH_TABLE);
-            db.execSQL("INSERT INTO " + Tables.EPISODES_SEARCH + "(docid," + Episodes.TITLE + ","
-                    + Episodes.OVERVIEW + ")" + " select " + Episodes._ID + "," + Episodes.TITLE
-                    + "," + Episodes.OVERVIEW + " from " + Tables.EPISODES + ";");
+            if (isFts4ContentSupported(db)) {
+                db.execSQL(CREATE_SEARCH_TABLE);
+                db.execSQL("INSERT INTO " + Tables.EPISODES_SEARCH + "(" + Tables.EPISODES_SEARCH
+                        + ") VALUES('rebuild');");
+            } else {
+                db.execSQL(CREATE_SEARCH_TABLE_FTS3);
+                db.execSQL("INSERT INTO " + Tables.EPISODES_SEARCH + "(docid," + Episodes.TITLE
+                        + "," + Episodes.OVERVIEW + ")" + " select " + Episodes._ID + ","
+                        + Episodes.TITLE + "," + Episodes.OVERVIEW + " from " + Tables.EPISODES
+                        + ";");
+            }
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -732,82 +1222,32 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
     public static Cursor search(String selection, String[] selectionArgs, SQLiteDatabase db) {
         // select
-        // _id,episodetitle,episodedescription,number,season,watched,seriestitle
-        // from (
-        // (select _id as sid,seriestitle from series)
-        // join
-        // (select
-        // _id,episodedescription,series_id,episodetitle,number,season,watched
-        // from(select rowid,snippet(searchtable) as episodedescription from
-        // searchtable where searchtable match 'QUERY')
-        // join (select
-        // _id,series_id,episodetitle,number,season,watched from episodes)
-        // on _id=rowid)
-        // on sid=series_id)
+        // episodes._id,episodes.episodetitle,snippet(searchtable) as episodedescription,
+        // number,season,watched,seriestitle
+        // from searchtable
+        // join episodes on episodes._id=searchtable.docid
+        // join series on series._id=episodes.series_id
+        // where searchtable match 'QUERY'
 
         StringBuilder query = new StringBuilder();
         // select final result columns
         query.append("SELECT ");
-        query.append(Episodes._ID).append(",");
-        query.append(Episodes.TITLE).append(",");
-        query.append(Episodes.OVERVIEW).append(",");
-        query.append(Episodes.NUMBER).append(",");
-        query.append(Episodes.SEASON).append(",");
-        query.append(Episodes.WATCHED).append(",");
-        query.append(Shows.TITLE);
-
-        query.append(" FROM ");
-        query.append("(");
-
-        // join all shows...
-        query.append("(");
-        query.append("SELECT ").append(BaseColumns._ID).append(" as sid,").append(Shows.TITLE);
-        query.append(" FROM ").append(Tables.SHOWS);
-        query.append(")");
-
-        query.append(" JOIN ");
-
-        // ...with matching episodes
-        query.append("(");
-        query.append("SELECT ");
-        query.append(Episodes._ID).append(",");
-        query.append(Episodes.TITLE).append(",");
-        query.append(Episodes.OVERVIEW).append(",");
-        query.append(Episodes.NUMBER).append(",");
-        query.append(Episodes.SEASON).append(",");
-        query.append(Episodes.WATCHED).append(",");
-        query.append(Shows.REF_SHOW_ID);
-        query.append(" FROM ");
-        // join searchtable results...
-        query.append("(");
-        query.append("SELECT ");
-        query.append(EpisodeSearch._DOCID).append(",");
+        query.append(Qualified.EPISODES_ID).append(" AS ").append(Episodes._ID).append(",");
+        query.append(Tables.EPISODES).append(".").append(Episodes.TITLE).append(" AS ")
+                .append(Episodes.TITLE).append(",");
         query.append("snippet(" + Tables.EPISODES_SEARCH + ",'<b>','</b>','...')").append(" AS ")
-                .append(Episodes.OVERVIEW);
-        query.append(" FROM ").append(Tables.EPISODES_SEARCH);
-        query.append(" WHERE ").append(Tables.EPISODES_SEARCH).append(" MATCH ?");
-        query.append(")");
-        query.append(" JOIN ");
-        // ...with episodes table
-        query.append("(");
-        query.append("SELECT ");
-        query.append(Episodes._ID).append(",");
-        query.append(Episodes.TITLE).append(",");
+                .append(Episodes.OVERVIEW).append(",");
         query.append(Episodes.NUMBER).append(",");
         query.append(Episodes.SEASON).append(",");
         query.append(Episodes.WATCHED).append(",");
-        query.append(Shows.REF_SHOW_ID);
-        query.append(" FROM ").append(Tables.EPISODES);
-        query.append(")");
-        query.append(" ON ").append(Episodes._ID).append("=").append(EpisodeSearch._DOCID);
+        query.append(Shows.TITLE);
 
-        query.append(")");
-        query.append(" ON ").append("sid=").append(Shows.REF_SHOW_ID);
-        query.append(")");
+        // join matching search rows with their episode and show
+        appendSearchJoin(query);
 
         // append given selection
         if (selection != null) {
-            query.append(" WHERE ");
+            query.append(" AND ");
             query.append("(").append(selection).append(")");
         }
 
@@ -824,15 +1264,12 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
     }
 
     public static Cursor getSuggestions(String searchterm, SQLiteDatabase db) {
-        StringBuilder query = new StringBuilder("select _id," + Episodes.TITLE + " as "
-                + SearchManager.SUGGEST_COLUMN_TEXT_1 + "," + Shows.TITLE + " as "
-                + SearchManager.SUGGEST_COLUMN_TEXT_2 + "," + "_id as "
-                + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID + " from ((select _id as sid,"
-                + Shows.TITLE + " from " + Tables.SHOWS + ")" + " join " + "(select _id,"
-                + Episodes.TITLE + "," + Shows.REF_SHOW_ID + " from " + "(select docid" + " from "
-                + Tables.EPISODES_SEARCH + " where " + Tables.EPISODES_SEARCH + " match " + "?)"
-                + " join " + "(select _id," + Episodes.TITLE + "," + Shows.REF_SHOW_ID
-                + " from episodes)" + "on _id=docid)" + "on sid=" + Shows.REF_SHOW_ID + ")");
+        StringBuilder query = new StringBuilder("SELECT " + Qualified.EPISODES_ID + " AS _id,"
+                + Tables.EPISODES + "." + Episodes.TITLE + " AS "
+                + SearchManager.SUGGEST_COLUMN_TEXT_1 + "," + Shows.TITLE + " AS "
+                + SearchManager.SUGGEST_COLUMN_TEXT_2 + "," + Qualified.EPISODES_ID + " AS "
+                + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID);
+        appendSearchJoin(query);
 
         // search for anything starting with the given search term
         return db.rawQuery(query.toString(), new String[] {
@@ -840,4 +1277,19 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
         });
     }
 
+    /**
+     * Appends FROM and WHERE clauses joining search table matches with their episode and show.
+     * Expects the search term as first selection argument.
+     */
+    private static void appendSearchJoin(StringBuilder query) {
+        query.append(" FROM ").append(Tables.EPISODES_SEARCH);
+        query.append(" JOIN ").append(Tables.EPISODES);
+        query.append(" ON ").append(Qualified.EPISODES_ID).append("=")
+                .append(Tables.EPISODES_SEARCH).append(".").append(EpisodeSearch._DOCID);
+        query.append(" JOIN ").append(Tables.SHOWS);
+        query.append(" ON ").append(Qualified.SHOWS_ID).append("=")
+                .append(Qualified.EPISODES_SHOW_ID);
+        query.append(" WHERE ").append(Tables.EPISODES_SEARCH).append(" MATCH ?");
+    }
+
 }
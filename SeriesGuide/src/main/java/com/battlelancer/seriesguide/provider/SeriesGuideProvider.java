@@ -30,21 +30,26 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.provider.BaseColumns;
 import android.util.Log;
 
+import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeFlagJournal;
 import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeSearch;
 import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesContract.ListItems;
 import com.battlelancer.seriesguide.provider.SeriesContract.Lists;
 import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Qualified;
 import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
 import com.battlelancer.seriesguide.ui.SeriesGuidePreferences;
 import com.battlelancer.seriesguide.util.SelectionBuilder;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class SeriesGuideProvider extends ContentProvider {
 
@@ -58,6 +63,7 @@ public class SeriesGuideProvider extends ContentProvider {
     private static final int SHOWS_ID = 101;
     private static final int SHOWS_FILTERED = 102;
     private static final int SHOWS_WITH_EPISODE = 103;
+    private static final int SHOWS_NEXT_EPISODES = 104;
 
     private static final int EPISODES = 200;
     private static final int EPISODES_ID = 201;
@@ -87,6 +93,8 @@ public class SeriesGuideProvider extends ContentProvider {
 
     private static final int RENEW_FTSTABLE = 900;
 
+    private static final int EPISODE_FLAG_JOURNAL = 1000;
+
     /**
      * Build and return a {@link UriMatcher} that catches all {@link Uri}
      * variations supported by this {@link ContentProvider}.
@@ -101,6 +109,8 @@ public class SeriesGuideProvider extends ContentProvider {
                 + "/*", SHOWS_FILTERED);
         matcher.addURI(authority, SeriesContract.PATH_SHOWS + "/"
                 + SeriesContract.PATH_WITH_EPISODE, SHOWS_WITH_EPISODE);
+        matcher.addURI(authority, SeriesContract.PATH_SHOWS + "/"
+                + SeriesContract.PATH_NEXT_EPISODES, SHOWS_NEXT_EPISODES);
         matcher.addURI(authority, SeriesContract.PATH_SHOWS + "/*", SHOWS_ID);
 
         // Episodes
@@ -148,9 +158,26 @@ public class SeriesGuideProvider extends ContentProvider {
         // Ops
         matcher.addURI(authority, SeriesContract.PATH_RENEWFTSTABLE, RENEW_FTSTABLE);
 
+        // Journal
+        matcher.addURI(authority, SeriesContract.PATH_EPISODE_FLAG_JOURNAL,
+                EPISODE_FLAG_JOURNAL);
+
         return matcher;
     }
 
+    /**
+     * Every provider method using the database holds the read lock while it runs. {@link
+     * #lockAndCloseDatabase()} takes the write lock, so the database file can be replaced while
+     * no write is running. Readers are not isolated: cursors returned earlier may keep reading
+     * the replaced file until they are reloaded, see {@link StagingDatabase#swapIn()}.
+     */
+    private static final ReentrantReadWriteLock sDatabaseLock = new ReentrantReadWriteLock();
+
+    /**
+     * The helper of the provider, there is only one provider instance per process.
+     */
+    private static SeriesGuideDatabase sOpenHelper;
+
     private SeriesGuideDatabase mOpenHelper;
 
     @Override
@@ -158,6 +185,7 @@ public class SeriesGuideProvider extends ContentProvider {
         final Context context = getContext();
         sUriMatcher = buildUriMatcher(context);
         mOpenHelper = new SeriesGuideDatabase(context);
+        sOpenHelper = mOpenHelper;
         PreferenceManager.getDefaultSharedPreferences(context)
                 .registerOnSharedPreferenceChangeListener(mImportListener);
         return true;
@@ -178,6 +206,22 @@ public class SeriesGuideProvider extends ContentProvider {
         }
     };
 
+    /**
+     * Waits until running database operations of the provider are done, blocks new ones and
+     * closes the database, see {@link StagingDatabase#swapIn()}. The next operation after {@link
+     * #unlockDatabase()} opens the database again.
+     */
+    static void lockAndCloseDatabase() {
+        sDatabaseLock.writeLock().lock();
+        if (sOpenHelper != null) {
+            sOpenHelper.close();
+        }
+    }
+
+    static void unlockDatabase() {
+        sDatabaseLock.writeLock().unlock();
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -190,6 +234,8 @@ public class SeriesGuideProvider extends ContentProvider {
                 return Shows.CONTENT_TYPE;
             case SHOWS_WITH_EPISODE:
                 return Shows.CONTENT_TYPE;
+            case SHOWS_NEXT_EPISODES:
+                return Shows.CONTENT_TYPE;
             case EPISODES:
                 return Episodes.CONTENT_TYPE;
             case EPISODES_OFSHOW:
@@ -227,6 +273,8 @@ public class SeriesGuideProvider extends ContentProvider {
             case RENEW_FTSTABLE:
                 // however there is nothing returned
                 return Episodes.CONTENT_TYPE;
+            case EPISODE_FLAG_JOURNAL:
+                return EpisodeFlagJournal.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -234,6 +282,15 @@ public class SeriesGuideProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        sDatabaseLock.readLock().lock();
+        try {
+            return insertLocked(uri, values);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Uri insertLocked(Uri uri, ContentValues values) {
         if (LOGV)
             Log.v(TAG, "insert(uri=" + uri + ", values=" + values.toString() + ")");
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -273,6 +330,16 @@ public class SeriesGuideProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        sDatabaseLock.readLock().lock();
+        try {
+            return queryLocked(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Cursor queryLocked(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
         if (LOGV) {
             Log.v(TAG, "query(uri=" + uri + ", proj=" + Arrays.toString(projection) + ")");
         }
@@ -298,6 +365,14 @@ public class SeriesGuideProvider extends ContentProvider {
                 }
                 return SeriesGuideDatabase.getSuggestions(selectionArgs[0], db);
             }
+            case SHOWS_NEXT_EPISODES: {
+                final boolean isNoSpecials = "true".equals(
+                        uri.getQueryParameter(SeriesContract.QUERY_PARAMETER_NO_SPECIALS));
+                final String airedAfter = uri.getQueryParameter(
+                        SeriesContract.QUERY_PARAMETER_AIRED_AFTER);
+                return SeriesGuideDatabase.queryNextEpisodes(db, selection, selectionArgs,
+                        isNoSpecials, airedAfter != null ? Long.parseLong(airedAfter) : null);
+            }
             default: {
                 // Most cases are handled with simple SelectionBuilder
                 final SelectionBuilder builder = buildExpandedSelection(uri, match);
@@ -312,6 +387,16 @@ public class SeriesGuideProvider extends ContentProvider {
     /** {@inheritDoc} */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        sDatabaseLock.readLock().lock();
+        try {
+            return updateLocked(uri, values, selection, selectionArgs);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int updateLocked(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
         if (LOGV)
             Log.v(TAG, "update(uri=" + uri + ", values=" + values.toString() + ")");
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -324,6 +409,15 @@ public class SeriesGuideProvider extends ContentProvider {
     /** {@inheritDoc} */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        sDatabaseLock.readLock().lock();
+        try {
+            return deleteLocked(uri, selection, selectionArgs);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int deleteLocked(Uri uri, String selection, String[] selectionArgs) {
         if (LOGV)
             Log.v(TAG, "delete(uri=" + uri + ")");
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -333,6 +427,44 @@ public class SeriesGuideProvider extends ContentProvider {
         return retVal;
     }
 
+    /**
+     * Runs provider methods which neither fit query nor update, see {@link
+     * SeriesContract#METHOD_UPDATE_UNWATCHED_COUNTS}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        sDatabaseLock.readLock().lock();
+        try {
+            return callLocked(method, arg, extras);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Bundle callLocked(String method, String arg, Bundle extras) {
+        if (SeriesContract.METHOD_UPDATE_UNWATCHED_COUNTS.equals(method)) {
+            if (extras == null || !extras.containsKey(SeriesContract.EXTRA_NOW)) {
+                throw new IllegalArgumentException("Current time is required for " + method);
+            }
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            final long now = extras.getLong(SeriesContract.EXTRA_NOW);
+            final String seasonId = extras.getString(SeriesContract.EXTRA_SEASON_ID);
+            final String showId = extras.getString(SeriesContract.EXTRA_SHOW_ID);
+            if (seasonId != null) {
+                SeriesGuideDatabase.updateUnwatchedCounts(db, Qualified.SEASONS_ID + "=?",
+                        seasonId, now);
+            } else if (showId != null) {
+                SeriesGuideDatabase.updateUnwatchedCounts(db, Qualified.SEASONS_SHOW_ID + "=?",
+                        showId, now);
+            } else {
+                SeriesGuideDatabase.updateUnwatchedCounts(db, null, null, now);
+            }
+            getContext().getContentResolver().notifyChange(Seasons.CONTENT_URI, null);
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
     /**
      * Apply the given set of {@link ContentProviderOperation}, executing inside
      * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
@@ -341,6 +473,16 @@ public class SeriesGuideProvider extends ContentProvider {
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
+        sDatabaseLock.readLock().lock();
+        try {
+            return applyBatchLocked(operations);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private ContentProviderResult[] applyBatchLocked(
+            ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         db.beginTransaction();
         try {
@@ -359,12 +501,27 @@ public class SeriesGuideProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
+        sDatabaseLock.readLock().lock();
+        try {
+            return bulkInsertLocked(uri, values);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int bulkInsertLocked(Uri uri, ContentValues[] values) {
         /*
          * A more efficient version of bulkInsert which matches the URI only
          * once.
          */
         int numValues;
         final int match = sUriMatcher.match(uri);
+        final boolean isUpsert = "true".equals(
+                uri.getQueryParameter(SeriesContract.QUERY_PARAMETER_UPSERT));
+        if (isUpsert) {
+            // notify observers of the plain uri
+            uri = uri.buildUpon().clearQuery().build();
+        }
         switch (match) {
             case SHOWS: {
                 numValues = bulkInsertHelper(Tables.SHOWS, values);
@@ -372,12 +529,14 @@ public class SeriesGuideProvider extends ContentProvider {
                 break;
             }
             case SEASONS: {
-                numValues = bulkInsertHelper(Tables.SEASONS, values);
+                numValues = bulkInsertStatementHelper(Tables.SEASONS,
+                        isUpsert ? Seasons._ID : null, values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 break;
             }
             case EPISODES: {
-                numValues = bulkInsertHelper(Tables.EPISODES, values);
+                numValues = bulkInsertStatementHelper(Tables.EPISODES,
+                        isUpsert ? Episodes._ID : null, values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 break;
             }
@@ -387,7 +546,8 @@ public class SeriesGuideProvider extends ContentProvider {
                 break;
             }
             case LIST_ITEMS: {
-                numValues = bulkInsertHelper(Tables.LIST_ITEMS, values);
+                numValues = bulkInsertStatementHelper(Tables.LIST_ITEMS,
+                        isUpsert ? ListItems.LIST_ITEM_ID : null, values);
                 getContext().getContentResolver().notifyChange(uri, null);
                 break;
             }
@@ -415,6 +575,71 @@ public class SeriesGuideProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Like {@link #bulkInsertHelper(String, ContentValues[])}, but uses compiled statements which
+     * is faster for large numbers of rows.
+     *
+     * @param keyColumn If not null, rows where this column matches are updated instead.
+     */
+    private int bulkInsertStatementHelper(String table, String keyColumn,
+            ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            int numValues = new BulkInserter(db, table, keyColumn).execute(values);
+            db.setTransactionSuccessful();
+            return numValues;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the rows with the given ids with the given values in a single transaction,
+     * re-using one compiled statement per set of columns. Only for callers in the same process,
+     * see {@link com.battlelancer.seriesguide.util.DBUtils#updateEpisodes} and {@link
+     * com.battlelancer.seriesguide.util.DBUtils#updateLatestEpisodes}.
+     *
+     * @param uri {@link Shows#CONTENT_URI} or {@link Episodes#CONTENT_URI}.
+     * @param ids TVDb ids of the rows, {@code ids[i]} is updated with {@code values[i]}.
+     * @return The number of rows changed.
+     */
+    public int bulkUpdate(Uri uri, long[] ids, ContentValues[] values) {
+        sDatabaseLock.readLock().lock();
+        try {
+            return bulkUpdateLocked(uri, ids, values);
+        } finally {
+            sDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int bulkUpdateLocked(Uri uri, long[] ids, ContentValues[] values) {
+        final String table;
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case SHOWS:
+                table = Tables.SHOWS;
+                break;
+            case EPISODES:
+                table = Tables.EPISODES;
+                break;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final int numValues;
+        db.beginTransaction();
+        try {
+            numValues = new BulkInserter(db, table, BaseColumns._ID).executeUpdates(ids, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        return numValues;
+    }
+
     /**
      * Build a simple {@link SelectionBuilder} to match the requested
      * {@link Uri}. This is usually enough to support {@link #insert},
@@ -477,6 +702,9 @@ public class SeriesGuideProvider extends ContentProvider {
                 return builder.table(Tables.LIST_ITEMS).where(ListItems.LIST_ITEM_ID + "=?",
                         list_item_id);
             }
+            case EPISODE_FLAG_JOURNAL: {
+                return builder.table(Tables.EPISODE_FLAG_JOURNAL);
+            }
             default: {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -576,6 +804,9 @@ public class SeriesGuideProvider extends ContentProvider {
             case LIST_ITEMS_WITH_DETAILS: {
                 return builder.table(Tables.LIST_ITEMS_WITH_DETAILS);
             }
+            case EPISODE_FLAG_JOURNAL: {
+                return builder.table(Tables.EPISODE_FLAG_JOURNAL);
+            }
             default: {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
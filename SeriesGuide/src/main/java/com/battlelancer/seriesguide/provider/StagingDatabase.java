@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.provider;
+
+import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesContract.ListItems;
+import com.battlelancer.seriesguide.provider.SeriesContract.Lists;
+import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
+import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A new, empty database in a separate file to import into. All rows are written in a single
+ * transaction using compiled statements. Only once {@link #swapIn()} is called the staging file
+ * replaces the database of {@link SeriesGuideProvider}, so a failed or interrupted import leaves
+ * the current database untouched.
+ *
+ * <p> Always call {@link #close()} when done, it removes the staging file if it was not swapped
+ * in.
+ */
+public class StagingDatabase {
+
+    private static final String TAG = "StagingDatabase";
+
+    private static final String DATABASE_NAME = SeriesGuideDatabase.DATABASE_NAME + "_staging";
+
+    private final Context mContext;
+
+    private final SeriesGuideDatabase mHelper;
+
+    private final SQLiteDatabase mDb;
+
+    private boolean mIsSwappedIn;
+
+    public StagingDatabase(Context context) {
+        mContext = context.getApplicationContext();
+
+        // remove leftovers of an interrupted import
+        mContext.deleteDatabase(DATABASE_NAME);
+
+        mHelper = new SeriesGuideDatabase(mContext, DATABASE_NAME);
+        mDb = mHelper.getWritableDatabase();
+        mDb.beginTransaction();
+    }
+
+    public void insertShow(ContentValues values) {
+        insert(Tables.SHOWS, Shows._ID, new ContentValues[] {
+                values
+        });
+    }
+
+    /**
+     * Inserts seasons, updates seasons with the same id instead.
+     */
+    public void insertSeasons(ContentValues[] values) {
+        insert(Tables.SEASONS, Seasons._ID, values);
+    }
+
+    /**
+     * Inserts episodes, updates episodes with the same id instead.
+     */
+    public void insertEpisodes(ContentValues[] values) {
+        insert(Tables.EPISODES, Episodes._ID, values);
+    }
+
+    public void insertList(ContentValues values) {
+        insert(Tables.LISTS, Lists.LIST_ID, new ContentValues[] {
+                values
+        });
+    }
+
+    /**
+     * Inserts list items, updates list items with the same id instead.
+     */
+    public void insertListItems(ContentValues[] values) {
+        insert(Tables.LIST_ITEMS, ListItems.LIST_ITEM_ID, values);
+    }
+
+    private void insert(String table, String keyColumn, ContentValues[] values) {
+        new BulkInserter(mDb, table, keyColumn).execute(values);
+    }
+
+    /**
+     * Commits all inserted rows and replaces the current database with the staging database.
+     * Waits for running database operations of {@link SeriesGuideProvider} and closes its
+     * database first, so no change is written to the replaced file. The provider opens the new
+     * database with its next operation. Cursors queried before may still read the replaced file,
+     * so all content of the provider is reported as changed to reload them.
+     */
+    public void swapIn() throws IOException {
+        mDb.setTransactionSuccessful();
+        mDb.endTransaction();
+        mHelper.close();
+
+        File stagingFile = mContext.getDatabasePath(DATABASE_NAME);
+        File databaseFile = mContext.getDatabasePath(SeriesGuideDatabase.DATABASE_NAME);
+        SeriesGuideProvider.lockAndCloseDatabase();
+        try {
+            // a journal of the replaced database would be rolled back into the new one
+            new File(databaseFile.getPath() + "-journal").delete();
+            // a rename within the same directory is atomic
+            if (!stagingFile.renameTo(databaseFile)) {
+                throw new IOException("Could not replace " + databaseFile + " with "
+                        + stagingFile);
+            }
+        } finally {
+            SeriesGuideProvider.unlockDatabase();
+        }
+        mIsSwappedIn = true;
+        Log.d(TAG, "Replaced database with staging database");
+
+        mContext.getContentResolver().notifyChange(SeriesContract.BASE_CONTENT_URI, null);
+    }
+
+    /**
+     * Discards the staging database unless it was swapped in.
+     */
+    public void close() {
+        if (mIsSwappedIn) {
+            return;
+        }
+        if (mDb.isOpen() && mDb.inTransaction()) {
+            // roll back
+            mDb.endTransaction();
+        }
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+}
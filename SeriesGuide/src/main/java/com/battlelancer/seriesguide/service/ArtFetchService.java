@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.service;
+
+import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.util.ArtFetchQueue;
+import com.battlelancer.seriesguide.util.Utils;
+import com.battlelancer.thetvdbapi.TheTVDB;
+import com.uwetrottmann.androidutils.AndroidUtils;
+
+import android.annotation.TargetApi;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the images in the {@link ArtFetchQueue}. Several images are downloaded in parallel
+ * over kept alive connections, fewer on metered connections. The service stops once the queue is
+ * empty or the device is no longer on an allowed connection, the queue keeps remaining images
+ * until the service is started again.
+ */
+public class ArtFetchService extends Service {
+
+    private static final String TAG = "ArtFetchService";
+
+    /**
+     * Parallel downloads on unmetered connections, like Wi-Fi.
+     */
+    private static final int MAX_CONNECTIONS = 4;
+
+    /**
+     * Parallel downloads on metered connections, like mobile data.
+     */
+    private static final int METERED_CONNECTIONS = 1;
+
+    private ArtFetchQueue mQueue;
+
+    private ExecutorService mExecutor;
+
+    private Thread mWorker;
+
+    private int mLastStartId;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mQueue = ArtFetchQueue.getInstance(getApplicationContext());
+        mExecutor = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+        Log.i(TAG, "Starting service.");
+    }
+
+    @Override
+    public synchronized int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if (mWorker == null) {
+            startWorker();
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdownNow();
+    }
+
+    private void fetchAll() {
+        final Context context = getApplicationContext();
+        int fetchedCount = 0;
+
+        while (true) {
+            if (!Utils.isAllowedConnection(context)) {
+                Log.d(TAG, "Not on an allowed connection, fetching later.");
+                break;
+            }
+
+            // pick the batch size again for each batch, the connection may have changed
+            int connections = isActiveNetworkMetered(context) ? METERED_CONNECTIONS
+                    : MAX_CONNECTIONS;
+            List<ArtFetchQueue.Entry> batch = mQueue.peek(connections);
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            List<Callable<Boolean>> downloads = new ArrayList<>(batch.size());
+            for (final ArtFetchQueue.Entry entry : batch) {
+                downloads.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return TheTVDB.fetchArt(entry.path, entry.isPoster, context);
+                    }
+                });
+            }
+            List<ArtFetchQueue.Entry> failed = new ArrayList<>();
+            try {
+                List<Future<Boolean>> results = mExecutor.invokeAll(downloads);
+                for (int i = 0; i < results.size(); i++) {
+                    if (isFetched(context, results.get(i))) {
+                        fetchedCount++;
+                    } else {
+                        failed.add(batch.get(i));
+                    }
+                }
+            } catch (InterruptedException e) {
+                // service was destroyed, the batch is fetched again next time
+                break;
+            }
+
+            // only remove after trying, so a killed process resumes with this batch
+            mQueue.retry(failed);
+            mQueue.remove(batch.size());
+        }
+
+        if (fetchedCount > 0) {
+            // let lists load the new posters
+            getContentResolver().notifyChange(Shows.CONTENT_URI, null);
+        }
+        stop();
+    }
+
+    private static boolean isFetched(Context context, Future<Boolean> download)
+            throws InterruptedException {
+        try {
+            return download.get();
+        } catch (ExecutionException e) {
+            Utils.trackExceptionAndLog(context, TAG, e);
+            return false;
+        }
+    }
+
+    private void startWorker() {
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                fetchAll();
+            }
+        }, TAG);
+        mWorker.start();
+    }
+
+    private synchronized void stop() {
+        if (mExecutor.isShutdown()) {
+            // already destroyed
+            return;
+        }
+        if (!stopSelfResult(mLastStartId)) {
+            // images were queued while finishing up
+            startWorker();
+            return;
+        }
+        Log.i(TAG, "Stopping service.");
+        mWorker = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isActiveNetworkMetered(Context context) {
+        if (AndroidUtils.isJellyBeanOrHigher()) {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context
+                    .getSystemService(Context.CONNECTIVITY_SERVICE);
+            return connectivityManager.isActiveNetworkMetered();
+        }
+        return !AndroidUtils.isWifiConnected(context);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+}
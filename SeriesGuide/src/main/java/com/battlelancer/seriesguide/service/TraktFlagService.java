@@ -22,8 +22,8 @@ import com.battlelancer.seriesguide.ui.SeriesGuidePreferences;
 import com.battlelancer.seriesguide.util.FlagTapeEntry;
 import com.battlelancer.seriesguide.util.FlagTapeEntryQueue;
 import com.battlelancer.seriesguide.util.FlagTapedTask;
-import com.battlelancer.seriesguide.util.FlagTapedTask.Callback;
 import com.battlelancer.seriesguide.util.ServiceUtils;
+import com.battlelancer.seriesguide.util.TraktSync;
 import com.jakewharton.trakt.Trakt;
 import com.jakewharton.trakt.services.ShowService;
 
@@ -33,109 +33,256 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.format.DateUtils;
 import android.util.Log;
 
-public class TraktFlagService extends Service implements Callback {
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the entries of the {@link FlagTapeEntryQueue} to trakt. A single worker thread sends one
+ * batch at a time and goes on with the next one right away, so entries are never sent in
+ * parallel. Failed requests are retried by the worker after a short delay, then through an alarm
+ * with exponential back off.
+ */
+public class TraktFlagService extends Service {
 
     private static final String TAG = "TraktFlagService";
 
     private static final long MAX_RETRY_INTERVAL = 15 * DateUtils.MINUTE_IN_MILLIS;
 
+    /**
+     * Delays before the worker retries a failed entry. Once used up the service stops and an
+     * alarm restarts it.
+     */
+    private static final long[] RETRY_DELAYS = {
+            5 * DateUtils.SECOND_IN_MILLIS, 30 * DateUtils.SECOND_IN_MILLIS
+    };
+
+    /**
+     * How many queued entries are looked at to merge them into one request.
+     */
+    private static final int MAX_BATCH_ENTRIES = 50;
+
+    /**
+     * How many episodes are sent with one request at most.
+     */
+    private static final int MAX_BATCH_EPISODES = 100;
+
+    private static final int MSG_PROCESS_QUEUE = 1;
+
     private FlagTapeEntryQueue mQueue;
 
-    private boolean running;
+    private HandlerThread mWorkerThread;
+
+    private Handler mWorker;
+
+    private volatile int mLastStartId;
+
+    // only accessed by the worker thread
+
+    private int mBatchLimit = MAX_BATCH_ENTRIES;
+
+    private int mRetryCount;
+
+    private int mBatchCount;
+
+    private int mEntryCount;
+
+    private long mTotalTime;
 
     @Override
     public void onCreate() {
         super.onCreate();
         mQueue = FlagTapeEntryQueue.getInstance(getApplicationContext());
+
+        mWorkerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorker = new WorkerHandler(mWorkerThread.getLooper());
         Log.i(TAG, "Starting service.");
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        executeNext();
+        mLastStartId = startId;
+        // coalesce start requests, the worker drains the whole queue anyhow
+        mWorker.removeMessages(MSG_PROCESS_QUEUE);
+        mWorker.sendEmptyMessage(MSG_PROCESS_QUEUE);
         return START_STICKY;
     }
 
-    private void executeNext() {
-        if (running) {
-            return;
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mWorkerThread.quit();
+        mQueue.setDraining(false);
+    }
+
+    private final class WorkerHandler extends Handler {
+
+        WorkerHandler(Looper looper) {
+            super(looper);
         }
 
-        FlagTapeEntry entry = mQueue.peek();
-        if (entry != null) {
-            running = true;
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_PROCESS_QUEUE) {
+                processQueue();
+            }
+        }
+    }
+
+    /**
+     * Sends batches until the queue is empty or sending fails. Runs on the worker thread.
+     */
+    private void processQueue() {
+        mQueue.setDraining(true);
+        while (true) {
+            List<FlagTapeEntry> batch = buildBatch(mQueue.peek(mBatchLimit));
+            if (batch.isEmpty()) {
+                break;
+            }
 
             // build a new FlagTapedTask and execute it
             Trakt manager = ServiceUtils.getTraktServiceManagerWithAuth(
                     getApplicationContext(), false);
             if (manager == null) {
-                stop();
-                return;
+                break;
             }
             ShowService showService = manager.showService();
 
-            new FlagTapedTask(getApplicationContext(), showService, entry.action, entry.showId,
-                    entry.flags, entry.isFlag)
-                    .execute(this);
-        } else {
-            stop();
+            long startTime = SystemClock.elapsedRealtime();
+            FlagTapedTask.Result result = new FlagTapedTask(getApplicationContext(), showService,
+                    batch).execute();
+            long duration = SystemClock.elapsedRealtime() - startTime;
+
+            if (result == FlagTapedTask.Result.SUCCESS) {
+                onSuccess(batch, duration);
+                continue;
+            }
+
+            Log.d(TAG, "Failed to send batch of " + batch.size() + " entries after " + duration
+                    + " ms");
+            if (result == FlagTapedTask.Result.NOT_CONNECTED) {
+                /*
+                 * If the device is not connected to an allowed connection we rely on
+                 * BaseNavDrawerActivity.onAutoUpdate() to start this service again at most every
+                 * 15 minutes when the user opens the app.
+                 */
+                break;
+            }
+
+            // The user has disconnected from trakt in the meanwhile
+            if (!TraktSettings.hasTraktCredentials(getApplicationContext())) {
+                // clear all remaining tasks
+                while (mQueue.size() > 0) {
+                    mQueue.remove();
+                }
+                break;
+            }
+
+            /*
+             * trakt rejects a merged request as a whole. Send its entries one by one, so a single
+             * entry trakt does not accept can not hold back the others.
+             */
+            if (batch.size() > 1) {
+                mBatchLimit = 1;
+                continue;
+            }
+
+            if (mRetryCount < RETRY_DELAYS.length) {
+                // try again soon, stay alive until then
+                mQueue.setDraining(false);
+                mWorker.sendEmptyMessageDelayed(MSG_PROCESS_QUEUE, RETRY_DELAYS[mRetryCount++]);
+                return;
+            }
+
+            scheduleRetry();
+            break;
         }
-    }
 
-    private void stop() {
-        Log.i(TAG, "Stopping service.");
-        stopSelf();
+        mQueue.setDraining(false);
+        stop();
     }
 
-    @Override
-    public void onSuccess() {
-        running = false;
-        mQueue.remove();
-        executeNext();
+    private void onSuccess(List<FlagTapeEntry> batch, long duration) {
+        mBatchCount++;
+        mEntryCount += batch.size();
+        mTotalTime += duration;
+        Log.d(TAG, "Sent batch of " + batch.size() + " entries in " + duration + " ms");
+
+        for (FlagTapeEntry entry : batch) {
+            mQueue.remove();
+            // trakt has the change, a manual upload does not have to send it again
+            TraktSync.trimFlagJournal(getApplicationContext(), entry.showId,
+                    entry.journalStart, entry.journalEnd);
+        }
+        // go back to merging entries if the last batch was split up
+        mBatchLimit = MAX_BATCH_ENTRIES;
+        if (mRetryCount > 0 || mBatchCount == 1) {
+            // sending works again, start backing off from the beginning next time
+            mRetryCount = 0;
+            PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit()
+                    .remove(SeriesGuidePreferences.KEY_TAPE_INTERVAL).commit();
+        }
     }
 
-    @Override
-    public void onFailure(boolean isNotConnected) {
-        // The user has disconnected from trakt in the meanwhile
-        if (!TraktSettings.hasTraktCredentials(getApplicationContext())) {
-            // clear all remaining tasks
-            while (mQueue.size() > 0) {
-                mQueue.remove();
+    /**
+     * Returns the first entry and all following entries which can be sent along with it, up to
+     * {@link #MAX_BATCH_EPISODES} episodes.
+     */
+    private static List<FlagTapeEntry> buildBatch(List<FlagTapeEntry> entries) {
+        List<FlagTapeEntry> batch = new ArrayList<>();
+        int episodeCount = 0;
+        for (FlagTapeEntry entry : entries) {
+            if (!batch.isEmpty() && (!FlagTapedTask.canMerge(batch.get(0), entry)
+                    || episodeCount + entry.flags.size() > MAX_BATCH_EPISODES)) {
+                break;
             }
+            batch.add(entry);
+            episodeCount += entry.flags.size();
         }
+        return batch;
+    }
 
-        /*
-         * If the device is not connected to an allowed connection we rely on
-         * BaseNavDrawerActivity.onAutoUpdate() to start this service again at most every
-         * 15 minutes when the user opens the app.
-         */
-
-        // back off exponentially if something went wrong (and we are
-        // not just offline)
-        if (!isNotConnected) {
-            SharedPreferences prefs = PreferenceManager
-                    .getDefaultSharedPreferences(getApplicationContext());
-            long interval = prefs.getLong(SeriesGuidePreferences.KEY_TAPE_INTERVAL,
-                    DateUtils.MINUTE_IN_MILLIS);
-            if ((interval *= 2) > MAX_RETRY_INTERVAL) {
-                interval = MAX_RETRY_INTERVAL;
-            }
-            prefs.edit().putLong(SeriesGuidePreferences.KEY_TAPE_INTERVAL, interval).commit();
+    /**
+     * Restarts the service through an alarm, backing off exponentially.
+     */
+    private void scheduleRetry() {
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(getApplicationContext());
+        long interval = prefs.getLong(SeriesGuidePreferences.KEY_TAPE_INTERVAL,
+                DateUtils.MINUTE_IN_MILLIS);
+        if ((interval *= 2) > MAX_RETRY_INTERVAL) {
+            interval = MAX_RETRY_INTERVAL;
+        }
+        prefs.edit().putLong(SeriesGuidePreferences.KEY_TAPE_INTERVAL, interval).commit();
 
-            long wakeUpTime = System.currentTimeMillis() + interval;
+        long wakeUpTime = System.currentTimeMillis() + interval;
 
-            AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-            Intent i = new Intent(this, OnTapeRestartReceiver.class);
-            PendingIntent pi = PendingIntent.getBroadcast(this, 0, i, 0);
-            am.set(AlarmManager.RTC, wakeUpTime, pi);
-        }
+        AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        Intent i = new Intent(this, OnTapeRestartReceiver.class);
+        PendingIntent pi = PendingIntent.getBroadcast(this, 0, i, 0);
+        am.set(AlarmManager.RTC, wakeUpTime, pi);
+    }
 
-        stop();
+    private void stop() {
+        if (mBatchCount > 0) {
+            Log.d(TAG, "Sent " + mEntryCount + " entries with " + mBatchCount + " requests in "
+                    + mTotalTime + " ms");
+        }
+        // keeps running if started again in the meanwhile, the worker is then triggered again
+        if (stopSelfResult(mLastStartId)) {
+            Log.i(TAG, "Stopping service.");
+        }
     }
 
     @Override
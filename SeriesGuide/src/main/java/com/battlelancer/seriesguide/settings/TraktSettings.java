@@ -25,6 +25,9 @@ public class TraktSettings {
     public static final String KEY_SYNC_UNWATCHED_EPISODES
             = "com.battlelancer.seriesguide.syncunseenepisodes";
 
+    public static final String KEY_FLAG_JOURNAL_COMPLETE
+            = "com.battlelancer.seriesguide.trakt.flagjournalcomplete";
+
     /**
      * Checks if there are a non-empty trakt username and password. Returns false if either one is
      * empty.
@@ -77,4 +80,20 @@ public class TraktSettings {
                 .getBoolean(KEY_SYNC_UNWATCHED_EPISODES, false);
     }
 
+    /**
+     * Whether all flags were uploaded to trakt once, so the episode flag journal holds all changes
+     * trakt does not know about yet.
+     */
+    public static boolean isFlagJournalComplete(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(KEY_FLAG_JOURNAL_COMPLETE, false);
+    }
+
+    public static void setFlagJournalComplete(Context context, boolean isComplete) {
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .edit()
+                .putBoolean(KEY_FLAG_JOURNAL_COMPLETE, isComplete)
+                .commit();
+    }
+
 }
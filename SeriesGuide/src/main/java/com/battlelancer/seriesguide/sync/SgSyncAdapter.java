@@ -9,9 +9,11 @@ import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
 import com.battlelancer.seriesguide.settings.TraktSettings;
 import com.battlelancer.seriesguide.settings.UpdateSettings;
 import com.battlelancer.seriesguide.ui.SeriesGuidePreferences;
+import com.battlelancer.seriesguide.util.ArtFetchQueue;
 import com.battlelancer.seriesguide.util.DBUtils;
 import com.battlelancer.seriesguide.util.ServiceUtils;
 import com.battlelancer.seriesguide.util.TaskManager;
+import com.battlelancer.seriesguide.util.TraktSync;
 import com.battlelancer.seriesguide.util.Utils;
 import com.battlelancer.thetvdbapi.TheTVDB;
 import com.jakewharton.trakt.Trakt;
@@ -24,8 +26,6 @@ import com.uwetrottmann.androidutils.AndroidUtils;
 import com.uwetrottmann.seriesguide.R;
 import com.uwetrottmann.tmdb.entities.Configuration;
 
-import org.xml.sax.SAXException;
-
 import android.accounts.Account;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
@@ -45,7 +45,6 @@ import android.widget.Toast;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import retrofit.RetrofitError;
 
@@ -158,6 +157,16 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
         return isSyncActive;
     }
 
+    /**
+     * Asks a running sync to stop, e.g. before the database is replaced. Its changes so far are
+     * kept. Returns right away, check {@link #isSyncActive(Context, boolean)} to know once it
+     * stopped.
+     */
+    public static void cancelSync(Context context) {
+        ContentResolver.cancelSync(SyncUtils.getSyncAccount(context),
+                SeriesGuideApplication.CONTENT_AUTHORITY);
+    }
+
     public SgSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
         Log.d(TAG, "Creating SyncAdapter");
@@ -193,10 +202,7 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
         }
 
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
-        final ContentResolver resolver = getContext().getContentResolver();
         final long currentTime = System.currentTimeMillis();
-        UpdateResult resultCode = UpdateResult.SUCCESS;
-        final AtomicInteger updateCount = new AtomicInteger();
 
         // build a list of shows to update
         if (mShows == null) {
@@ -205,53 +211,16 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
 
         Log.d(TAG, "Perform TVDb update");
 
-        // actually update the shows
-        for (int i = updateCount.get(); i < mShows.length; i++) {
-            int id = mShows[i];
-
-            // try to contact TVDb two times
-            for (int itry = 0; itry < 2; itry++) {
-                // stop sync if connectivity is lost
-                if (!AndroidUtils.isNetworkConnected(getContext())) {
-                    resultCode = UpdateResult.INCOMPLETE;
-                    break;
-                }
-
-                try {
-                    TheTVDB.updateShow(id, getContext());
-
-                    // make sure overview and details loaders are notified
-                    resolver.notifyChange(Episodes.CONTENT_URI_WITHSHOW, null);
-
-                    break;
-                } catch (SAXException e) {
-                    if (itry == 1) {
-                        // failed twice, report error
-                        resultCode = UpdateResult.INCOMPLETE;
-                        Utils.trackExceptionAndLog(getContext(), TAG, e);
-                    }
-                }
-            }
-
-            // stop sync if connectivity is lost
-            if (!AndroidUtils.isNetworkConnected(getContext())) {
-                resultCode = UpdateResult.INCOMPLETE;
-                break;
-            }
-            updateCount.incrementAndGet();
-        }
+        // actually update the shows, fetching multiple at once
+        ShowUpdatePipeline pipeline = new ShowUpdatePipeline(getContext());
+        UpdateResult resultCode = pipeline.run(mShows);
 
         /*
-         * Renew search table, get trakt activity and the latest tmdb config if
-         * we did update multiple shows.
+         * Get trakt activity and the latest tmdb config if we did update
+         * multiple shows. The search table is kept up to date by the database.
          */
         if (type != UpdateType.SINGLE) {
 
-            if (updateCount.get() > 0 && mShows.length > 0) {
-                // renew search table
-                TheTVDB.onRenewFTSTable(getContext());
-            }
-
             // get latest TMDb configuration
             try {
                 Configuration config = ServiceUtils.getTmdbServiceManager(getContext())
@@ -307,6 +276,13 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
             }
         }
 
+        // episodes or their flags may have changed, update season counters
+        if (type == UpdateType.SINGLE) {
+            DBUtils.updateUnwatchedCountsOfShow(getContext(), String.valueOf(showTvdbId), prefs);
+        } else {
+            DBUtils.updateUnwatchedCounts(getContext(), prefs);
+        }
+
         // add newly discovered shows to database
         if (mNewShows != null && mNewShows.size() > 0) {
             TaskManager.getInstance(getContext()).performAddTask(mNewShows, true);
@@ -315,6 +291,9 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
         // There could have been new episodes added after an update
         Utils.runNotificationService(getContext());
 
+        // download posters queued by this sync, or not finished before, e.g. the app was killed
+        ArtFetchQueue.getInstance(getContext()).resume();
+
         Log.d(TAG, "Finished syncing shows (" + showTvdbId + "): " + resultCode.toString());
     }
 
@@ -350,9 +329,13 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
     private UpdateResult getTraktActivity() {
         Log.d(TAG, "Getting trakt activity...");
         if (!TraktSettings.hasTraktCredentials(getContext())) {
-            // trakt is not connected, we are done here
+            // trakt is not connected, drop flag changes journaled meanwhile, connecting uploads
+            // all flags anyhow
+            TraktSync.clearFlagJournal(getContext());
             return UpdateResult.SUCCESS;
         }
+        // only the latest change of each episode is uploaded anyhow
+        TraktSync.pruneFlagJournal(getContext());
 
         // return if connectivity is lost
         if (!AndroidUtils.isNetworkConnected(getContext())) {
@@ -423,8 +406,12 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
             }
         }
 
-        // apply all episode updates from downloaded trakt activity
+        // apply all episode updates from downloaded trakt activity, trakt does not need to get
+        // them back
+        long journalStart = TraktSync.getMaxJournalSequence(getContext());
         DBUtils.applyInSmallBatches(getContext(), batch);
+        TraktSync.trimFlagJournal(getContext(), 0, journalStart,
+                TraktSync.getMaxJournalSequence(getContext()));
 
         // store time of this update as seen by the trakt server
         final SharedPreferences.Editor editor = PreferenceManager
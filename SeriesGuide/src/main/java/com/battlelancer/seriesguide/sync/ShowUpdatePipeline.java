@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.sync;
+
+import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
+import com.battlelancer.seriesguide.sync.SgSyncAdapter.UpdateResult;
+import com.battlelancer.seriesguide.util.HttpStats;
+import com.battlelancer.seriesguide.util.Utils;
+import com.battlelancer.thetvdbapi.TheTVDB;
+import com.battlelancer.thetvdbapi.TheTVDB.ShowUpdate;
+import com.battlelancer.thetvdbapi.TheTVDB.ShowUpdateSink;
+import com.battlelancer.thetvdbapi.ValidatorCache;
+import com.uwetrottmann.androidutils.AndroidUtils;
+
+import org.xml.sax.SAXException;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates multiple shows using a small pool of fetcher threads which download and parse show data
+ * from TVDb in parallel, while the calling thread applies the results to the database one after
+ * another. Fetchers hand over each show update in parts as they parse it, through a bounded queue
+ * which blocks them while the writer catches up. So memory usage depends on the chunk size of
+ * these parts, not on the size of the shows.
+ */
+class ShowUpdatePipeline {
+
+    private static final String TAG = "ShowUpdatePipeline";
+
+    private static final int FETCHER_COUNT = 3;
+
+    /**
+     * How many parts of show updates may wait to be written at the same time.
+     */
+    private static final int MAX_PENDING_WRITES = FETCHER_COUNT * 2;
+
+    private final Context mContext;
+
+    private final BlockingQueue<PendingWrite> mWrites
+            = new ArrayBlockingQueue<>(MAX_PENDING_WRITES);
+
+    private final AtomicBoolean mIsIncomplete = new AtomicBoolean();
+
+    private final AtomicBoolean mIsConnectionLost = new AtomicBoolean();
+
+    private final AtomicLong mFetchTime = new AtomicLong();
+
+    private long mWaitTime;
+
+    private long mWriteTime;
+
+    private int mUpdateCount;
+
+    ShowUpdatePipeline(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Updates the given shows. Blocks until all shows are updated, the network connection is lost
+     * or the calling thread is interrupted.
+     */
+    UpdateResult run(int[] showTvdbIds) {
+        final long startTime = SystemClock.elapsedRealtime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(FETCHER_COUNT);
+        int finished = 0;
+        try {
+            // fetchers take on the next show once they handed over all parts of the last one
+            for (int showTvdbId : showTvdbIds) {
+                executor.submit(new FetchShowTask(showTvdbId));
+            }
+
+            while (finished < showTvdbIds.length) {
+                long waitStart = SystemClock.elapsedRealtime();
+                PendingWrite write = mWrites.take();
+                mWaitTime += SystemClock.elapsedRealtime() - waitStart;
+
+                if (write.part != null) {
+                    long writeStart = SystemClock.elapsedRealtime();
+                    TheTVDB.applyShowUpdate(mContext, write.part);
+                    mWriteTime += SystemClock.elapsedRealtime() - writeStart;
+                    continue;
+                }
+
+                // all parts of a show were written
+                finished++;
+                if (write.isSuccessful) {
+                    mUpdateCount++;
+                    // make sure overview and details loaders are notified
+                    mContext.getContentResolver().notifyChange(Episodes.CONTENT_URI_WITHSHOW,
+                            null);
+                }
+
+                // stop sync if connectivity is lost
+                if (mIsConnectionLost.get() || !AndroidUtils.isNetworkConnected(mContext)) {
+                    mIsConnectionLost.set(true);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // sync was canceled
+            Thread.currentThread().interrupt();
+            mIsIncomplete.set(true);
+        } finally {
+            // also wakes up fetchers waiting for the writer
+            executor.shutdownNow();
+        }
+
+        Log.d(TAG, "Updated " + mUpdateCount + " of " + showTvdbIds.length + " shows in "
+                + (SystemClock.elapsedRealtime() - startTime) + " ms (fetching and parsing: "
+                + mFetchTime.get() + " ms over " + FETCHER_COUNT + " fetchers, writer waited: "
+                + mWaitTime + " ms, writing: " + mWriteTime + " ms)");
+        ValidatorCache.logStats();
+        HttpStats.logStats();
+
+        if (mIsIncomplete.get() || mIsConnectionLost.get()) {
+            return UpdateResult.INCOMPLETE;
+        }
+        return UpdateResult.SUCCESS;
+    }
+
+    /**
+     * A part of a show update to write or, if {@link #part} is {@code null}, the note that a
+     * fetcher is done with a show.
+     */
+    private static class PendingWrite {
+
+        final ShowUpdate part;
+
+        final boolean isSuccessful;
+
+        PendingWrite(ShowUpdate part, boolean isSuccessful) {
+            this.part = part;
+            this.isSuccessful = isSuccessful;
+        }
+    }
+
+    /**
+     * Hands the parts of a show update to the writer, waits while too many are pending.
+     */
+    private class QueueingSink implements ShowUpdateSink {
+
+        private int mPartCount;
+
+        @Override
+        public void write(ShowUpdate part) {
+            try {
+                mWrites.put(new PendingWrite(part, false));
+            } catch (InterruptedException e) {
+                // the writer stopped, stop parsing
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Show update was cancelled");
+            }
+            mPartCount++;
+        }
+    }
+
+    /**
+     * Downloads and parses a single show, tries to contact TVDb two times. Tells the writer once
+     * it is done, whether or not the show could be fetched.
+     */
+    private class FetchShowTask implements Runnable {
+
+        private final int mShowTvdbId;
+
+        FetchShowTask(int showTvdbId) {
+            mShowTvdbId = showTvdbId;
+        }
+
+        @Override
+        public void run() {
+            final long startTime = SystemClock.elapsedRealtime();
+            boolean isSuccessful = false;
+            try {
+                isSuccessful = fetch();
+            } catch (RuntimeException e) {
+                if (!Thread.currentThread().isInterrupted()) {
+                    mIsIncomplete.set(true);
+                    Utils.trackExceptionAndLog(mContext, TAG, e);
+                }
+            } finally {
+                mFetchTime.addAndGet(SystemClock.elapsedRealtime() - startTime);
+            }
+
+            try {
+                mWrites.put(new PendingWrite(null, isSuccessful));
+            } catch (InterruptedException e) {
+                // the writer stopped
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean fetch() {
+            for (int itry = 0; itry < 2; itry++) {
+                // stop sync if connectivity is lost
+                if (mIsConnectionLost.get() || !AndroidUtils.isNetworkConnected(mContext)) {
+                    mIsConnectionLost.set(true);
+                    return false;
+                }
+
+                QueueingSink sink = new QueueingSink();
+                try {
+                    TheTVDB.fetchShowUpdate(mShowTvdbId, mContext, sink);
+                    return true;
+                } catch (SAXException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        // cancelled while waiting for the writer
+                        return false;
+                    }
+                    // parts already handed over were parsed against the episodes stored before,
+                    // do not hand them over twice
+                    if (itry == 1 || sink.mPartCount > 0) {
+                        // failed twice, report error
+                        mIsIncomplete.set(true);
+                        Utils.trackExceptionAndLog(mContext, TAG, e);
+                        return false;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+}
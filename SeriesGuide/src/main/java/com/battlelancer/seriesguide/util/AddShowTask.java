@@ -98,7 +98,6 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
         }
 
         int result;
-        boolean modifiedDB = false;
 
         if (!AndroidUtils.isNetworkConnected(mContext)) {
             Log.d(TAG, "Finished. No internet connection.");
@@ -135,8 +134,6 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
             Log.d(TAG, "Starting to add next show...");
             if (isCancelled()) {
                 Log.d(TAG, "Finished. Cancelled.");
-                // only cancelled on config change, so don't rebuild fts
-                // table yet
                 return null;
             }
 
@@ -156,7 +153,6 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
                     // already exists
                     result = ADD_ALREADYEXISTS;
                 }
-                modifiedDB = true;
             } catch (SAXException e) {
                 result = ADD_SAXERROR;
             }
@@ -167,11 +163,9 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
         }
 
         mIsFinishedAddingShows = true;
-        // renew FTS3 table
-        if (modifiedDB) {
-            Log.d(TAG, "Renewing search table.");
-            TheTVDB.onRenewFTSTable(mContext);
-        }
+
+        // download the posters of all added shows
+        ArtFetchQueue.getInstance(mContext).resume();
 
         Log.d(TAG, "Finished adding shows.");
         return null;
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import com.battlelancer.seriesguide.service.ArtFetchService;
+import com.squareup.tape.QueueFile;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent queue of TVDb images (posters, episode images) to download in the background by
+ * {@link ArtFetchService}. Entries are only removed once their image was fetched, so downloads
+ * resume after the process was killed. Images which could not be fetched are queued again at the
+ * end, until they failed {@link #MAX_ATTEMPTS} times. An image is only queued once.
+ */
+public class ArtFetchQueue {
+
+    private static final String TAG = "ArtFetchQueue";
+
+    private static final String FILENAME = "art_fetch_queue";
+
+    /**
+     * How often fetching an image is tried before it is dropped from the queue.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static ArtFetchQueue _instance;
+
+    private final Context mContext;
+
+    private QueueFile mQueueFile;
+
+    /**
+     * How often each image path is in the queue file. A path may be in there twice while a
+     * failed entry is queued again, before the old one is removed.
+     */
+    private final Map<String, Integer> mQueuedPaths = new HashMap<>();
+
+    /**
+     * An image to fetch.
+     */
+    public static class Entry {
+
+        public final String path;
+
+        public final boolean isPoster;
+
+        /**
+         * How often fetching this image failed so far.
+         */
+        public final int attempts;
+
+        public Entry(String path, boolean isPoster) {
+            this(path, isPoster, 0);
+        }
+
+        Entry(String path, boolean isPoster, int attempts) {
+            this.path = path;
+            this.isPoster = isPoster;
+            this.attempts = attempts;
+        }
+    }
+
+    public static synchronized ArtFetchQueue getInstance(Context context) {
+        if (_instance == null) {
+            // Make sure to use the application context as this is a singleton
+            _instance = new ArtFetchQueue(context.getApplicationContext());
+        }
+        return _instance;
+    }
+
+    private ArtFetchQueue(Context context) {
+        mContext = context;
+        try {
+            mQueueFile = new QueueFile(new File(context.getFilesDir(), FILENAME));
+            for (Entry entry : peek(Integer.MAX_VALUE)) {
+                countPath(entry.path, 1);
+            }
+        } catch (IOException e) {
+            // fetch art only when displayed then
+            Utils.trackExceptionAndLog(context, TAG, e);
+        }
+    }
+
+    /**
+     * Queues an image for download and makes sure it is downloaded. To queue many images, use
+     * {@link #queue(String, boolean)}, then {@link #resume()} once.
+     */
+    public void add(String path, boolean isPoster) {
+        if (queue(path, isPoster)) {
+            startService();
+        }
+    }
+
+    /**
+     * Queues an image for download, unless it is already queued. Does not start downloading, call
+     * {@link #resume()} once done queueing.
+     *
+     * @return Whether the image was added to the queue.
+     */
+    public synchronized boolean queue(String path, boolean isPoster) {
+        if (mQueueFile == null || mQueuedPaths.containsKey(path)) {
+            return false;
+        }
+        try {
+            mQueueFile.add(encode(new Entry(path, isPoster)));
+        } catch (IOException e) {
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+            return false;
+        }
+        countPath(path, 1);
+        return true;
+    }
+
+    /**
+     * Starts downloading queued images again if there are any left, e.g. from before the process
+     * was killed.
+     */
+    public void resume() {
+        if (size() > 0) {
+            startService();
+        }
+    }
+
+    /**
+     * Returns up to the given number of entries from the head of the queue without removing
+     * them.
+     */
+    public synchronized List<Entry> peek(final int max) {
+        final List<Entry> entries = new ArrayList<>();
+        if (mQueueFile == null) {
+            return entries;
+        }
+        try {
+            mQueueFile.forEach(new QueueFile.ElementReader() {
+                @Override
+                public void read(InputStream in, int length) throws IOException {
+                    if (entries.size() < max) {
+                        byte[] data = new byte[length];
+                        int read = 0;
+                        while (read < length) {
+                            int count = in.read(data, read, length - read);
+                            if (count < 0) {
+                                throw new IOException("Queue entry is truncated");
+                            }
+                            read += count;
+                        }
+                        entries.add(decode(data));
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+        }
+        return entries;
+    }
+
+    /**
+     * Appends the given entries, which could not be fetched, to the end of the queue again. Drops
+     * those which failed {@link #MAX_ATTEMPTS} times. Call before removing them from the head, so
+     * they are not lost if the process is killed in between.
+     */
+    public synchronized void retry(List<Entry> failed) {
+        if (mQueueFile == null) {
+            return;
+        }
+        try {
+            for (Entry entry : failed) {
+                if (entry.attempts + 1 < MAX_ATTEMPTS) {
+                    mQueueFile.add(encode(new Entry(entry.path, entry.isPoster,
+                            entry.attempts + 1)));
+                    countPath(entry.path, 1);
+                } else {
+                    Log.d(TAG, "Giving up on " + entry.path);
+                }
+            }
+        } catch (IOException e) {
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+        }
+    }
+
+    /**
+     * Removes the given number of entries from the head of the queue.
+     */
+    public synchronized void remove(int count) {
+        if (mQueueFile == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < count && !mQueueFile.isEmpty(); i++) {
+                countPath(decode(mQueueFile.peek()).path, -1);
+                mQueueFile.remove();
+            }
+        } catch (IOException e) {
+            Utils.trackExceptionAndLog(mContext, TAG, e);
+        }
+    }
+
+    public synchronized int size() {
+        return mQueueFile == null ? 0 : mQueueFile.size();
+    }
+
+    private void countPath(String path, int delta) {
+        Integer count = mQueuedPaths.get(path);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount > 0) {
+            mQueuedPaths.put(path, newCount);
+        } else {
+            mQueuedPaths.remove(path);
+        }
+    }
+
+    private void startService() {
+        Log.d(TAG, "Fetching " + size() + " images");
+        mContext.startService(new Intent(mContext, ArtFetchService.class));
+    }
+
+    /**
+     * The first byte holds the attempts, shifted by one, and whether the image is a poster.
+     */
+    private static byte[] encode(Entry entry) {
+        byte[] path = entry.path.getBytes();
+        byte[] data = new byte[path.length + 1];
+        data[0] = (byte) (entry.attempts << 1 | (entry.isPoster ? 1 : 0));
+        System.arraycopy(path, 0, data, 1, path.length);
+        return data;
+    }
+
+    private static Entry decode(byte[] data) {
+        return new Entry(new String(data, 1, data.length - 1), (data[0] & 1) == 1,
+                data[0] >> 1);
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import com.uwetrottmann.androidutils.AndroidUtils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps bitmaps evicted from the memory cache so the decoder can reuse their memory through {@link
+ * BitmapFactory.Options#inBitmap} instead of allocating a new bitmap. Only mutable bitmaps are
+ * accepted, so only bitmaps decoded for reuse end up here. Bitmaps are kept up to a total size in
+ * bytes, the oldest are dropped first.
+ *
+ * <p> Before KitKat a bitmap can only be reused to decode an image of exactly the same size
+ * without sampling, so bitmaps are bucketed by dimensions and config. Since KitKat any bitmap that
+ * is big enough can be reused, so bitmaps are bucketed by their byte count rounded up to the next
+ * power of two.
+ *
+ * <p> Does nothing before Honeycomb.
+ */
+class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    private final Map<String, LinkedList<Bitmap>> mBuckets = new HashMap<>();
+
+    /**
+     * All pooled bitmaps, least recently added first.
+     */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+
+    private final int mMaxSize;
+
+    private int mSize;
+
+    private int mReuseCount;
+
+    private int mMissCount;
+
+    private long mBytesReused;
+
+    private int mDropCount;
+
+    /**
+     * @param maxSizeBytes Ceiling for the total byte count of all pooled bitmaps.
+     */
+    BitmapPool(int maxSizeBytes) {
+        mMaxSize = maxSizeBytes;
+    }
+
+    /**
+     * Adds a bitmap which is no longer used to the pool. Make sure it is not displayed anywhere.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (!AndroidUtils.isHoneycombOrHigher() || bitmap == null || !bitmap.isMutable()
+                || bitmap.isRecycled()) {
+            return;
+        }
+        int size = getByteCount(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        String key = getBucketKey(bitmap);
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mBitmaps.add(bitmap);
+        mSize += size;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Sets a reusable bitmap as {@link BitmapFactory.Options#inBitmap} if the pool holds one which
+     * fits the image of the given size decoded with the given options. The options are always set
+     * to decode a mutable bitmap, so it can be pooled later.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    synchronized void addInBitmapOptions(BitmapFactory.Options options, int width, int height) {
+        if (!AndroidUtils.isHoneycombOrHigher()) {
+            return;
+        }
+        options.inMutable = true;
+
+        Bitmap reusable = take(options, width, height);
+        if (reusable != null) {
+            mReuseCount++;
+            mBytesReused += getByteCount(reusable);
+            options.inBitmap = reusable;
+        } else {
+            mMissCount++;
+        }
+    }
+
+    /**
+     * Drops the oldest bitmaps until the pool holds at most the given number of bytes.
+     */
+    synchronized void trimToSize(int maxSizeBytes) {
+        while (mSize > maxSizeBytes && !mBitmaps.isEmpty()) {
+            Bitmap eldest = mBitmaps.removeFirst();
+            removeFromBucket(eldest);
+            mSize -= getByteCount(eldest);
+            mDropCount++;
+        }
+    }
+
+    synchronized void evictAll() {
+        trimToSize(0);
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    int maxSize() {
+        return mMaxSize;
+    }
+
+    synchronized void logStats() {
+        Log.d(TAG, "Pooled: " + mBitmaps.size() + " bitmaps, " + mSize / 1024 + " of "
+                + mMaxSize / 1024 + " KB, allocations avoided: " + mReuseCount + " ("
+                + mBytesReused / 1024 + " KB), not avoided: " + mMissCount + ", dropped: "
+                + mDropCount);
+    }
+
+    private Bitmap take(BitmapFactory.Options options, int width, int height) {
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+
+        if (AndroidUtils.isKitKatOrHigher()) {
+            int sampleSize = Math.max(1, options.inSampleSize);
+            // round up, some decoders do so for sampled dimensions
+            int byteCount = ((width + sampleSize - 1) / sampleSize)
+                    * ((height + sampleSize - 1) / sampleSize) * getBytesPerPixel(config);
+            // smaller bitmaps may share the bucket, the next bucket only holds bigger ones
+            int bucket = bucketOfSize(byteCount);
+            Bitmap bitmap = takeFromBucket(String.valueOf(bucket), byteCount);
+            if (bitmap == null) {
+                bitmap = takeFromBucket(String.valueOf(bucket + 1), byteCount);
+            }
+            return bitmap;
+        } else if (options.inSampleSize <= 1) {
+            return takeFromBucket(width + "x" + height + ":" + config, 0);
+        }
+        return null;
+    }
+
+    private Bitmap takeFromBucket(String key, int minByteCount) {
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        Iterator<Bitmap> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (getByteCount(bitmap) >= minByteCount) {
+                iterator.remove();
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(key);
+                }
+                mBitmaps.remove(bitmap);
+                mSize -= getByteCount(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private void removeFromBucket(Bitmap bitmap) {
+        String key = getBucketKey(bitmap);
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket != null) {
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(key);
+            }
+        }
+    }
+
+    private static String getBucketKey(Bitmap bitmap) {
+        if (AndroidUtils.isKitKatOrHigher()) {
+            return String.valueOf(bucketOfSize(getByteCount(bitmap)));
+        }
+        return bitmap.getWidth() + "x" + bitmap.getHeight() + ":" + bitmap.getConfig();
+    }
+
+    /**
+     * Returns the exponent of the smallest power of two which is at least the given size.
+     */
+    private static int bucketOfSize(int byteCount) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(byteCount - 1, 0));
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 1;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getByteCount(Bitmap bitmap) {
+        if (AndroidUtils.isKitKatOrHigher()) {
+            // a reused bitmap may be bigger than the image it currently holds
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+}
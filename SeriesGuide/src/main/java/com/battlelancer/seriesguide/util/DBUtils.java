@@ -23,34 +23,45 @@ import com.battlelancer.seriesguide.dataliberation.model.Show;
 import com.battlelancer.seriesguide.enums.EpisodeFlags;
 import com.battlelancer.seriesguide.enums.SeasonTags;
 import com.battlelancer.seriesguide.items.Series;
-import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeSearch;
+import com.battlelancer.seriesguide.provider.SeriesContract;
 import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.NextEpisodesQuery;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Qualified;
+import com.battlelancer.seriesguide.provider.SeriesGuideProvider;
 import com.battlelancer.seriesguide.settings.ActivitySettings;
 import com.battlelancer.seriesguide.settings.DisplaySettings;
 import com.battlelancer.seriesguide.ui.UpcomingFragment.ActivityType;
 import com.battlelancer.seriesguide.ui.UpcomingFragment.UpcomingQuery;
 import com.battlelancer.thetvdbapi.TheTVDB.ShowStatus;
+import com.battlelancer.thetvdbapi.ValidatorCache;
+import com.uwetrottmann.androidutils.AndroidUtils;
 import com.uwetrottmann.androidutils.Lists;
 
+import android.annotation.TargetApi;
 import android.app.ProgressDialog;
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 
 public class DBUtils {
 
@@ -87,8 +98,64 @@ public class DBUtils {
      */
     public static void updateUnwatchedCount(Context context, String seasonid,
             SharedPreferences prefs) {
+        Bundle extras = new Bundle();
+        extras.putString(SeriesContract.EXTRA_SEASON_ID, seasonid);
+        updateUnwatchedCounts(context, extras, Seasons.buildSeasonUri(seasonid), prefs);
+    }
+
+    /**
+     * Like {@link #updateUnwatchedCount(Context, String, SharedPreferences)}, but for all seasons
+     * of the given show at once.
+     */
+    public static void updateUnwatchedCountsOfShow(Context context, String showTvdbId,
+            SharedPreferences prefs) {
+        Bundle extras = new Bundle();
+        extras.putString(SeriesContract.EXTRA_SHOW_ID, showTvdbId);
+        updateUnwatchedCounts(context, extras, Seasons.buildSeasonsOfShowUri(showTvdbId), prefs);
+    }
+
+    /**
+     * Like {@link #updateUnwatchedCount(Context, String, SharedPreferences)}, but for all seasons
+     * of all shows at once. Use after episodes of many shows may have changed, e.g. after a sync.
+     */
+    public static void updateUnwatchedCounts(Context context, SharedPreferences prefs) {
+        updateUnwatchedCounts(context, new Bundle(), Seasons.CONTENT_URI, prefs);
+    }
+
+    /**
+     * Recalculates the counters in the provider with a single grouped query, see {@link
+     * SeriesContract#METHOD_UPDATE_UNWATCHED_COUNTS}. Before Honeycomb providers can not be
+     * called, so falls back to counting the episodes of each season in {@code seasonsUri}.
+     */
+    private static void updateUnwatchedCounts(Context context, Bundle extras, Uri seasonsUri,
+            SharedPreferences prefs) {
+        final long fakeNow = Utils.getFakeCurrentTime(prefs);
+        if (AndroidUtils.isHoneycombOrHigher()) {
+            extras.putLong(SeriesContract.EXTRA_NOW, fakeNow);
+            callProvider(context, SeriesContract.METHOD_UPDATE_UNWATCHED_COUNTS, extras);
+            return;
+        }
+
+        final Cursor seasons = context.getContentResolver().query(seasonsUri, new String[] {
+                Seasons._ID
+        }, null, null, null);
+        if (seasons == null) {
+            return;
+        }
+        while (seasons.moveToNext()) {
+            updateUnwatchedCountLegacy(context, seasons.getString(0), String.valueOf(fakeNow));
+        }
+        seasons.close();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void callProvider(Context context, String method, Bundle extras) {
+        context.getContentResolver().call(Seasons.CONTENT_URI, method, null, extras);
+    }
+
+    private static void updateUnwatchedCountLegacy(Context context, String seasonid,
+            String fakenow) {
         final ContentResolver resolver = context.getContentResolver();
-        final String fakenow = String.valueOf(Utils.getFakeCurrentTime(prefs));
         final Uri episodesOfSeasonUri = Episodes.buildEpisodesOfSeasonUri(seasonid);
 
         // all a seasons episodes
@@ -114,9 +181,9 @@ public class DBUtils {
 
         // unwatched, aired in the future episodes
         final Cursor unAired = resolver.query(episodesOfSeasonUri, UnwatchedQuery.PROJECTION,
-                UnwatchedQuery.FUTURE_SELECTION, new String[]{
-                fakenow
-        }, null);
+                UnwatchedQuery.FUTURE_SELECTION, new String[] {
+                        fakenow
+                }, null);
         if (unAired == null) {
             return;
         }
@@ -504,12 +571,8 @@ public class DBUtils {
                         Episodes._ID, Episodes.IMAGE
                 }, null, null, null);
         if (episodes != null) {
-            final String[] episodeIDs = new String[episodes.getCount()];
-            int counter = 0;
-
             episodes.moveToFirst();
             while (!episodes.isAfterLast()) {
-                episodeIDs[counter++] = episodes.getString(0);
                 String imageUrl = episodes.getString(1);
                 if (!TextUtils.isEmpty(imageUrl)) {
                     imageProvider.removeImage(imageUrl);
@@ -517,20 +580,19 @@ public class DBUtils {
                 episodes.moveToNext();
             }
             episodes.close();
-
-            // delete search database entries
-            for (String episodeID : episodeIDs) {
-                batch.add(ContentProviderOperation.newDelete(
-                        EpisodeSearch.buildDocIdUri(String.valueOf(episodeID))).build());
-            }
         }
 
+        // search table entries are removed by the database
+
         batch.add(ContentProviderOperation.newDelete(Seasons.buildSeasonsOfShowUri(showId)).build());
         batch.add(ContentProviderOperation.newDelete(Episodes.buildEpisodesOfShowUri(showId))
                 .build());
 
         applyInSmallBatches(context, batch);
 
+        // forget validators, a re-added show has to download all episodes
+        ValidatorCache.remove(context, Integer.valueOf(showId));
+
         // hide progress dialog now
         if (progress.isShowing()) {
             progress.dismiss();
@@ -559,183 +621,169 @@ public class DBUtils {
     }
 
     /**
-     * Returns the season IDs for a given show as a efficiently searchable
-     * HashMap.
-     * 
-     * @return HashMap containing the shows existing seasons
+     * Updates the given episodes with the given values. If the provider runs in this process, all
+     * updates are applied in a single transaction using {@link SeriesGuideProvider#bulkUpdate}.
+     * Otherwise falls back to applying update operations in small batches.
+     *
+     * @param episodeIds TVDb ids of the episodes, {@code episodeIds[i]} is updated with {@code
+     *                   values[i]}.
      */
-    public static HashSet<Integer> getSeasonIdsOfShow(Context context, int showTvdbId) {
-        Cursor seasons = context.getContentResolver().query(
-                Seasons.buildSeasonsOfShowUri(showTvdbId),
-                new String[] {
-                    Seasons._ID
-                }, null, null, null);
-        HashSet<Integer> seasonIds = new HashSet<>();
-        if (seasons != null) {
-            while (seasons.moveToNext()) {
-                seasonIds.add(seasons.getInt(0));
+    public static void updateEpisodes(Context context, long[] episodeIds,
+            ContentValues[] values) {
+        bulkUpdate(context, Episodes.CONTENT_URI, episodeIds, values);
+    }
+
+    private static void bulkUpdate(Context context, Uri contentUri, long[] ids,
+            ContentValues[] values) {
+        if (AndroidUtils.isHoneycombOrHigher()) {
+            ContentProviderClient client = context.getContentResolver()
+                    .acquireContentProviderClient(SeriesGuideApplication.CONTENT_AUTHORITY);
+            if (client != null) {
+                try {
+                    ContentProvider provider = getLocalContentProvider(client);
+                    if (provider instanceof SeriesGuideProvider) {
+                        ((SeriesGuideProvider) provider).bulkUpdate(contentUri, ids, values);
+                        return;
+                    }
+                } finally {
+                    client.release();
+                }
             }
-            seasons.close();
         }
-        return seasonIds;
+
+        // provider is in another process, avoid large binder transactions
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            batch.add(ContentProviderOperation
+                    .newUpdate(ContentUris.withAppendedId(contentUri, ids[i]))
+                    .withValues(values[i]).build());
+        }
+        applyInSmallBatches(context, batch);
     }
 
-    /**
-     * Creates an update {@link ContentProviderOperation} for the given episode
-     * values.
-     */
-    public static ContentProviderOperation buildEpisodeUpdateOp(ContentValues values) {
-        final String episodeId = values.getAsString(Episodes._ID);
-        ContentProviderOperation op = ContentProviderOperation
-                .newUpdate(Episodes.buildEpisodeUri(episodeId))
-                .withValues(values).build();
-        return op;
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentProvider getLocalContentProvider(ContentProviderClient client) {
+        return client.getLocalContentProvider();
     }
 
     /**
-     * Creates a {@link ContentProviderOperation} for insert if isNew, or update
-     * instead for with the given season values.
-     * 
-     * @param values
-     * @param isNew
-     * @return
+     * Builds season values from the given episode values. Use with an upsert bulk insert (see
+     * {@link com.battlelancer.seriesguide.provider.SeriesContract#buildUpsertUri}) to insert or
+     * update the season.
      */
-    public static ContentProviderOperation buildSeasonOp(ContentValues values, boolean isNew) {
-        ContentProviderOperation op;
-        final String seasonId = values.getAsString(Seasons.REF_SEASON_ID);
+    public static ContentValues buildSeasonValues(ContentValues values) {
         final ContentValues seasonValues = new ContentValues();
+        seasonValues.put(Seasons._ID, values.getAsString(Seasons.REF_SEASON_ID));
+        seasonValues.put(Shows.REF_SHOW_ID, values.getAsString(Shows.REF_SHOW_ID));
         seasonValues.put(Seasons.COMBINED, values.getAsString(Episodes.SEASON));
+        return seasonValues;
+    }
 
-        if (isNew) {
-            seasonValues.put(Seasons._ID, seasonId);
-            seasonValues.put(Shows.REF_SHOW_ID, values.getAsString(Shows.REF_SHOW_ID));
-            op = ContentProviderOperation.newInsert(Seasons.CONTENT_URI).withValues(seasonValues)
-                    .build();
-        } else {
-            op = ContentProviderOperation.newUpdate(Seasons.buildSeasonUri(seasonId))
-                    .withValues(seasonValues).build();
-        }
-        return op;
+    /**
+     * Updates the latest episode fields of all shows. Calculates the next episode of all shows
+     * with a single query, then writes only shows whose next episode values changed.
+     */
+    public static void updateLatestEpisodes(Context context) {
+        updateLatestEpisodes(context, null);
     }
 
     /**
-     * Convenience method for calling {@code updateLatestEpisode} once. If it is going to be called
-     * multiple times, use the version which passes more data.
+     * Updates the latest episode fields of the given show, like {@link
+     * #updateLatestEpisodes(Context)}.
+     *
+     * @return The TVDb id of the calculated next episode, or 0 if there is none.
      */
     public static long updateLatestEpisode(Context context, int showTvdbId) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        final boolean isNoReleasedEpisodes = DisplaySettings.isNoReleasedEpisodes(context);
-        final boolean isNoSpecials = DisplaySettings.isHidingSpecials(context);
-        return updateLatestEpisode(context, showTvdbId, isNoReleasedEpisodes, isNoSpecials, prefs);
+        return updateLatestEpisodes(context, Qualified.SHOWS_ID + "=" + showTvdbId);
     }
 
     /**
-     * Update the latest episode fields of the given show.
+     * Updates the latest episode fields of the shows matching the given selection, or all shows
+     * if it is null.
      *
-     * @return The TVDb id of the calculated next episode.
+     * @return The TVDb id of the next episode of the last matching show, or 0 if it has none.
      */
-    public static long updateLatestEpisode(Context context, int showTvdbId,
-            boolean isNoReleasedEpisodes, boolean isNoSpecials, SharedPreferences prefs) {
-        final Uri episodesWithShow = Episodes.buildEpisodesOfShowUri(showTvdbId);
-        final StringBuilder selectQuery = new StringBuilder();
-
-        // STEP 1: get last watched episode
-        final Cursor show = context.getContentResolver().query(Shows.buildShowUri(showTvdbId),
-                new String[] {
-                        Shows._ID, Shows.LASTWATCHEDID
-                }, null, null, null);
-        if (show == null || !show.moveToFirst()) {
-            if (show != null) {
-                show.close();
-            }
-            return 0;
-        }
-        final String lastEpisodeId = show.getString(1);
-        show.close();
-
-        final Cursor lastEpisode = context.getContentResolver().query(
-                Episodes.buildEpisodeUri(lastEpisodeId), NextEpisodeQuery.PROJECTION_WATCHED, null,
-                null, null);
-        final String season;
-        final String number;
-        final String airtime;
-        if (lastEpisode != null && lastEpisode.moveToFirst()) {
-            season = lastEpisode.getString(NextEpisodeQuery.SEASON);
-            number = lastEpisode.getString(NextEpisodeQuery.NUMBER);
-            airtime = lastEpisode.getString(NextEpisodeQuery.FIRSTAIREDMS);
-        } else {
-            // no watched episodes, include all starting with
-            // special 0
-            season = "-1";
-            number = "-1";
-            airtime = String.valueOf(Long.MIN_VALUE);
-        }
-        if (lastEpisode != null) {
-            lastEpisode.close();
-        }
+    private static long updateLatestEpisodes(Context context, String selection) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean isNoReleasedEpisodes = DisplaySettings.isNoReleasedEpisodes(context);
+        final boolean isNoSpecials = DisplaySettings.isHidingSpecials(context);
 
-        // STEP 2: get episode airing closest afterwards or at the same time,
-        // but with a higher number
-        final String[] selectionArgs;
-        selectQuery.delete(0, selectQuery.length());
-        selectQuery.append(NextEpisodeQuery.SELECT_NEXT);
+        Uri.Builder uri = Shows.CONTENT_URI_NEXT_EPISODES.buildUpon();
         if (isNoSpecials) {
-            // do not take specials into account
-            selectQuery.append(Episodes.SELECTION_NOSPECIALS);
+            uri.appendQueryParameter(SeriesContract.QUERY_PARAMETER_NO_SPECIALS, "true");
         }
         if (isNoReleasedEpisodes) {
             // restrict to episodes with future air date
-            selectQuery.append(NextEpisodeQuery.SELECT_ONLYFUTURE);
-            final String now = String.valueOf(Utils.getFakeCurrentTime(prefs));
-            selectionArgs = new String[] {
-                    airtime, number, season, airtime, now
-            };
-        } else {
-            // restrict to episodes with any valid air date
-            selectQuery.append(NextEpisodeQuery.SELECT_WITHAIRDATE);
-            selectionArgs = new String[] {
-                    airtime, number, season, airtime
-            };
+            uri.appendQueryParameter(SeriesContract.QUERY_PARAMETER_AIRED_AFTER,
+                    String.valueOf(Utils.getFakeCurrentTime(prefs)));
+        }
+        final Cursor shows = context.getContentResolver().query(uri.build(), null, selection,
+                null, null);
+        if (shows == null) {
+            return 0;
         }
 
-        final Cursor next = context.getContentResolver().query(episodesWithShow,
-                NextEpisodeQuery.PROJECTION_NEXT, selectQuery.toString(), selectionArgs,
-                NextEpisodeQuery.SORTING_NEXT);
+        long nextEpisodeId = 0;
+        final ArrayList<Long> showIds = new ArrayList<>();
+        final ArrayList<ContentValues> updates = new ArrayList<>();
+        while (shows.moveToNext()) {
+            final ContentValues update = new ContentValues();
+            if (!shows.isNull(NextEpisodesQuery.NEXT_ID)) {
+                nextEpisodeId = shows.getLong(NextEpisodesQuery.NEXT_ID);
+
+                // next episode text, e.g. '0x12 Episode Name'
+                final String nextEpisodeString = Utils.getNextEpisodeString(context,
+                        shows.getInt(NextEpisodesQuery.NEXT_SEASON),
+                        shows.getInt(NextEpisodesQuery.NEXT_NUMBER),
+                        shows.getString(NextEpisodesQuery.NEXT_TITLE));
+
+                // next air date text, e.g. 'Apr 2 (Mon)'
+                final long airTime = shows.getLong(NextEpisodesQuery.NEXT_FIRSTAIREDMS);
+                final String[] dayAndTimes = Utils.formatToTimeAndDay(airTime, context);
+                final String nextAirdateString = dayAndTimes[2] + " (" + dayAndTimes[1] + ")";
+
+                update.put(Shows.NEXTEPISODE, shows.getString(NextEpisodesQuery.NEXT_ID));
+                update.put(Shows.NEXTAIRDATEMS, airTime);
+                update.put(Shows.NEXTTEXT, nextEpisodeString);
+                update.put(Shows.NEXTAIRDATETEXT, nextAirdateString);
+            } else {
+                nextEpisodeId = 0;
+                update.put(Shows.NEXTEPISODE, "");
+                update.put(Shows.NEXTAIRDATEMS, UNKNOWN_NEXT_AIR_DATE);
+                update.put(Shows.NEXTTEXT, "");
+                update.put(Shows.NEXTAIRDATETEXT, "");
+            }
 
-        // STEP 3: build and execute database update for show
-        final long episodeId;
-        final ContentValues update = new ContentValues();
-        if (next != null && next.moveToFirst()) {
-            // next episode text, e.g. '0x12 Episode Name'
-            final String nextEpisodeString = Utils.getNextEpisodeString(context,
-                    next.getInt(NextEpisodeQuery.SEASON), next.getInt(NextEpisodeQuery.NUMBER),
-                    next.getString(NextEpisodeQuery.TITLE));
-
-            // next air date text, e.g. 'Apr 2 (Mon)'
-            final long airTime = next.getLong(NextEpisodeQuery.FIRSTAIREDMS);
-            final String[] dayAndTimes = Utils.formatToTimeAndDay(airTime, context);
-            final String nextAirdateString = dayAndTimes[2] + " (" + dayAndTimes[1] + ")";
-
-            episodeId = next.getLong(NextEpisodeQuery._ID);
-            update.put(Shows.NEXTEPISODE, episodeId);
-            update.put(Shows.NEXTAIRDATEMS, airTime);
-            update.put(Shows.NEXTTEXT, nextEpisodeString);
-            update.put(Shows.NEXTAIRDATETEXT, nextAirdateString);
-        } else {
-            episodeId = 0;
-            update.put(Shows.NEXTEPISODE, "");
-            update.put(Shows.NEXTAIRDATEMS, UNKNOWN_NEXT_AIR_DATE);
-            update.put(Shows.NEXTTEXT, "");
-            update.put(Shows.NEXTAIRDATETEXT, "");
-        }
-        if (next != null) {
-            next.close();
+            // skip shows where nothing changed
+            if (update.getAsString(Shows.NEXTEPISODE)
+                    .equals(shows.getString(NextEpisodesQuery.SHOW_NEXTEPISODE))
+                    && update.getAsString(Shows.NEXTAIRDATEMS)
+                    .equals(shows.getString(NextEpisodesQuery.SHOW_NEXTAIRDATEMS))
+                    && update.getAsString(Shows.NEXTTEXT)
+                    .equals(shows.getString(NextEpisodesQuery.SHOW_NEXTTEXT))
+                    && update.getAsString(Shows.NEXTAIRDATETEXT)
+                    .equals(shows.getString(NextEpisodesQuery.SHOW_NEXTAIRDATETEXT))) {
+                continue;
+            }
+
+            showIds.add(shows.getLong(NextEpisodesQuery.SHOW_ID));
+            updates.add(update);
         }
+        final int showCount = shows.getCount();
+        shows.close();
 
-        // update the show with the new next episode values
-        context.getContentResolver().update(Shows.buildShowUri(showTvdbId), update, null, null);
+        Log.d(TAG, "Next episode changed for " + updates.size() + " of " + showCount + " shows");
+        if (updates.isEmpty()) {
+            return nextEpisodeId;
+        }
 
-        return episodeId;
+        final long[] ids = new long[showIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = showIds.get(i);
+        }
+        bulkUpdate(context, Shows.CONTENT_URI, ids, updates.toArray(new ContentValues[updates
+                .size()]));
+        return nextEpisodeId;
     }
 
     /**
@@ -783,44 +831,4 @@ public class DBUtils {
             throw new RuntimeException("Problem applying batch operation", e);
         }
     }
-
-    private interface NextEpisodeQuery {
-        /**
-         * Unwatched, airing later or has a different number or season if airing
-         * the same time.
-         */
-        String SELECT_NEXT = Episodes.WATCHED + "=0 AND ("
-                + "(" + Episodes.FIRSTAIREDMS + "=? AND "
-                + "(" + Episodes.NUMBER + "!=? OR " + Episodes.SEASON + "!=?)) "
-                + "OR " + Episodes.FIRSTAIREDMS + ">?)";
-
-        String SELECT_WITHAIRDATE = " AND " + Episodes.FIRSTAIREDMS + "!=-1";
-
-        String SELECT_ONLYFUTURE = " AND " + Episodes.FIRSTAIREDMS + ">=?";
-
-        String[] PROJECTION_WATCHED = new String[] {
-                Episodes._ID, Episodes.SEASON, Episodes.NUMBER, Episodes.FIRSTAIREDMS
-        };
-
-        String[] PROJECTION_NEXT = new String[] {
-                Episodes._ID, Episodes.SEASON, Episodes.NUMBER, Episodes.FIRSTAIREDMS,
-                Episodes.TITLE
-        };
-
-        /**
-         * Air time, then lowest season, or if identical lowest episode number.
-         */
-        String SORTING_NEXT = Episodes.FIRSTAIREDMS + " ASC," + Episodes.SEASON + " ASC,"
-                + Episodes.NUMBER + " ASC";
-
-        int _ID = 0;
-
-        int SEASON = 1;
-
-        int NUMBER = 2;
-
-        int FIRSTAIREDMS = 3;
-
-        int TITLE = 4;
-    }
 }
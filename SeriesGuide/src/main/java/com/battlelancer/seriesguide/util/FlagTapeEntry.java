@@ -35,4 +35,12 @@ public class FlagTapeEntry implements Serializable {
     public int showId;
     public List<FlagTapeEntry.Flag> flags;
     public boolean isFlag;
+
+    /**
+     * The flag journal entries recorded for this change are those after this sequence number,
+     * up to {@link #journalEnd}. Once trakt accepted the change they are no longer needed.
+     */
+    public long journalStart;
+
+    public long journalEnd;
 }
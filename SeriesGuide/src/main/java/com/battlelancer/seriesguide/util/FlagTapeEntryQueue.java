@@ -19,6 +19,9 @@ package com.battlelancer.seriesguide.util;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 
 import com.battlelancer.seriesguide.service.TraktFlagService;
 import com.google.myjson.Gson;
@@ -29,21 +32,34 @@ import com.squareup.tape.ObjectQueue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
 
     private static final String FILENAME = "trakt_flag_queue";
 
+    /**
+     * Once this many entries are waiting, {@link #add(FlagTapeEntry)} waits for the worker of
+     * {@link TraktFlagService} to catch up.
+     */
+    private static final int MAX_PENDING_ENTRIES = 100;
+
+    private static final long MAX_WAIT_MILLIS = 10 * DateUtils.SECOND_IN_MILLIS;
+
     private static FlagTapeEntryQueue _instance;
 
     private final ObjectQueue<FlagTapeEntry> mDelegate;
 
     private Context mContext;
 
+    private boolean mIsDraining;
+
     public static synchronized FlagTapeEntryQueue getInstance(Context context) {
         if (_instance == null) {
             // Make sure to use the application context as this is a singleton
-            _instance = new FlagTapeEntryQueue(new InMemoryObjectQueue<FlagTapeEntry>(),
+            _instance = new FlagTapeEntryQueue(new InMemoryFlagQueue(),
                     context.getApplicationContext());
 
             /*
@@ -70,17 +86,64 @@ public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
         mContext.startService(new Intent(mContext, TraktFlagService.class));
     }
 
+    /**
+     * Adds an entry and starts sending it. If too many entries are waiting while they are being
+     * sent, blocks until some were sent or a few seconds passed. Never blocks on the main thread
+     * or while entries can not be sent, e.g. when offline.
+     */
     @Override
     public void add(FlagTapeEntry entry) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            awaitCapacity();
+        }
         mDelegate.add(entry);
         startService();
     }
 
+    private synchronized void awaitCapacity() {
+        long deadline = SystemClock.elapsedRealtime() + MAX_WAIT_MILLIS;
+        long remaining = MAX_WAIT_MILLIS;
+        while (mIsDraining && mDelegate.size() >= MAX_PENDING_ENTRIES && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Set by the worker sending entries, so producers only wait for it while it is making
+     * progress.
+     */
+    public synchronized void setDraining(boolean isDraining) {
+        mIsDraining = isDraining;
+        notifyAll();
+    }
+
     @Override
     public FlagTapeEntry peek() {
         return mDelegate.peek();
     }
 
+    /**
+     * Returns up to the given number of entries from the head of the queue without removing them.
+     * Queues which can only look at their head return at most one entry.
+     */
+    public List<FlagTapeEntry> peek(int max) {
+        if (mDelegate instanceof InMemoryFlagQueue) {
+            return ((InMemoryFlagQueue) mDelegate).peek(max);
+        }
+        List<FlagTapeEntry> entries = new ArrayList<>(1);
+        FlagTapeEntry head = mDelegate.peek();
+        if (head != null && max > 0) {
+            entries.add(head);
+        }
+        return entries;
+    }
+
     @Override
     public int size() {
         return mDelegate.size();
@@ -89,6 +152,9 @@ public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
     @Override
     public void remove() {
         mDelegate.remove();
+        synchronized (this) {
+            notifyAll();
+        }
     }
 
     @Override
@@ -96,6 +162,43 @@ public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
         throw new UnsupportedOperationException("Listeners not yet implemented.");
     }
 
+    /**
+     * Like {@link InMemoryObjectQueue}, but can look at more entries than just the head.
+     */
+    private static class InMemoryFlagQueue implements ObjectQueue<FlagTapeEntry> {
+
+        private final LinkedList<FlagTapeEntry> mEntries = new LinkedList<>();
+
+        @Override
+        public synchronized int size() {
+            return mEntries.size();
+        }
+
+        @Override
+        public synchronized void add(FlagTapeEntry entry) {
+            mEntries.add(entry);
+        }
+
+        @Override
+        public synchronized FlagTapeEntry peek() {
+            return mEntries.peek();
+        }
+
+        public synchronized List<FlagTapeEntry> peek(int max) {
+            return new ArrayList<>(mEntries.subList(0, Math.min(max, mEntries.size())));
+        }
+
+        @Override
+        public synchronized void remove() {
+            mEntries.remove();
+        }
+
+        @Override
+        public void setListener(ObjectQueue.Listener<FlagTapeEntry> listener) {
+            throw new UnsupportedOperationException("Listeners not yet implemented.");
+        }
+    }
+
     private static FlagTapeEntryQueue create(Context context, Gson gson) {
         Converter<FlagTapeEntry> converter = new GsonConverter<FlagTapeEntry>(gson,
                 FlagTapeEntry.class);
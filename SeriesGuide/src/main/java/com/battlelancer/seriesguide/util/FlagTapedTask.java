@@ -18,160 +18,199 @@
 package com.battlelancer.seriesguide.util;
 
 import com.battlelancer.seriesguide.util.FlagTapeEntry.Flag;
-import com.battlelancer.seriesguide.util.FlagTask.FlagAction;
 import com.jakewharton.trakt.services.ShowService;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 
 import java.util.ArrayList;
 import java.util.List;
 
 import retrofit.RetrofitError;
 
+/**
+ * Sends one or more {@link FlagTapeEntry}s to trakt. Several entries are only sent together if
+ * {@link #canMerge(FlagTapeEntry, FlagTapeEntry)} allows it, they are then sent as one list of
+ * episodes.
+ */
 public class FlagTapedTask {
 
-    public interface Callback {
-
-        void onSuccess();
-
-        void onFailure(boolean isNotConnected);
+    public enum Result {
+        SUCCESS, FAILURE, NOT_CONNECTED
     }
 
-    private static final Handler MAIN_THREAD = new Handler(Looper.getMainLooper());
+    /**
+     * The trakt calls which take a list of episodes.
+     */
+    private enum EpisodesCall {
+        SEEN, UNSEEN, LIBRARY, UNLIBRARY
+    }
 
     private Context mContext;
 
     private ShowService mShowService;
 
-    private FlagAction mAction;
-
-    private int mShowId;
+    private List<FlagTapeEntry> mEntries;
 
-    private List<Flag> mFlags;
-
-    private boolean mIsFlag;
-
-    public FlagTapedTask(Context context, ShowService showService, FlagAction action, int showId,
-            List<Flag> flags, boolean isFlag) {
+    /**
+     * @param entries Entries of which each can be merged with the first one.
+     */
+    public FlagTapedTask(Context context, ShowService showService, List<FlagTapeEntry> entries) {
         mContext = context;
         mShowService = showService;
-        mAction = action;
-        mShowId = showId;
-        mFlags = flags;
-        mIsFlag = isFlag;
+        mEntries = entries;
     }
 
-    public void execute(final Callback callback) {
-        new Thread(new Runnable() {
+    /**
+     * Sends the entries on the calling thread. Do not call this on the main thread.
+     */
+    public Result execute() {
+        // do not even try if we are offline
+        if (!Utils.isAllowedConnection(mContext)) {
+            return Result.NOT_CONNECTED;
+        }
 
-            @Override
-            public void run() {
-                // do not even try if we are offline
-                if (!Utils.isAllowedConnection(mContext)) {
-                    postFailure(true);
-                    return;
-                }
+        try {
+            if (mEntries.size() == 1) {
+                send(mEntries.get(0));
+            } else {
+                sendMerged(mEntries);
+            }
+            return Result.SUCCESS;
+        } catch (RetrofitError e) {
+            return Result.FAILURE;
+        }
+    }
 
-                try {
-                    switch (mAction) {
-                        case EPISODE_WATCHED: {
-                            Flag episode = mFlags.get(0);
-                            if (mIsFlag) {
-                                mShowService.episodeSeen(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            } else {
-                                mShowService.episodeUnseen(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            }
-                            break;
-                        }
-                        case EPISODE_COLLECTED: {
-                            Flag episode = mFlags.get(0);
-                            if (mIsFlag) {
-                                mShowService.episodeLibrary(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            } else {
-                                mShowService.episodeUnlibrary(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            }
-                            break;
-                        }
-                        case SEASON_WATCHED: {
-                            if (mIsFlag) {
-                                mShowService.seasonSeen(
-                                        new ShowService.Season(mShowId, mFlags.get(0).season));
-                            } else {
-                                mShowService.episodeUnseen(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)));
-                            }
-                            break;
-                        }
-                        case SEASON_COLLECTED: {
-                            if (mIsFlag) {
-                                mShowService.seasonLibrary(
-                                        new ShowService.Season(mShowId, mFlags.get(0).season));
-                            } else {
-                                mShowService.episodeUnlibrary(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)));
-                            }
-                            break;
-                        }
-                        case SHOW_WATCHED: {
-                            if (mIsFlag) {
-                                mShowService.showSeen(new ShowService.Show(mShowId));
-                            } else {
-                                mShowService.episodeUnseen(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)
-                                ));
-                            }
-                            break;
-                        }
-                        case SHOW_COLLECTED: {
-                            if (mIsFlag) {
-                                mShowService.showLibrary(new ShowService.Show(mShowId));
-                            } else {
-                                mShowService.episodeUnlibrary(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)
-                                ));
-                            }
-                            break;
-                        }
-                        case EPISODE_WATCHED_PREVIOUS: {
-                            mShowService.episodeSeen(new ShowService.Episodes(
-                                    mShowId, buildEpisodeList(mFlags)
-                            ));
-                            break;
-                        }
-                    }
-
-                    // Get back to the main thread before invoking a callback.
-                    MAIN_THREAD.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.onSuccess();
-                        }
-                    });
-                } catch (RetrofitError e) {
-                    postFailure(false);
+    private void send(FlagTapeEntry entry) {
+        int showId = entry.showId;
+        List<Flag> flags = entry.flags;
+        switch (entry.action) {
+            case EPISODE_WATCHED: {
+                Flag episode = flags.get(0);
+                if (entry.isFlag) {
+                    mShowService.episodeSeen(
+                            new ShowService.Episodes(showId, episode.season, episode.episode));
+                } else {
+                    mShowService.episodeUnseen(
+                            new ShowService.Episodes(showId, episode.season, episode.episode));
                 }
+                break;
             }
-
-            public void postFailure(final boolean isNotConnected) {
-                // Get back to the main thread before invoking a callback.
-                MAIN_THREAD.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onFailure(isNotConnected);
-                    }
-                });
+            case EPISODE_COLLECTED: {
+                Flag episode = flags.get(0);
+                if (entry.isFlag) {
+                    mShowService.episodeLibrary(
+                            new ShowService.Episodes(showId, episode.season, episode.episode));
+                } else {
+                    mShowService.episodeUnlibrary(
+                            new ShowService.Episodes(showId, episode.season, episode.episode));
+                }
+                break;
+            }
+            case SEASON_WATCHED: {
+                if (entry.isFlag) {
+                    mShowService.seasonSeen(new ShowService.Season(showId, flags.get(0).season));
+                } else {
+                    mShowService.episodeUnseen(
+                            new ShowService.Episodes(showId, buildEpisodeList(flags)));
+                }
+                break;
             }
-        }).start();
+            case SEASON_COLLECTED: {
+                if (entry.isFlag) {
+                    mShowService.seasonLibrary(
+                            new ShowService.Season(showId, flags.get(0).season));
+                } else {
+                    mShowService.episodeUnlibrary(
+                            new ShowService.Episodes(showId, buildEpisodeList(flags)));
+                }
+                break;
+            }
+            case SHOW_WATCHED: {
+                if (entry.isFlag) {
+                    mShowService.showSeen(new ShowService.Show(showId));
+                } else {
+                    mShowService.episodeUnseen(
+                            new ShowService.Episodes(showId, buildEpisodeList(flags)));
+                }
+                break;
+            }
+            case SHOW_COLLECTED: {
+                if (entry.isFlag) {
+                    mShowService.showLibrary(new ShowService.Show(showId));
+                } else {
+                    mShowService.episodeUnlibrary(
+                            new ShowService.Episodes(showId, buildEpisodeList(flags)));
+                }
+                break;
+            }
+            case EPISODE_WATCHED_PREVIOUS: {
+                mShowService.episodeSeen(
+                        new ShowService.Episodes(showId, buildEpisodeList(flags)));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sends the episodes of all entries with one call.
+     */
+    private void sendMerged(List<FlagTapeEntry> entries) {
+        FlagTapeEntry first = entries.get(0);
+        List<Flag> flags = new ArrayList<Flag>();
+        for (FlagTapeEntry entry : entries) {
+            flags.addAll(entry.flags);
+        }
+        ShowService.Episodes episodes = new ShowService.Episodes(first.showId,
+                buildEpisodeList(flags));
+
+        switch (getEpisodesCall(first)) {
+            case SEEN:
+                mShowService.episodeSeen(episodes);
+                break;
+            case UNSEEN:
+                mShowService.episodeUnseen(episodes);
+                break;
+            case LIBRARY:
+                mShowService.episodeLibrary(episodes);
+                break;
+            case UNLIBRARY:
+                mShowService.episodeUnlibrary(episodes);
+                break;
+        }
+    }
+
+    /**
+     * Whether the given entry can be sent together with the first entry of a batch. This is the
+     * case if both are for the same show and are sent with the same call taking a list of
+     * episodes.
+     */
+    public static boolean canMerge(FlagTapeEntry first, FlagTapeEntry entry) {
+        EpisodesCall call = getEpisodesCall(first);
+        return call != null && first.showId == entry.showId && call == getEpisodesCall(entry);
+    }
+
+    /**
+     * Returns the call taking a list of episodes the given entry is sent with, or {@code null}
+     * if it is sent with a season or show call.
+     */
+    private static EpisodesCall getEpisodesCall(FlagTapeEntry entry) {
+        switch (entry.action) {
+            case EPISODE_WATCHED:
+                return entry.isFlag ? EpisodesCall.SEEN : EpisodesCall.UNSEEN;
+            case EPISODE_COLLECTED:
+                return entry.isFlag ? EpisodesCall.LIBRARY : EpisodesCall.UNLIBRARY;
+            case SEASON_WATCHED:
+            case SHOW_WATCHED:
+                return entry.isFlag ? null : EpisodesCall.UNSEEN;
+            case SEASON_COLLECTED:
+            case SHOW_COLLECTED:
+                return entry.isFlag ? null : EpisodesCall.UNLIBRARY;
+            case EPISODE_WATCHED_PREVIOUS:
+                return EpisodesCall.SEEN;
+            default:
+                return null;
+        }
     }
 
     private static List<ShowService.Episodes.Episode> buildEpisodeList(List<Flag> flags) {
@@ -668,6 +668,7 @@ public class FlagTask extends AsyncTask<Void, Integer, Integer> {
                 && TraktSettings.hasTraktCredentials(mContext);
 
         // prepare trakt stuff
+        FlagTapeEntry entry = null;
         if (mIsTraktInvolved) {
             if (!Utils.isAllowedConnection(mContext)) {
                 return -1;
@@ -678,15 +679,25 @@ public class FlagTask extends AsyncTask<Void, Integer, Integer> {
             // convert to boolean flag used by trakt (un/watched, un/collected)
             boolean isFlag = !EpisodeTools.isUnwatched(mType.mEpisodeFlag);
 
-            // Add a new taped flag task to the tape queue
-            FlagTapeEntryQueue.getInstance(mContext).add(
-                    new FlagTapeEntry(mType.mAction, mType.mShowTvdbId, episodes, isFlag));
+            entry = new FlagTapeEntry(mType.mAction, mType.mShowTvdbId, episodes, isFlag);
+            entry.journalStart = TraktSync.getMaxJournalSequence(mContext);
         }
 
         // always update local database
         mType.updateDatabase();
         mType.storeLastEpisode();
 
+        if (entry != null) {
+            // the journaled changes are removed once trakt accepted the entry
+            entry.journalEnd = TraktSync.getMaxJournalSequence(mContext);
+            // Add a new taped flag task to the tape queue
+            FlagTapeEntryQueue.getInstance(mContext).add(entry);
+        }
+        if (!TraktSettings.hasTraktCredentials(mContext)) {
+            // nothing to upload the journaled changes to
+            TraktSync.clearFlagJournal(mContext);
+        }
+
         return 0;
     }
 
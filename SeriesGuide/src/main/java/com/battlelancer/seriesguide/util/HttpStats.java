@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import com.squareup.okhttp.HttpResponseCache;
+
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts requests per host made through connections opened with {@link
+ * ServiceUtils#buildHttpUrlConnection(android.content.Context, String)}, how many of them were
+ * answered from the HTTP response cache and roughly how many bytes that saved.
+ */
+public class HttpStats {
+
+    private static final String TAG = "HttpStats";
+
+    /**
+     * Header OkHttp adds to each response, e.g. "CACHE 200", "CONDITIONAL_CACHE 304" or "NETWORK
+     * 200".
+     */
+    private static final String HEADER_RESPONSE_SOURCE = "OkHttp-Response-Source";
+
+    private static final Map<String, HostStats> sHosts = new TreeMap<>();
+
+    private static class HostStats {
+
+        int requestCount;
+
+        int cacheCount;
+
+        int conditionalCacheCount;
+
+        long bytesSaved;
+    }
+
+    /* This class is never initialized */
+    private HttpStats() {
+    }
+
+    /**
+     * Records the response of a connection. Call only after the response was received.
+     */
+    public static void record(HttpURLConnection connection) {
+        String source = connection.getHeaderField(HEADER_RESPONSE_SOURCE);
+        boolean isCached = source != null && source.startsWith("CACHE");
+        boolean isConditional = source != null && source.startsWith("CONDITIONAL_CACHE");
+        int contentLength = connection.getContentLength();
+
+        synchronized (sHosts) {
+            String host = connection.getURL().getHost();
+            HostStats stats = sHosts.get(host);
+            if (stats == null) {
+                stats = new HostStats();
+                sHosts.put(host, stats);
+            }
+            stats.requestCount++;
+            if (isCached) {
+                stats.cacheCount++;
+            } else if (isConditional) {
+                // only the 304 headers were downloaded
+                stats.conditionalCacheCount++;
+            }
+            if ((isCached || isConditional) && contentLength > 0) {
+                stats.bytesSaved += contentLength;
+            }
+        }
+    }
+
+    /**
+     * Logs the stats of each host, then the totals of the shared response cache. trakt and TMDb
+     * requests are in neither: they skip the cache and are not recorded.
+     */
+    public static void logStats() {
+        synchronized (sHosts) {
+            for (Map.Entry<String, HostStats> host : sHosts.entrySet()) {
+                HostStats stats = host.getValue();
+                Log.d(TAG, host.getKey() + ": requests: " + stats.requestCount + ", from cache: "
+                        + stats.cacheCount + ", validated: " + stats.conditionalCacheCount
+                        + ", saved ~" + stats.bytesSaved / 1024 + " KB");
+            }
+        }
+
+        HttpResponseCache cache = ServiceUtils.getHttpCache();
+        if (cache != null) {
+            Log.d(TAG, "Response cache: " + cache.getSize() / 1024 + " KB, requests: "
+                    + cache.getRequestCount() + ", hits: " + cache.getHitCount() + ", network: "
+                    + cache.getNetworkCount());
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+import com.uwetrottmann.androidutils.AndroidUtils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded disk tier of {@link ImageProvider}. Images are stored in a journaled {@link DiskLruCache}
+ * keyed by the SHA-1 hash of their path, the least recently used images are evicted once the
+ * total size exceeds {@link #MAX_SIZE_BYTES}. The journal is replayed when the cache is opened, so
+ * images which were not completely written (e.g. the app was killed) are removed on startup.
+ * Evicted TVDb posters are queued for download again by {@link ImageProvider} once they are
+ * requested.
+ *
+ * <p> Images stored by older versions directly in the cache directory are moved into the cache the
+ * first time they are requested.
+ */
+class ImageDiskCache {
+
+    private static final String TAG = "ImageDiskCache";
+
+    private static final String DIRECTORY = "images";
+
+    /**
+     * Changing this version clears the cache.
+     */
+    private static final int VERSION = 1;
+
+    private static final long MAX_SIZE_BYTES = 64 * 1024 * 1024;
+
+    private final String mLegacyDir;
+
+    private final File mDirectory;
+
+    private DiskLruCache mCache;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    /**
+     * @param cacheDir The directory images were stored in so far, the cache is created in a sub
+     *                 directory.
+     */
+    ImageDiskCache(String cacheDir) {
+        mLegacyDir = cacheDir;
+        mDirectory = new File(cacheDir, DIRECTORY);
+    }
+
+    /**
+     * Returns a stream of the cached image, or {@code null} if it is not cached. The stream must
+     * be closed by the caller.
+     */
+    InputStream get(String imagePath) {
+        InputStream in = read(imagePath);
+        if (in != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return in;
+    }
+
+    /**
+     * Like {@link #get(String)}, but does not count as a cache access. Use for internal checks.
+     */
+    InputStream read(String imagePath) {
+        DiskLruCache cache = getCache();
+        if (cache == null) {
+            return null;
+        }
+
+        String key = keyOf(imagePath);
+        try {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            if (snapshot == null && importLegacyImage(cache, imagePath, key)) {
+                snapshot = cache.get(key);
+            }
+            if (snapshot != null) {
+                // closing the stream releases the snapshot
+                return snapshot.getInputStream(0);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + imagePath, e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns an editor to store the given image, or {@code null} if it can currently not be
+     * written. Write to {@link DiskLruCache.Editor#newOutputStream(int)} with index 0, then call
+     * {@link DiskLruCache.Editor#commit()} or {@link DiskLruCache.Editor#abort()}.
+     */
+    DiskLruCache.Editor edit(String imagePath) {
+        DiskLruCache cache = getCache();
+        if (cache == null) {
+            return null;
+        }
+
+        try {
+            return cache.edit(keyOf(imagePath));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not edit " + imagePath, e);
+            return null;
+        }
+    }
+
+    boolean contains(String imagePath) {
+        DiskLruCache cache = getCache();
+        if (cache == null) {
+            return false;
+        }
+
+        try {
+            DiskLruCache.Snapshot snapshot = cache.get(keyOf(imagePath));
+            if (snapshot != null) {
+                snapshot.close();
+                return true;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + imagePath, e);
+        }
+        return getLegacyFile(imagePath).exists();
+    }
+
+    void remove(String imagePath) {
+        getLegacyFile(imagePath).delete();
+
+        DiskLruCache cache = getCache();
+        if (cache == null) {
+            return;
+        }
+        try {
+            cache.remove(keyOf(imagePath));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not remove " + imagePath, e);
+        }
+    }
+
+    /**
+     * Deletes all cached images. The cache is opened again on next access.
+     */
+    synchronized void clear() {
+        if (mCache != null) {
+            try {
+                mCache.delete();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not delete cache", e);
+            }
+            mCache = null;
+        }
+    }
+
+    /**
+     * Total size in bytes of all cached images.
+     */
+    synchronized long size() {
+        return mCache != null ? mCache.size() : 0;
+    }
+
+    int hitCount() {
+        return mHitCount.get();
+    }
+
+    int missCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Opens the cache if necessary. This reads the journal, so avoid calling it on the main
+     * thread. Returns {@code null} if external storage is not available.
+     */
+    private synchronized DiskLruCache getCache() {
+        if (!AndroidUtils.isExtStorageAvailable()) {
+            return null;
+        }
+        if (mCache == null || mCache.isClosed()) {
+            try {
+                mCache = DiskLruCache.open(mDirectory, VERSION, 1, MAX_SIZE_BYTES);
+                Log.d(TAG, "Opened cache, size: " + mCache.size() / 1024 + " KB");
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open cache", e);
+                mCache = null;
+            }
+        }
+        return mCache;
+    }
+
+    /**
+     * Moves an image stored by an older version into the cache.
+     *
+     * @return {@code false} if there was no such image or it could not be moved.
+     */
+    private boolean importLegacyImage(DiskLruCache cache, String imagePath, String key)
+            throws IOException {
+        File legacyFile = getLegacyFile(imagePath);
+        if (!legacyFile.exists()) {
+            return false;
+        }
+
+        DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            // currently written by another thread
+            return false;
+        }
+        boolean isCommitted = false;
+        try {
+            InputStream in = new FileInputStream(legacyFile);
+            try {
+                OutputStream out = editor.newOutputStream(0);
+                try {
+                    AndroidUtils.copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            editor.commit();
+            isCommitted = true;
+        } finally {
+            if (!isCommitted) {
+                editor.abort();
+            }
+        }
+
+        legacyFile.delete();
+        return true;
+    }
+
+    private File getLegacyFile(String imagePath) {
+        return new File(mLegacyDir, Integer.toHexString(imagePath.hashCode()) + ".JPEG");
+    }
+
+    private static String keyOf(String imagePath) {
+        // keys are limited to [a-z0-9_-]{1,64}, hex encoded SHA-1 hashes fit
+        return Utils.toSHA1(imagePath.getBytes());
+    }
+
+}
@@ -19,8 +19,8 @@ package com.battlelancer.seriesguide.util;
 
 import com.battlelancer.seriesguide.settings.DisplaySettings;
 import com.battlelancer.seriesguide.ui.SeriesGuidePreferences;
+import com.jakewharton.disklrucache.DiskLruCache;
 import com.uwetrottmann.androidutils.AndroidUtils;
-import com.uwetrottmann.androidutils.AsyncTask;
 import com.uwetrottmann.seriesguide.R;
 
 import android.annotation.TargetApi;
@@ -35,20 +35,40 @@ import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Retrieves and stores images from/to disk, uses a low-memory auto-evicting LRU cache to speed up
- * responses.
+ * responses. On disk images are kept in a size bounded {@link ImageDiskCache}. Also downloads
+ * images from the Internet, see {@link ImageDownloader}.
+ *
+ * <p> Concurrent requests for the same image are merged into one. Requests for images which are
+ * about to be displayed are loaded before prefetch requests.
  *
  * Built with code from http://code.google.com/p/iogallery of Google I/O 2012 by Jeff Sharkey.
  */
@@ -70,10 +90,76 @@ public class ImageProvider {
 
     private static final float THUMBNAIL_HEIGHT_LARGE = 150.0f;
 
+    /**
+     * Images displayed at up to this many pixels are decoded without alpha and at lower color
+     * depth, which halves their memory usage.
+     */
+    private static final int SMALL_IMAGE_MAX_PIXELS = 320 * 480;
+
+    /**
+     * Decoding is mostly bound by the CPU, so use one loader thread per core. Use at least two as
+     * loading also waits for disk and network.
+     */
+    private static final int LOADER_THREADS = Math.max(2,
+            Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    /**
+     * If more requests are waiting, the least important one is dropped.
+     */
+    private static final int MAX_QUEUED_REQUESTS = 48;
+
+    /**
+     * Priority of requests for images which might be displayed later.
+     */
+    private static final int PRIORITY_PREFETCH = 0;
+
+    /**
+     * Priority of requests for images which are about to be displayed.
+     */
+    private static final int PRIORITY_VISIBLE = 1;
+
     private static ImageProvider _instance;
 
     private ImageCache mCache;
 
+    private BitmapPool mPool;
+
+    private ImageDiskCache mDiskCache;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(LOADER_THREADS,
+            LOADER_THREADS, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+
+    /**
+     * Requests which are queued or loading by memory cache key. Only accessed on the main thread.
+     */
+    private final Map<String, ImageRequest> mInFlight = new HashMap<>();
+
+    /**
+     * The request each image view waits for. Only accessed on the main thread.
+     */
+    private final Map<ImageView, ImageRequest> mViewRequests = new WeakHashMap<>();
+
+    /**
+     * The bitmap each view shows, each holds a reference in {@link #mCache}. Only accessed on the
+     * main thread.
+     */
+    private final Map<ImageView, Bitmap> mDisplayed = new WeakHashMap<>();
+
+    /**
+     * TVDb images queued for download again after they were evicted from the disk cache.
+     */
+    private final Set<String> mRequeued = Collections.synchronizedSet(new HashSet<String>());
+
+    private int mRequestCount;
+
+    private int mMergedCount;
+
+    private int mCanceledCount;
+
+    private int mDroppedCount;
+
     private String mCacheDir;
 
     private Context mContext;
@@ -91,7 +177,8 @@ public class ImageProvider {
         final ActivityManager am = (ActivityManager) context
                 .getSystemService(Context.ACTIVITY_SERVICE);
         final int memoryClassBytes = am.getMemoryClass() * 1024 * 1024;
-        mCache = new ImageCache(memoryClassBytes / 8);
+        mPool = new BitmapPool(memoryClassBytes / 32);
+        mCache = new ImageCache(memoryClassBytes / 8, mPool);
 
         // determine cache path on external storage
         // TODO enable once implemented storing with ImageProvider
@@ -109,6 +196,7 @@ public class ImageProvider {
 
         mCacheDir = Environment.getExternalStorageDirectory().getAbsolutePath() + "/Android/data/"
                 + context.getPackageName() + "/files";
+        mDiskCache = new ImageDiskCache(mCacheDir);
 
         // listen to trim or low memory callbacks so we can shrink our memory
         // footprint
@@ -126,6 +214,7 @@ public class ImageProvider {
                 @Override
                 public void onTrimMemory(int level) {
                     Log.v(TAG, "onTrimMemory() with level=" + level);
+                    logStats();
 
                     // Memory we can release here will help overall system
                     // performance, and make us a smaller target as the system
@@ -136,12 +225,21 @@ public class ImageProvider {
                         // evict our entire thumbnail cache
                         Log.v(TAG, "evicting entire thumbnail cache");
                         mCache.evictAll();
+                        mPool.evictAll();
 
                     } else if (level >= TRIM_MEMORY_BACKGROUND) { // 40
                         // Entering list of cached background apps; evict oldest
                         // half of our thumbnail cache
                         Log.v(TAG, "evicting oldest half of thumbnail cache");
                         mCache.trimToSize(mCache.size() / 2);
+                        mPool.trimToSize(mPool.maxSize() / 2);
+
+                    } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) { // 15
+                        // we are still visible, keep images but drop reusable bitmaps
+                        mPool.evictAll();
+
+                    } else if (level >= TRIM_MEMORY_RUNNING_LOW) { // 10
+                        mPool.trimToSize(mPool.maxSize() / 2);
                     }
                 }
             });
@@ -177,49 +275,279 @@ public class ImageProvider {
 
     /**
      * Sets the image bitmap, either directly from cache or loads it asynchronously from external
-     * storage.
+     * storage. The image is downsampled to the size of the image view. Must be called on the main
+     * thread.
      */
     public void loadImage(ImageView imageView, String imagePath, boolean loadThumbnail) {
         if (TextUtils.isEmpty(imagePath)) {
             // there is no image available
-            setPlaceholderToImageView(imageView);
+            cancelRequest(imageView);
+            display(imageView, null, false);
             return;
         }
 
-        // cancel any pending loader task, since this view is now bound to a new image
-        final ImageLoaderTask oldTask = (ImageLoaderTask) imageView.getTag();
-        if (oldTask != null) {
-            oldTask.cancel(false);
+        load(imageView, imagePath, loadThumbnail, false, true);
+    }
+
+    /**
+     * Like {@link #loadImage(ImageView, String, boolean)}, but downloads the image from the given
+     * URL if it is not cached. Clears the image view while loading and if the image could not be
+     * loaded.
+     *
+     * @param isDiskCaching Whether to also store the downloaded image on disk.
+     */
+    public void loadImageFromUrl(ImageView imageView, String url, boolean isDiskCaching) {
+        if (url == null) {
+            cancelRequest(imageView);
+            display(imageView, null, true);
+            return;
         }
 
-        // looking for a smaller size?
-        if (loadThumbnail) {
-            imagePath += THUMB_SUFFIX;
+        load(imageView, url, false, true, isDiskCaching);
+    }
+
+    /**
+     * Loads an image into the memory cache for display in an image view of the given size later.
+     * Prefetch requests are only loaded while there are no requests for visible images. Must be
+     * called on the main thread.
+     */
+    public void prefetchImage(String imagePath, boolean loadThumbnail, int reqWidth,
+            int reqHeight) {
+        if (TextUtils.isEmpty(imagePath) || mCache.get(
+                getCacheKey(imagePath, loadThumbnail, reqWidth, reqHeight)) != null) {
+            return;
         }
 
-        // check the cache for this image
-        final Bitmap cachedResult = mCache.get(imagePath);
+        ImageRequest request = enqueue(imagePath, loadThumbnail, false, true, reqWidth, reqHeight,
+                PRIORITY_PREFETCH);
+        request.mIsPrefetch = true;
+    }
+
+    /**
+     * Stops loading an image into the given view. The load is canceled if no other view or
+     * prefetch waits for the image.
+     */
+    public void cancelRequest(ImageView imageView) {
+        final ImageRequest request = mViewRequests.remove(imageView);
+        if (request == null) {
+            return;
+        }
+
+        request.mTargets.remove(imageView);
+        if (request.mTargets.isEmpty() && !request.mIsPrefetch) {
+            // drop it before it is decoded
+            request.mIsCanceled = true;
+            if (mExecutor.remove(request)) {
+                mCanceledCount++;
+            }
+            if (mInFlight.get(request.mKey) == request) {
+                mInFlight.remove(request.mKey);
+            }
+        }
+    }
+
+    private void load(ImageView imageView, String imagePath, boolean loadThumbnail,
+            boolean isRemote, boolean isDiskCaching) {
+        final int reqWidth = getTargetWidth(imageView);
+        final int reqHeight = getTargetHeight(imageView);
+        final String key = getCacheKey(imagePath, loadThumbnail, reqWidth, reqHeight);
+
+        final ImageRequest previous = mViewRequests.get(imageView);
+        if (previous != null && previous.mKey.equals(key)) {
+            // already loading this image into this view
+            return;
+        }
+        // this view is now bound to a new image
+        cancelRequest(imageView);
+
+        // check the cache for this image at this size
+        final Bitmap cachedResult = mCache.getAndAcquire(key);
         if (cachedResult != null) {
             // found it!
-            setImageToImageView(imageView, cachedResult);
+            display(imageView, cachedResult, isRemote);
+            mCache.release(cachedResult);
             return;
         }
 
-        // cache miss, so we need to load from disk
-        final ImageLoaderTask task = new ImageLoaderTask(imageView);
-        imageView.setTag(task);
-        
-        /*
-         * NOTE: This uses a custom version of AsyncTask that has been
-         * pulled from the framework and slightly modified. Refer to the
-         * docs at the top of the class for more info on what was changed.
-         */
-        task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR, imagePath);
+        // cache miss, so we need to load from disk or download
+        final ImageRequest request = enqueue(imagePath, loadThumbnail, isRemote, isDiskCaching,
+                reqWidth, reqHeight, PRIORITY_VISIBLE);
+        request.mTargets.add(imageView);
+        mViewRequests.put(imageView, request);
+        if (isRemote) {
+            display(imageView, null, true);
+        }
+    }
+
+    /**
+     * Returns the request loading the given image, creates and queues a new request if there is
+     * none.
+     */
+    private ImageRequest enqueue(String imagePath, boolean loadThumbnail, boolean isRemote,
+            boolean isDiskCaching, int reqWidth, int reqHeight, int priority) {
+        mRequestCount++;
+        final String key = getCacheKey(imagePath, loadThumbnail, reqWidth, reqHeight);
+
+        ImageRequest request = mInFlight.get(key);
+        if (request == null) {
+            request = new ImageRequest(key, imagePath, loadThumbnail, isRemote, isDiskCaching,
+                    reqWidth, reqHeight, priority);
+            mInFlight.put(key, request);
+            mExecutor.execute(request);
+            trimQueue();
+            return request;
+        }
+
+        mMergedCount++;
+        // if still waiting, queue again as the most recent request
+        boolean isQueued = mExecutor.remove(request);
+        request.mPriority = Math.max(request.mPriority, priority);
+        if (isQueued) {
+            request.mSequence = mRequestCount;
+            mExecutor.execute(request);
+        }
+        return request;
+    }
+
+    /**
+     * Drops the least important waiting requests until at most {@link #MAX_QUEUED_REQUESTS} are
+     * waiting. Views waiting for a dropped request get no image.
+     */
+    private void trimQueue() {
+        while (mExecutor.getQueue().size() > MAX_QUEUED_REQUESTS) {
+            ImageRequest leastImportant = null;
+            for (Runnable runnable : mExecutor.getQueue()) {
+                ImageRequest request = (ImageRequest) runnable;
+                if (leastImportant == null || request.compareTo(leastImportant) > 0) {
+                    leastImportant = request;
+                }
+            }
+            if (leastImportant == null || !mExecutor.remove(leastImportant)) {
+                return;
+            }
+            mDroppedCount++;
+            leastImportant.mIsCanceled = true;
+            deliver(leastImportant, null);
+        }
+    }
+
+    /**
+     * Number of image requests waiting for a loader thread.
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Runs on a loader thread. The caller adds the result to the memory cache.
+     */
+    private Bitmap loadBitmap(ImageRequest request) {
+        Bitmap result = null;
+        if (!request.mIsRemote || request.mIsDiskCaching) {
+            result = getImageFromExternalStorage(request.mImagePath, request.mIsThumbnail,
+                    request.mReqWidth, request.mReqHeight);
+        }
+        if (result == null && request.mIsRemote && !request.mIsCanceled) {
+            result = downloadImage(request);
+        }
+        if (result == null && !request.mIsRemote) {
+            requeueIfEvicted(request.mImagePath);
+        }
+        return result;
+    }
+
+    /**
+     * TVDb images are only downloaded when a show is added or updated. If one was evicted from the
+     * disk cache, queues it for download again so it shows up the next time it is loaded.
+     */
+    private void requeueIfEvicted(String imagePath) {
+        if (AndroidUtils.isExtStorageAvailable() && !mDiskCache.contains(imagePath)
+                && mRequeued.add(imagePath)) {
+            ArtFetchQueue.getInstance(mContext).add(imagePath, true);
+        }
+    }
+
+    private Bitmap downloadImage(ImageRequest request) {
+        final String url = request.mImagePath;
+        try {
+            final HttpURLConnection conn = ServiceUtils.buildHttpUrlConnection(mContext, url);
+            // images are stored in the image cache, don't store them twice
+            conn.setUseCaches(false);
+            final InputStream in = conn.getInputStream();
+            HttpStats.record(conn);
+            try {
+                if (request.mIsDiskCaching && AndroidUtils.isExtStorageAvailable()) {
+                    // store as is, then decode from disk
+                    if (!storeImage(url, in)) {
+                        return null;
+                    }
+                    return getImageFromExternalStorage(url, false, request.mReqWidth,
+                            request.mReqHeight);
+                }
+
+                // if we have no external storage, decode from memory
+                return decodeSampledBitmap(readFully(in), request.mReqWidth, request.mReqHeight,
+                        mPool);
+            } finally {
+                closeQuietly(in);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "I/O error while retrieving bitmap from " + url, e);
+        } catch (Exception e) {
+            Log.w(TAG, "Error while retrieving bitmap from " + url, e);
+        }
+        return null;
+    }
+
+    /**
+     * Hands the result of a request to all views still waiting for it, then drops the reference
+     * the request held on it. Runs on the main thread.
+     */
+    private void deliver(ImageRequest request, Bitmap result) {
+        if (mInFlight.get(request.mKey) == request) {
+            mInFlight.remove(request.mKey);
+        }
+        for (ImageView imageView : request.mTargets) {
+            if (mViewRequests.get(imageView) == request) {
+                mViewRequests.remove(imageView);
+                display(imageView, result, request.mIsRemote);
+            }
+        }
+        if (result != null) {
+            mCache.release(result);
+        }
+    }
+
+    /**
+     * Shows the given bitmap, or no image if it is {@code null}. The view holds a reference on its
+     * bitmap until it shows another one, so the bitmap is not reused while displayed. Runs on the
+     * main thread.
+     */
+    private void display(ImageView imageView, Bitmap bitmap, boolean isRemote) {
+        final Bitmap previous;
+        if (bitmap != null) {
+            mCache.acquire(bitmap);
+            previous = mDisplayed.put(imageView, bitmap);
+        } else {
+            previous = mDisplayed.remove(imageView);
+        }
+        if (previous != null) {
+            mCache.release(previous);
+        }
+
+        if (isRemote) {
+            imageView.setImageBitmap(bitmap);
+        } else if (bitmap != null) {
+            setImageToImageView(imageView, bitmap);
+        } else {
+            setPlaceholderToImageView(imageView);
+        }
     }
 
     /**
      * This will synchronously (!) access external storage to get the image if it is not cached
      * already. Make sure to run this on a background thread or use {@code loadPoster} instead.
+     * Returns the image at full resolution.
      */
     public Bitmap getImage(String imagePath, boolean loadThumbnail) {
         if (TextUtils.isEmpty(imagePath)) {
@@ -227,75 +555,242 @@ public class ImageProvider {
             return null;
         }
 
-        if (loadThumbnail) {
-            // look for the thumbnail of this poster
-            imagePath += THUMB_SUFFIX;
-        }
-
         // Check the cache for this image
-        Bitmap result = mCache.get(imagePath);
+        Bitmap result = mCache.get(getCacheKey(imagePath, loadThumbnail, 0, 0));
         if (result != null) {
             return result;
         }
 
-        result = getImageFromExternalStorage(imagePath);
+        result = getImageFromExternalStorage(imagePath, loadThumbnail, 0, 0);
+        if (result == null) {
+            requeueIfEvicted(imagePath);
+        } else {
+            mCache.put(getCacheKey(imagePath, loadThumbnail, 0, 0), result);
+        }
         return result;
     }
 
-    private Bitmap getImageFromExternalStorage(final String imagePath) {
+    /**
+     * @param reqWidth  Width the image is displayed at, or 0 to load it at full resolution.
+     * @param reqHeight Height the image is displayed at, or 0 to load it at full resolution.
+     */
+    private Bitmap getImageFromExternalStorage(final String imagePath, boolean loadThumbnail,
+            int reqWidth, int reqHeight) {
         // try to get image from disk
-        final File imageFile = getImageFile(imagePath);
-        if (imageFile.exists() && AndroidUtils.isExtStorageAvailable()) {
-            // disk cache hit
-            final Bitmap result = BitmapFactory.decodeFile(imageFile.getAbsolutePath());
-            if (result == null) {
-                // treat decoding errors as a cache miss
-                return null;
-            }
+        Bitmap result = decodeImage(getCacheKey(imagePath, loadThumbnail, 0, 0), reqWidth,
+                reqHeight);
+        if (result == null && loadThumbnail) {
+            // thumbnails are only created once they are needed
+            result = createThumbnail(imagePath);
+        }
+        // treat decoding errors as a cache miss
+        return result;
+    }
 
-            mCache.put(imagePath, result);
+    private Bitmap decodeImage(String key, int reqWidth, int reqHeight) {
+        final InputStream in = mDiskCache.get(key);
+        if (in == null) {
+            return null;
+        }
 
-            return result;
+        // disk cache hit, read once so bounds and pixels can be decoded from memory
+        try {
+            // only reuse memory of images decoded for views, full size images are handed out
+            return decodeSampledBitmap(readFully(in), reqWidth, reqHeight,
+                    reqWidth > 0 ? mPool : null);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + key, e);
+            return null;
+        } finally {
+            closeQuietly(in);
         }
+    }
 
-        return null;
+    /**
+     * Decodes the given image data. Reads the image dimensions first, then decodes the image
+     * downsampled so it is still at least as big as the requested size. Pass 0 as requested size
+     * to decode at full resolution.
+     *
+     * @param pool If not null, the image is decoded into a bitmap from the pool if possible. The
+     *             returned bitmap may be put into the pool once it is no longer displayed.
+     */
+    static Bitmap decodeSampledBitmap(byte[] data, int reqWidth, int reqHeight,
+            BitmapPool pool) {
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length);
+        }
+
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+
+        final BitmapFactory.Options options = getDecodeOptions(bounds.outWidth,
+                bounds.outHeight, reqWidth, reqHeight);
+        if (pool != null && AndroidUtils.isHoneycombOrHigher()) {
+            pool.addInBitmapOptions(options, bounds.outWidth, bounds.outHeight);
+            return decodeReusingBitmap(data, options);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bitmap decodeReusingBitmap(byte[] data, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // the image did not fit into the reused bitmap after all, allocate a new one
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Returns options to decode an image of the given size for display at the requested size.
+     * Chooses the sample size and, for small images, a pixel format without alpha.
+     */
+    static BitmapFactory.Options getDecodeOptions(int width, int height, int reqWidth,
+            int reqHeight) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(width, height, reqWidth, reqHeight);
+        if (reqWidth * reqHeight <= SMALL_IMAGE_MAX_PIXELS) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        return options;
     }
 
-    public void storeImage(String imagePath, Bitmap bitmap, boolean createThumbnail) {
-        if (AndroidUtils.isExtStorageAvailable()) {
-            // make sure directories exist
-            createDirectories();
+    /**
+     * Decodes a downsampled version of the given image and stores it as its thumbnail. Returns
+     * {@code null} if the image is not stored.
+     */
+    private Bitmap createThumbnail(String imagePath) {
+        int thumbWidth;
+        int thumbHeight;
+        // create bigger thumbnails on large screen devices
+        if (DisplaySettings.isVeryLargeScreen(mContext)) {
+            thumbWidth = (int) (THUMBNAIL_WIDTH_LARGE * mScale + 0.5f);
+            thumbHeight = (int) (THUMBNAIL_HEIGHT_LARGE * mScale + 0.5f);
+        } else {
+            thumbWidth = (int) (THUMBNAIL_WIDTH_DIP * mScale + 0.5f);
+            thumbHeight = (int) (THUMBNAIL_HEIGHT_DIP * mScale + 0.5f);
+        }
 
-            final File imageFile = getImageFile(imagePath);
+        // the thumbnail lookup was already counted, so do not count reading the image
+        final InputStream in = mDiskCache.read(imagePath);
+        if (in == null) {
+            return null;
+        }
+        final Bitmap thumbnail;
+        try {
+            thumbnail = decodeSampledBitmap(readFully(in), thumbWidth, thumbHeight, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + imagePath, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        if (thumbnail == null) {
+            return null;
+        }
 
+        final DiskLruCache.Editor editor = mDiskCache.edit(imagePath + THUMB_SUFFIX);
+        if (editor != null) {
+            boolean isCommitted = false;
             try {
-                imageFile.createNewFile();
-                FileOutputStream ostream = new FileOutputStream(imageFile);
+                OutputStream ostream = editor.newOutputStream(0);
                 try {
-                    bitmap.compress(IMAGE_FORMAT, IMAGE_QUALITY, ostream);
+                    thumbnail.compress(IMAGE_FORMAT, IMAGE_QUALITY, ostream);
                 } finally {
                     ostream.close();
                 }
+                editor.commit();
+                isCommitted = true;
             } catch (IOException e) {
-                Log.e(TAG, e.getMessage());
+                Log.e(TAG, "Could not store thumbnail of " + imagePath, e);
+            } finally {
+                if (!isCommitted) {
+                    abortQuietly(editor);
+                }
             }
+        }
 
-            // create a thumbnail, too, if requested
-            if (createThumbnail) {
-                int scaledWidth;
-                int scaledHeight;
-                // create bigger thumbnails on large screen devices
-                if (DisplaySettings.isVeryLargeScreen(mContext)) {
-                    scaledWidth = (int) (THUMBNAIL_WIDTH_LARGE * mScale + 0.5f);
-                    scaledHeight = (int) (THUMBNAIL_HEIGHT_LARGE * mScale + 0.5f);
-                } else {
-                    scaledWidth = (int) (THUMBNAIL_WIDTH_DIP * mScale + 0.5f);
-                    scaledHeight = (int) (THUMBNAIL_HEIGHT_DIP * mScale + 0.5f);
-                }
-                storeImage(imagePath + THUMB_SUFFIX,
-                        Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true), false);
+        return thumbnail;
+    }
+
+    /**
+     * Returns the largest power of two sample size which keeps both sides of the decoded image at
+     * least as big as requested.
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth
+                && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Stores the image data read from the given stream as is. Any existing thumbnail is removed.
+     * Does not close the stream.
+     *
+     * @return {@code false} if the image could not be stored or is not a valid image.
+     */
+    public boolean storeImage(String imagePath, InputStream in) {
+        if (!AndroidUtils.isExtStorageAvailable()) {
+            return false;
+        }
+
+        // make sure directories exist
+        createDirectories();
+
+        final DiskLruCache.Editor editor = mDiskCache.edit(imagePath);
+        if (editor == null) {
+            return false;
+        }
+        boolean isCommitted = false;
+        try {
+            OutputStream ostream = editor.newOutputStream(0);
+            try {
+                AndroidUtils.copy(in, ostream);
+            } finally {
+                ostream.close();
+            }
+            editor.commit();
+            isCommitted = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store " + imagePath, e);
+            return false;
+        } finally {
+            if (!isCommitted) {
+                abortQuietly(editor);
             }
         }
+        mDiskCache.remove(imagePath + THUMB_SUFFIX);
+
+        // make sure we got an image, only reads its header
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        final InputStream stored = mDiskCache.read(imagePath);
+        if (stored != null) {
+            try {
+                BitmapFactory.decodeStream(stored, null, options);
+            } finally {
+                closeQuietly(stored);
+            }
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "Not a valid image: " + imagePath);
+            mDiskCache.remove(imagePath);
+            return false;
+        }
+
+        return true;
     }
 
     /**
@@ -303,21 +798,19 @@ public class ImageProvider {
      */
     public void removeImage(String imagePath) {
         try {
-            getImageFile(imagePath).delete();
-            getImageFile(imagePath + THUMB_SUFFIX).delete();
+            mDiskCache.remove(imagePath);
+            mDiskCache.remove(imagePath + THUMB_SUFFIX);
         } catch (SecurityException se) {
             // we don't care
         }
     }
 
+    /**
+     * Whether the given image is stored on disk. Accesses external storage, so do not call this
+     * on the main thread.
+     */
     public boolean exists(String imagePath) {
-        return getImageFile(imagePath).exists();
-    }
-
-    public File getImageFile(String imagePath) {
-        final String fileName = mCacheDir + "/" + Integer.toHexString(imagePath.hashCode()) + "."
-                + IMAGE_FORMAT.name();
-        return new File(fileName);
+        return mDiskCache.contains(imagePath);
     }
 
     private void createDirectories() {
@@ -350,13 +843,17 @@ public class ImageProvider {
      */
     public void clearCache() {
         Log.v(TAG, "evicting entire thumbnail cache");
+        logStats();
         mCache.evictAll();
+        mPool.evictAll();
     }
 
     /**
      * Clear all files in cache directory.
      */
     public void clearExternalStorageCache() {
+        mDiskCache.clear();
+
         final File directory = new File(mCacheDir);
         final File[] files = directory.listFiles();
         if (files != null) {
@@ -366,6 +863,90 @@ public class ImageProvider {
         }
     }
 
+    /**
+     * Returns the key of an image in the disk cache if no size is given, or the key of the image
+     * decoded for the given size in the memory cache.
+     */
+    private static String getCacheKey(String imagePath, boolean isThumbnail, int reqWidth,
+            int reqHeight) {
+        String key = isThumbnail ? imagePath + THUMB_SUFFIX : imagePath;
+        if (reqWidth > 0 && reqHeight > 0) {
+            key += "@" + reqWidth + "x" + reqHeight;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the width in pixels the given view displays images at. Uses its current or layout
+     * width, falls back to the screen width if neither is known yet.
+     */
+    static int getTargetWidth(ImageView imageView) {
+        int width = imageView.getWidth();
+        if (width <= 0 && imageView.getLayoutParams() != null) {
+            width = imageView.getLayoutParams().width;
+        }
+        if (width <= 0) {
+            width = imageView.getResources().getDisplayMetrics().widthPixels;
+        }
+        return width;
+    }
+
+    /**
+     * Like {@link #getTargetWidth(ImageView)}, but for the height.
+     */
+    static int getTargetHeight(ImageView imageView) {
+        int height = imageView.getHeight();
+        if (height <= 0 && imageView.getLayoutParams() != null) {
+            height = imageView.getLayoutParams().height;
+        }
+        if (height <= 0) {
+            height = imageView.getResources().getDisplayMetrics().heightPixels;
+        }
+        return height;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AndroidUtils.copy(in, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Logs size and hit rate of the memory and the disk cache.
+     */
+    public void logStats() {
+        Log.d(TAG, "Memory: " + mCache.size() / 1024 + " of " + mCache.maxSize() / 1024
+                + " KB, hits: " + mCache.hitCount() + ", misses: " + mCache.missCount()
+                + hitRate(mCache.hitCount(), mCache.missCount()) + "; disk: "
+                + mDiskCache.size() / 1024 + " KB, hits: " + mDiskCache.hitCount() + ", misses: "
+                + mDiskCache.missCount() + hitRate(mDiskCache.hitCount(),
+                mDiskCache.missCount()));
+        mPool.logStats();
+        Log.d(TAG, "Requests: " + mRequestCount + ", merged with a running request: "
+                + mMergedCount + ", canceled before loading: " + mCanceledCount + ", dropped: "
+                + mDroppedCount + ", waiting: " + getQueueDepth() + " for " + LOADER_THREADS
+                + " threads");
+    }
+
+    private static String hitRate(int hits, int misses) {
+        int requests = hits + misses;
+        return requests == 0 ? "" : " (" + (100 * hits / requests) + "%)";
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void abortQuietly(DiskLruCache.Editor editor) {
+        try {
+            editor.abort();
+        } catch (IOException ignored) {
+        }
+    }
+
     private void setPlaceholderToImageView(ImageView imageView) {
         imageView.setScaleType(ScaleType.CENTER_INSIDE);
         imageView.setImageResource(R.drawable.ic_image_missing);
@@ -376,43 +957,148 @@ public class ImageProvider {
         imageView.setImageBitmap(bitmap);
     }
 
-    public class ImageLoaderTask extends AsyncTask<String, Void, Bitmap> {
+    /**
+     * Loads one image for all views waiting for it. Requests with higher priority run first, then
+     * the most recent ones, as views requested earlier have likely been scrolled away.
+     */
+    private class ImageRequest implements Runnable, Comparable<ImageRequest> {
 
-        private ImageView mImageView;
+        final String mKey;
 
-        public ImageLoaderTask(ImageView imageView) {
-            mImageView = imageView;
-        }
+        final String mImagePath;
 
-        @Override
-        protected void onPreExecute() {
-            mImageView.setTag(this);
+        final boolean mIsThumbnail;
+
+        final boolean mIsRemote;
+
+        final boolean mIsDiskCaching;
+
+        final int mReqWidth;
+
+        final int mReqHeight;
+
+        final List<ImageView> mTargets = new ArrayList<>();
+
+        int mPriority;
+
+        long mSequence;
+
+        boolean mIsPrefetch;
+
+        volatile boolean mIsCanceled;
+
+        ImageRequest(String key, String imagePath, boolean isThumbnail, boolean isRemote,
+                boolean isDiskCaching, int reqWidth, int reqHeight, int priority) {
+            mKey = key;
+            mImagePath = imagePath;
+            mIsThumbnail = isThumbnail;
+            mIsRemote = isRemote;
+            mIsDiskCaching = isDiskCaching;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+            mPriority = priority;
+            mSequence = mRequestCount;
         }
 
         @Override
-        protected Bitmap doInBackground(String... params) {
-            final String imagePath = params[0];
-            return getImageFromExternalStorage(imagePath);
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final Bitmap result = mIsCanceled ? null : loadBitmap(this);
+            if (result != null) {
+                // keep it from being reused until it is delivered
+                mCache.acquire(result);
+                mCache.put(mKey, result);
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(ImageRequest.this, result);
+                }
+            });
         }
 
         @Override
-        protected void onPostExecute(Bitmap result) {
-            if (mImageView.getTag() == this) {
-                if (result != null) {
-                    setImageToImageView(mImageView, result);
-                } else {
-                    setPlaceholderToImageView(mImageView);
-                }
-                mImageView.setTag(null);
+        public int compareTo(ImageRequest another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
             }
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
         }
-
     }
 
+    /**
+     * Memory cache sized in bytes. Counts references on its bitmaps by views showing them and
+     * requests delivering them. Bitmaps removed from it are handed to a {@link BitmapPool} once
+     * they are no longer referenced, the pool only keeps those which were decoded for reuse.
+     */
     public static class ImageCache extends LruCache<String, Bitmap> {
 
-        public ImageCache(int maxSizeBytes) {
+        private final BitmapPool mPool;
+
+        /**
+         * Weak keys, so bitmaps of views which were never rebound can still be collected.
+         */
+        private final Map<Bitmap, Integer> mRefs = new WeakHashMap<>();
+
+        /**
+         * Bitmaps removed from the cache which are still referenced.
+         */
+        private final Map<Bitmap, Boolean> mRemoved = new WeakHashMap<>();
+
+        ImageCache(int maxSizeBytes, BitmapPool pool) {
             super(maxSizeBytes);
+            mPool = pool;
+        }
+
+        /**
+         * Like {@link #get(Object)}, but also adds a reference to the returned bitmap. Getting and
+         * referencing is atomic, so the bitmap can not be pooled in between.
+         */
+        synchronized Bitmap getAndAcquire(String key) {
+            final Bitmap bitmap = get(key);
+            if (bitmap != null) {
+                acquire(bitmap);
+            }
+            return bitmap;
+        }
+
+        synchronized void acquire(Bitmap bitmap) {
+            final Integer refs = mRefs.get(bitmap);
+            mRefs.put(bitmap, refs == null ? 1 : refs + 1);
+        }
+
+        /**
+         * Drops a reference, pools the bitmap if it was the last one and the bitmap is no longer
+         * cached.
+         */
+        synchronized void release(Bitmap bitmap) {
+            final Integer refs = mRefs.get(bitmap);
+            if (refs == null) {
+                return;
+            }
+            if (refs > 1) {
+                mRefs.put(bitmap, refs - 1);
+                return;
+            }
+            mRefs.remove(bitmap);
+            if (mRemoved.remove(bitmap) != null) {
+                mPool.put(bitmap);
+            }
+        }
+
+        @Override
+        protected synchronized void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                Bitmap newValue) {
+            if (oldValue == null || oldValue == newValue) {
+                return;
+            }
+            // reuse only once no view shows it
+            if (mRefs.containsKey(oldValue)) {
+                mRemoved.put(oldValue, Boolean.TRUE);
+            } else {
+                mPool.put(oldValue);
+            }
         }
 
         @TargetApi(12)
@@ -22,6 +22,9 @@ import com.battlelancer.seriesguide.settings.TraktSettings;
 import com.battlelancer.seriesguide.ui.ConnectTraktActivity;
 import com.jakewharton.trakt.Trakt;
 import com.jakewharton.trakt.entities.Response;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.HttpResponseCache;
+import com.squareup.okhttp.OkHttpClient;
 import com.uwetrottmann.androidutils.AndroidUtils;
 import com.uwetrottmann.seriesguide.R;
 import com.uwetrottmann.tmdb.Tmdb;
@@ -39,6 +42,12 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
 import retrofit.RetrofitError;
 
 /**
@@ -81,23 +90,103 @@ public final class ServiceUtils {
 
     private static final String YOUTUBE_PACKAGE = "com.google.android.youtube";
 
+    private static final String HTTP_CACHE_DIRECTORY = "http";
+
+    private static final long HTTP_CACHE_SIZE = 10 * 1024 * 1024;
+
     private static Trakt sTraktServiceManagerInstance;
 
     private static Trakt sTraktServiceManagerWithAuthInstance;
 
     private static Tmdb sTmdbServiceManagerInstance;
 
+    private static OkHttpClient sOkHttpClientInstance;
+
+    private static OkHttpClient sApiOkHttpClientInstance;
+
+    private static HttpResponseCache sHttpCache;
+
     /* This class is never initialized */
     private ServiceUtils() {
     }
 
+    /**
+     * Returns an {@link OkHttpClient} shared by all callers, so connections to the same host are
+     * kept alive and reused from its connection pool instead of being set up for each request.
+     * Responses are stored in an on-disk HTTP response cache. It is not installed as the default
+     * cache: trakt and TMDb requests must not get stale responses, e.g. trakt would return watched
+     * flags from before they were just sent. They use {@link #getApiOkHttpClient(Context)}.
+     */
+    public static synchronized OkHttpClient getOkHttpClient(Context context) {
+        if (sOkHttpClientInstance == null) {
+            sOkHttpClientInstance = new OkHttpClient();
+            sOkHttpClientInstance.setConnectionPool(ConnectionPool.getDefault());
+            try {
+                File cacheDir = new File(context.getApplicationContext().getCacheDir(),
+                        HTTP_CACHE_DIRECTORY);
+                sHttpCache = new HttpResponseCache(cacheDir, HTTP_CACHE_SIZE);
+                sOkHttpClientInstance.setResponseCache(sHttpCache);
+            } catch (IOException e) {
+                // work without cache
+                Log.w(TAG, "Could not create HTTP response cache", e);
+            }
+        }
+        return sOkHttpClientInstance;
+    }
+
+    /**
+     * Returns the {@link OkHttpClient} the trakt and TMDb service managers send their requests
+     * through. It shares the connection pool of {@link #getOkHttpClient(Context)}, but has no
+     * response cache.
+     */
+    private static synchronized OkHttpClient getApiOkHttpClient(Context context) {
+        if (sApiOkHttpClientInstance == null) {
+            sApiOkHttpClientInstance = new OkHttpClient();
+            sApiOkHttpClientInstance.setConnectionPool(getOkHttpClient(context)
+                    .getConnectionPool());
+        }
+        return sApiOkHttpClientInstance;
+    }
+
+    /**
+     * Returns the response cache of {@link #getOkHttpClient(Context)}, or {@code null} if it was
+     * not created, yet.
+     */
+    static synchronized HttpResponseCache getHttpCache() {
+        return sHttpCache;
+    }
+
+    /**
+     * Returns an {@link HttpURLConnection} opened with the shared {@link OkHttpClient}, using
+     * sensible default timeouts for mobile. Pass it to {@link HttpStats#record(HttpURLConnection)}
+     * once the response was received.
+     */
+    public static HttpURLConnection buildHttpUrlConnection(Context context, String urlString)
+            throws IOException {
+        HttpURLConnection conn = getOkHttpClient(context).open(new URL(urlString));
+        conn.setConnectTimeout(15 * 1000 /* milliseconds */);
+        conn.setReadTimeout(20 * 1000 /* milliseconds */);
+        return conn;
+    }
+
+    /**
+     * Downloads the given URL using {@link #buildHttpUrlConnection(Context, String)}. The stream
+     * must be closed by the caller.
+     */
+    public static InputStream downloadUrl(Context context, String urlString) throws IOException {
+        HttpURLConnection conn = buildHttpUrlConnection(context, urlString);
+        InputStream in = conn.getInputStream();
+        HttpStats.record(conn);
+        return in;
+    }
+
     /**
      * Get a tmdb-java ServiceManager with our API key set.
      */
     public static synchronized Tmdb getTmdbServiceManager(
             Context context) {
         if (sTmdbServiceManagerInstance == null) {
-            sTmdbServiceManagerInstance = new Tmdb();
+            sTmdbServiceManagerInstance = new SharedClientTmdb(getApiOkHttpClient(context));
             sTmdbServiceManagerInstance.setApiKey(context.getResources().getString(
                     R.string.tmdb_apikey));
         }
@@ -110,7 +199,8 @@ public final class ServiceUtils {
      */
     public static synchronized Trakt getTraktServiceManager(Context context) {
         if (ServiceUtils.sTraktServiceManagerInstance == null) {
-            ServiceUtils.sTraktServiceManagerInstance = new Trakt();
+            ServiceUtils.sTraktServiceManagerInstance = new SharedClientTrakt(
+                    getApiOkHttpClient(context));
             ServiceUtils.sTraktServiceManagerInstance.setApiKey(context.getResources().getString(
                     R.string.trakt_apikey));
         }
@@ -127,7 +217,8 @@ public final class ServiceUtils {
     public static synchronized Trakt getTraktServiceManagerWithAuth(Context context,
             boolean refreshCredentials) {
         if (ServiceUtils.sTraktServiceManagerWithAuthInstance == null) {
-            ServiceUtils.sTraktServiceManagerWithAuthInstance = new Trakt();
+            ServiceUtils.sTraktServiceManagerWithAuthInstance = new SharedClientTrakt(
+                    getApiOkHttpClient(context));
             ServiceUtils.sTraktServiceManagerWithAuthInstance.setApiKey(context.getResources()
                     .getString(
                             R.string.trakt_apikey));
@@ -220,6 +311,9 @@ public final class ServiceUtils {
         if (sTraktServiceManagerWithAuthInstance != null) {
             sTraktServiceManagerWithAuthInstance.setAuthentication(null, null);
         }
+
+        // a newly connected account gets all flags uploaded again
+        TraktSync.clearFlagJournal(context);
     }
 
     /**
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.uwetrottmann.tmdb.Tmdb;
+import com.uwetrottmann.tmdb.TmdbHelper;
+import com.uwetrottmann.tmdb.services.ConfigurationService;
+import com.uwetrottmann.tmdb.services.MoviesService;
+import com.uwetrottmann.tmdb.services.SearchService;
+
+import retrofit.RequestInterceptor;
+import retrofit.RestAdapter;
+import retrofit.client.OkClient;
+import retrofit.converter.GsonConverter;
+
+/**
+ * A {@link Tmdb} service manager which sends its requests through the given {@link OkHttpClient}
+ * instead of one retrofit creates. See {@link SharedClientTrakt}.
+ */
+class SharedClientTmdb extends Tmdb {
+
+    private static final String API_URL = "http://api.themoviedb.org/3";
+
+    private static final String PARAM_API_KEY = "api_key";
+
+    private final OkHttpClient mClient;
+
+    private String mApiKey;
+
+    private boolean mIsDebug;
+
+    private RestAdapter mRestAdapter;
+
+    SharedClientTmdb(OkHttpClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public Tmdb setApiKey(String value) {
+        synchronized (this) {
+            mApiKey = value;
+            mRestAdapter = null;
+        }
+        return super.setApiKey(value);
+    }
+
+    @Override
+    public Tmdb setIsDebug(boolean isDebug) {
+        synchronized (this) {
+            mIsDebug = isDebug;
+            mRestAdapter = null;
+        }
+        return super.setIsDebug(isDebug);
+    }
+
+    private synchronized RestAdapter buildRestAdapter() {
+        if (mRestAdapter == null) {
+            RestAdapter.Builder builder = new RestAdapter.Builder()
+                    .setServer(API_URL)
+                    .setClient(new OkClient(mClient))
+                    .setConverter(new GsonConverter(TmdbHelper.getGsonBuilder().create()));
+
+            final String apiKey = mApiKey;
+            builder.setRequestInterceptor(new RequestInterceptor() {
+                @Override
+                public void intercept(RequestFacade requestFacade) {
+                    requestFacade.addQueryParam(PARAM_API_KEY, apiKey);
+                }
+            });
+
+            if (mIsDebug) {
+                builder.setLogLevel(RestAdapter.LogLevel.FULL);
+            }
+
+            mRestAdapter = builder.build();
+        }
+        return mRestAdapter;
+    }
+
+    @Override
+    public MoviesService moviesService() {
+        return buildRestAdapter().create(MoviesService.class);
+    }
+
+    @Override
+    public SearchService searchService() {
+        return buildRestAdapter().create(SearchService.class);
+    }
+
+    @Override
+    public ConfigurationService configurationService() {
+        return buildRestAdapter().create(ConfigurationService.class);
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import com.jakewharton.trakt.Trakt;
+import com.jakewharton.trakt.TraktHelper;
+import com.jakewharton.trakt.services.AccountService;
+import com.jakewharton.trakt.services.ActivityService;
+import com.jakewharton.trakt.services.CalendarService;
+import com.jakewharton.trakt.services.CommentService;
+import com.jakewharton.trakt.services.GenreService;
+import com.jakewharton.trakt.services.ListService;
+import com.jakewharton.trakt.services.MovieService;
+import com.jakewharton.trakt.services.NetworkService;
+import com.jakewharton.trakt.services.RateService;
+import com.jakewharton.trakt.services.RecommendationsService;
+import com.jakewharton.trakt.services.SearchService;
+import com.jakewharton.trakt.services.ShowService;
+import com.jakewharton.trakt.services.UserService;
+import com.jakewharton.trakt.util.Base64;
+import com.squareup.okhttp.OkHttpClient;
+
+import retrofit.RequestInterceptor;
+import retrofit.RestAdapter;
+import retrofit.client.OkClient;
+import retrofit.converter.GsonConverter;
+
+/**
+ * A {@link Trakt} service manager which sends its requests through the given {@link
+ * OkHttpClient} instead of one retrofit creates. {@link Trakt} builds its {@link RestAdapter}
+ * privately, so this builds an equal one and creates all services from it.
+ */
+class SharedClientTrakt extends Trakt {
+
+    private static final String API_URL = "http://api.trakt.tv";
+
+    private static final String PARAM_API_KEY = "apikey";
+
+    private final OkHttpClient mClient;
+
+    private String mApiKey;
+
+    private String mUsername;
+
+    private String mPasswordSha1;
+
+    private boolean mIsDebug;
+
+    private RestAdapter mRestAdapter;
+
+    SharedClientTrakt(OkHttpClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public Trakt setAuthentication(String username, String passwordSha1) {
+        synchronized (this) {
+            mUsername = username;
+            mPasswordSha1 = passwordSha1;
+            mRestAdapter = null;
+        }
+        return super.setAuthentication(username, passwordSha1);
+    }
+
+    @Override
+    public Trakt setApiKey(String key) {
+        synchronized (this) {
+            mApiKey = key;
+            mRestAdapter = null;
+        }
+        return super.setApiKey(key);
+    }
+
+    @Override
+    public Trakt setIsDebug(boolean isDebug) {
+        synchronized (this) {
+            mIsDebug = isDebug;
+            mRestAdapter = null;
+        }
+        return super.setIsDebug(isDebug);
+    }
+
+    private synchronized RestAdapter buildRestAdapter() {
+        if (mRestAdapter == null) {
+            RestAdapter.Builder builder = new RestAdapter.Builder()
+                    .setServer(API_URL)
+                    .setClient(new OkClient(mClient))
+                    .setConverter(new GsonConverter(TraktHelper.getGsonBuilder().create()));
+
+            final String apiKey = mApiKey;
+            final String username = mUsername;
+            final String passwordSha1 = mPasswordSha1;
+            builder.setRequestInterceptor(new RequestInterceptor() {
+                @Override
+                public void intercept(RequestFacade requestFacade) {
+                    requestFacade.addPathParam(PARAM_API_KEY, apiKey);
+                    // if available, send username and password in header
+                    if (username != null && passwordSha1 != null) {
+                        String source = username + ":" + passwordSha1;
+                        requestFacade.addHeader("Authorization",
+                                "Basic " + Base64.encodeBytes(source.getBytes()));
+                    }
+                }
+            });
+
+            if (mIsDebug) {
+                builder.setLogLevel(RestAdapter.LogLevel.FULL);
+            }
+
+            mRestAdapter = builder.build();
+        }
+        return mRestAdapter;
+    }
+
+    @Override
+    public AccountService accountService() {
+        return buildRestAdapter().create(AccountService.class);
+    }
+
+    @Override
+    public ActivityService activityService() {
+        return buildRestAdapter().create(ActivityService.class);
+    }
+
+    @Override
+    public CalendarService calendarService() {
+        return buildRestAdapter().create(CalendarService.class);
+    }
+
+    @Override
+    public CommentService commentService() {
+        return buildRestAdapter().create(CommentService.class);
+    }
+
+    @Override
+    public GenreService genreService() {
+        return buildRestAdapter().create(GenreService.class);
+    }
+
+    @Override
+    public ListService listService() {
+        return buildRestAdapter().create(ListService.class);
+    }
+
+    @Override
+    public MovieService movieService() {
+        return buildRestAdapter().create(MovieService.class);
+    }
+
+    @Override
+    public NetworkService networkService() {
+        return buildRestAdapter().create(NetworkService.class);
+    }
+
+    @Override
+    public RateService rateService() {
+        return buildRestAdapter().create(RateService.class);
+    }
+
+    @Override
+    public RecommendationsService recommendationsService() {
+        return buildRestAdapter().create(RecommendationsService.class);
+    }
+
+    @Override
+    public SearchService searchService() {
+        return buildRestAdapter().create(SearchService.class);
+    }
+
+    @Override
+    public ShowService showService() {
+        return buildRestAdapter().create(ShowService.class);
+    }
+
+    @Override
+    public UserService userService() {
+        return buildRestAdapter().create(UserService.class);
+    }
+
+}
@@ -18,9 +18,10 @@
 package com.battlelancer.seriesguide.util;
 
 import com.battlelancer.seriesguide.enums.EpisodeFlags;
+import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeFlagJournal;
 import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
-import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
 import com.battlelancer.seriesguide.settings.TraktSettings;
 import com.jakewharton.trakt.Trakt;
 import com.jakewharton.trakt.entities.TvShow;
@@ -30,16 +31,22 @@ import com.uwetrottmann.androidutils.Lists;
 import com.uwetrottmann.seriesguide.R;
 
 import android.content.ContentProviderOperation;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import retrofit.RetrofitError;
 
@@ -57,6 +64,16 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
 
     private static final String TAG = "TraktSync";
 
+    /**
+     * Episode ids listed in the selection of a single update.
+     */
+    private static final int MAX_IDS_PER_UPDATE = 500;
+
+    /**
+     * Episodes sent to trakt with a single seen or unseen request.
+     */
+    private static final int MAX_EPISODES_PER_REQUEST = 100;
+
     private FragmentActivity mContext;
 
     private String mResult;
@@ -67,6 +84,10 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
 
     private boolean mIsSyncingUnseen;
 
+    private int mRequestCount;
+
+    private int mEpisodeCount;
+
     public TraktSync(FragmentActivity activity, View container, boolean isSyncToTrakt,
             boolean isSyncingUnseen) {
         mContext = activity;
@@ -123,6 +144,9 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
             return SUCCESS_NOWORK;
         }
 
+        long startTime = SystemClock.elapsedRealtime();
+        SparseArray<TvShow> traktShows = indexByTvdbId(shows);
+
         // get show ids in local database
         Cursor showTvdbIds = mContext.getContentResolver().query(Shows.CONTENT_URI, new String[]{
                 Shows._ID
@@ -133,51 +157,42 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
 
         // assume we have a local list of which shows to sync (later...)
         final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
+        int showCount = 0;
+        int changedCount = 0;
         while (showTvdbIds.moveToNext()) {
-            int showTvdbId = showTvdbIds.getInt(0);
-
-            // find a show with matching tvdb id
-            for (TvShow tvShow : shows) {
-                if (tvShow == null || tvShow.tvdb_id == null || tvShow.tvdb_id != showTvdbId) {
-                    // does not match, skip
-                    continue;
-                }
-
-                buildSeasonBatch(mContext, batch, tvShow, Episodes.WATCHED, EpisodeFlags.WATCHED);
-
-                // last chance to abort
-                if (isCancelled()) {
-                    showTvdbIds.close();
-                    return null;
-                }
-
-                // apply batch
-                if (mIsSyncingUnseen) {
-                    // remove any flags from all episodes
-                    ContentValues values = new ContentValues();
-                    values.put(Episodes.WATCHED, EpisodeFlags.UNWATCHED);
-                    mContext.getContentResolver().update(
-                            Episodes.buildEpisodesOfShowUri(showTvdbId), values, null, null);
-                }
-                DBUtils.applyInSmallBatches(mContext, batch);
-                batch.clear();
+            TvShow tvShow = traktShows.get(showTvdbIds.getInt(0));
+            if (tvShow == null) {
+                // not on trakt
+                continue;
+            }
 
-                // add to result string
-                if (mResult.length() != 0) {
-                    mResult += ", ";
-                }
-                mResult += tvShow.title;
+            changedCount += buildEpisodeFlagBatch(mContext, batch, tvShow, Episodes.WATCHED,
+                    EpisodeFlags.WATCHED, mIsSyncingUnseen);
+            showCount++;
 
-                // remove synced show to reduce next max loop count
-                shows.remove(tvShow);
+            // last chance to abort
+            if (isCancelled()) {
+                showTvdbIds.close();
+                return null;
+            }
 
-                // found matching show, get next one from cursor
-                break;
+            // add to result string
+            if (mResult.length() != 0) {
+                mResult += ", ";
             }
+            mResult += tvShow.title;
         }
 
         showTvdbIds.close();
 
+        // apply changes of all shows at once, trakt does not need to get them back
+        long journalStart = getMaxJournalSequence(mContext);
+        DBUtils.applyInSmallBatches(mContext, batch);
+        trimFlagJournal(mContext, 0, journalStart, getMaxJournalSequence(mContext));
+        Log.d(TAG, "Synced " + showCount + " of " + shows.size() + " trakt shows, changed "
+                + changedCount + " episodes in " + (SystemClock.elapsedRealtime() - startTime)
+                + " ms");
+
         if (mResult.length() != 0) {
             return SUCCESS_WORK;
         } else {
@@ -186,6 +201,35 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
     }
 
     private Integer syncToTrakt(Trakt manager) {
+        long startTime = SystemClock.elapsedRealtime();
+        mRequestCount = 0;
+        mEpisodeCount = 0;
+
+        // changes journaled from here on are uploaded next time
+        long maxSequence = getMaxJournalSequence(mContext);
+        boolean isDelta = TraktSettings.isFlagJournalComplete(mContext);
+
+        Integer result = isDelta ? uploadJournal(manager, maxSequence) : uploadAll(manager);
+        if (result == null || (result != SUCCESS_WORK && result != SUCCESS_NOWORK)) {
+            // cancelled or failed, keep the journal to upload again
+            return result;
+        }
+
+        // trakt now knows about all changes up to here
+        deleteJournal(mContext, EpisodeFlagJournal._ID + "<=" + maxSequence);
+        if (!isDelta) {
+            TraktSettings.setFlagJournalComplete(mContext, true);
+        }
+        Log.d(TAG, (isDelta ? "Uploaded changes: " : "Uploaded all flags: ") + mEpisodeCount
+                + " episodes with " + mRequestCount + " requests in "
+                + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        return result;
+    }
+
+    /**
+     * Uploads the flags of all episodes of shows for which syncing is enabled.
+     */
+    private Integer uploadAll(Trakt manager) {
         // get show ids in local database for which syncing is enabled
         Cursor showTvdbIds = mContext.getContentResolver().query(Shows.CONTENT_URI, new String[]{
                 Shows._ID
@@ -195,6 +239,7 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
             return FAILED;
         }
         if (showTvdbIds.getCount() == 0) {
+            showTvdbIds.close();
             return SUCCESS_NOWORK;
         }
 
@@ -230,18 +275,9 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
             }
 
             try {
-                // post to trakt
-                if (watchedEpisodes.size() > 0) {
-                    manager.showService().episodeSeen(new ShowService.Episodes(
-                            showTvdbId, watchedEpisodes
-                    ));
-                }
-                if (mIsSyncingUnseen && unwatchedEpisodes.size() > 0) {
-                    manager.showService().episodeUnseen(new ShowService.Episodes(
-                            showTvdbId, unwatchedEpisodes
-                    ));
-                }
+                postEpisodes(manager, showTvdbId, watchedEpisodes, unwatchedEpisodes);
             } catch (RetrofitError e) {
+                showTvdbIds.close();
                 Utils.trackExceptionAndLog(mContext, TAG, e);
                 return FAILED_API;
             }
@@ -251,6 +287,157 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
         return SUCCESS_WORK;
     }
 
+    /**
+     * Uploads only the flag changes journaled up to the given sequence number, for shows for
+     * which syncing is enabled. If an episode changed several times only its latest flag is
+     * uploaded. The journal entries of a show are removed once it was uploaded, so a failed sync
+     * resumes with the next show.
+     */
+    private Integer uploadJournal(Trakt manager, long maxSequence) {
+        Cursor journal = mContext.getContentResolver().query(EpisodeFlagJournal.CONTENT_URI,
+                FlagJournalQuery.PROJECTION, FlagJournalQuery.SELECTION, new String[]{
+                String.valueOf(maxSequence)
+        }, FlagJournalQuery.SORT_ORDER);
+        if (journal == null) {
+            return FAILED;
+        }
+
+        // latest flag of each changed episode, by show
+        SparseArray<Map<Long, Integer>> changes = new SparseArray<>();
+        while (journal.moveToNext()) {
+            int showTvdbId = journal.getInt(FlagJournalQuery.SHOW_ID);
+            Map<Long, Integer> showChanges = changes.get(showTvdbId);
+            if (showChanges == null) {
+                showChanges = new LinkedHashMap<>();
+                changes.put(showTvdbId, showChanges);
+            }
+            showChanges.put(episodeKey(journal.getInt(FlagJournalQuery.SEASON),
+                    journal.getInt(FlagJournalQuery.NUMBER)),
+                    journal.getInt(FlagJournalQuery.WATCHED));
+        }
+        journal.close();
+
+        if (changes.size() == 0) {
+            return SUCCESS_NOWORK;
+        }
+
+        for (int i = 0; i < changes.size(); i++) {
+            int showTvdbId = changes.keyAt(i);
+            List<ShowService.Episodes.Episode> watchedEpisodes = new ArrayList<>();
+            List<ShowService.Episodes.Episode> unwatchedEpisodes = new ArrayList<>();
+            for (Map.Entry<Long, Integer> change : changes.valueAt(i).entrySet()) {
+                long key = change.getKey();
+                ShowService.Episodes.Episode episode = new ShowService.Episodes.Episode(
+                        (int) (key >> 32), (int) key);
+                if (change.getValue() == EpisodeFlags.WATCHED) {
+                    watchedEpisodes.add(episode);
+                } else if (mIsSyncingUnseen) {
+                    unwatchedEpisodes.add(episode);
+                }
+            }
+
+            // last chance to abort
+            if (isCancelled()) {
+                return null;
+            }
+
+            try {
+                postEpisodes(manager, showTvdbId, watchedEpisodes, unwatchedEpisodes);
+            } catch (RetrofitError e) {
+                Utils.trackExceptionAndLog(mContext, TAG, e);
+                return FAILED_API;
+            }
+
+            deleteJournal(mContext, EpisodeFlagJournal.SHOW_ID + "=" + showTvdbId + " AND "
+                    + EpisodeFlagJournal._ID + "<=" + maxSequence);
+        }
+
+        return SUCCESS_WORK;
+    }
+
+    /**
+     * Sends the given episodes of a show to trakt as seen or unseen, with at most {@link
+     * #MAX_EPISODES_PER_REQUEST} episodes per request.
+     */
+    private void postEpisodes(Trakt manager, int showTvdbId,
+            List<ShowService.Episodes.Episode> watchedEpisodes,
+            List<ShowService.Episodes.Episode> unwatchedEpisodes) throws RetrofitError {
+        for (int start = 0; start < watchedEpisodes.size();
+                start += MAX_EPISODES_PER_REQUEST) {
+            int end = Math.min(start + MAX_EPISODES_PER_REQUEST, watchedEpisodes.size());
+            manager.showService().episodeSeen(new ShowService.Episodes(
+                    showTvdbId, watchedEpisodes.subList(start, end)
+            ));
+            mRequestCount++;
+        }
+        for (int start = 0; start < unwatchedEpisodes.size();
+                start += MAX_EPISODES_PER_REQUEST) {
+            int end = Math.min(start + MAX_EPISODES_PER_REQUEST, unwatchedEpisodes.size());
+            manager.showService().episodeUnseen(new ShowService.Episodes(
+                    showTvdbId, unwatchedEpisodes.subList(start, end)
+            ));
+            mRequestCount++;
+        }
+        mEpisodeCount += watchedEpisodes.size() + unwatchedEpisodes.size();
+    }
+
+    /**
+     * Removes all journaled flag changes and makes the next sync to trakt upload all flags again,
+     * e.g. after the trakt account was disconnected.
+     */
+    public static void clearFlagJournal(Context context) {
+        TraktSettings.setFlagJournalComplete(context, false);
+        deleteJournal(context, null);
+    }
+
+    /**
+     * Removes the flag changes of a show journaled after {@code afterSequence} up to {@code
+     * upToSequence}, because trakt already knows about them. E.g. they were sent through the
+     * {@link FlagTapeEntryQueue} or pulled from trakt.
+     *
+     * @param showTvdbId The show to remove changes of, or 0 for all shows.
+     */
+    public static void trimFlagJournal(Context context, int showTvdbId, long afterSequence,
+            long upToSequence) {
+        if (upToSequence <= afterSequence) {
+            return;
+        }
+        String selection = EpisodeFlagJournal._ID + ">" + afterSequence + " AND "
+                + EpisodeFlagJournal._ID + "<=" + upToSequence;
+        if (showTvdbId > 0) {
+            selection += " AND " + EpisodeFlagJournal.SHOW_ID + "=" + showTvdbId;
+        }
+        deleteJournal(context, selection);
+    }
+
+    /**
+     * Keeps only the latest journaled flag change of each episode, so the journal never grows
+     * larger than the library even if it is not uploaded for a long time.
+     */
+    public static void pruneFlagJournal(Context context) {
+        deleteJournal(context, EpisodeFlagJournal._ID + " NOT IN (SELECT MAX("
+                + EpisodeFlagJournal._ID + ") FROM " + Tables.EPISODE_FLAG_JOURNAL
+                + " GROUP BY " + EpisodeFlagJournal.SHOW_ID + "," + EpisodeFlagJournal.SEASON
+                + "," + EpisodeFlagJournal.NUMBER + ")");
+    }
+
+    public static long getMaxJournalSequence(Context context) {
+        Cursor journal = context.getContentResolver().query(EpisodeFlagJournal.CONTENT_URI,
+                new String[]{
+                        "MAX(" + EpisodeFlagJournal._ID + ")"
+                }, null, null, null);
+        if (journal == null) {
+            return 0;
+        }
+        long maxSequence = journal.moveToFirst() ? journal.getLong(0) : 0;
+        journal.close();
+        return maxSequence;
+    }
+
+    private static void deleteJournal(Context context, String selection) {
+        context.getContentResolver().delete(EpisodeFlagJournal.CONTENT_URI, selection, null);
+    }
+
     @Override
     protected void onCancelled() {
         Toast.makeText(mContext, "Sync cancelled", Toast.LENGTH_LONG).show();
@@ -310,48 +497,103 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
     }
 
     /**
-     * Adds database ops for episodes of seasons existing locally, with the op setting the given
-     * episode column to the given flag.
+     * Indexes the given trakt shows by their TVDb id. Shows without id are dropped.
      */
-    public static void buildSeasonBatch(Context context, ArrayList<ContentProviderOperation> batch,
-            TvShow tvShow, String episodeFlagColumn, int episodeFlag) {
-        if (tvShow.seasons == null) {
-            return;
+    public static SparseArray<TvShow> indexByTvdbId(List<TvShow> shows) {
+        SparseArray<TvShow> index = new SparseArray<>(shows.size());
+        for (TvShow tvShow : shows) {
+            if (tvShow != null && tvShow.tvdb_id != null) {
+                index.put(tvShow.tvdb_id, tvShow);
+            }
         }
+        return index;
+    }
 
-        // go through watched seasons, try to match them with local season
-        for (TvShowSeason season : tvShow.seasons) {
-            if (season == null || season.season == null ||
-                    season.episodes == null || season.episodes.numbers == null) {
-                continue;
+    /**
+     * Adds database ops setting the given episode column to the given flag for local episodes
+     * flagged on trakt. Loads all episodes of the show with a single query and only changes
+     * episodes whose flag differs, with one update per {@link #MAX_IDS_PER_UPDATE} episodes.
+     *
+     * @param isResettingOthers Also set episodes which are flagged locally, but not on trakt, to
+     *                          {@link EpisodeFlags#UNWATCHED}.
+     * @return The number of episodes the ops change.
+     */
+    public static int buildEpisodeFlagBatch(Context context,
+            ArrayList<ContentProviderOperation> batch, TvShow tvShow, String episodeFlagColumn,
+            int episodeFlag, boolean isResettingOthers) {
+        // all (season, number) pairs flagged on trakt
+        Set<Long> traktEpisodes = new HashSet<>();
+        if (tvShow.seasons != null) {
+            for (TvShowSeason season : tvShow.seasons) {
+                if (season == null || season.season == null ||
+                        season.episodes == null || season.episodes.numbers == null) {
+                    continue;
+                }
+                for (Integer episode : season.episodes.numbers) {
+                    if (episode != null) {
+                        traktEpisodes.add(episodeKey(season.season, episode));
+                    }
+                }
             }
+        }
+        if (traktEpisodes.isEmpty() && !isResettingOthers) {
+            return 0;
+        }
 
-            // get local season
-            Cursor seasonMatch = context.getContentResolver().query(
-                    Seasons.buildSeasonsOfShowUri(tvShow.tvdb_id), new String[]{
-                    Seasons._ID
-            }, Seasons.COMBINED + "=?", new String[]{
-                    season.season.toString()
-            }, null);
-            if (seasonMatch == null) {
-                continue;
+        Cursor episodes = context.getContentResolver().query(
+                Episodes.buildEpisodesOfShowUri(tvShow.tvdb_id), new String[]{
+                Episodes._ID, Episodes.SEASON, Episodes.NUMBER, episodeFlagColumn
+        }, null, null, null);
+        if (episodes == null) {
+            return 0;
+        }
+
+        List<Integer> toFlag = new ArrayList<>();
+        List<Integer> toReset = new ArrayList<>();
+        while (episodes.moveToNext()) {
+            boolean isOnTrakt = traktEpisodes.contains(
+                    episodeKey(episodes.getInt(1), episodes.getInt(2)));
+            int currentFlag = episodes.getInt(3);
+            if (isOnTrakt && currentFlag != episodeFlag) {
+                toFlag.add(episodes.getInt(0));
+            } else if (!isOnTrakt && isResettingOthers
+                    && currentFlag != EpisodeFlags.UNWATCHED) {
+                toReset.add(episodes.getInt(0));
             }
+        }
+        episodes.close();
 
-            // build db ops to flag local episodes according to given data
-            if (seasonMatch.moveToFirst()) {
-                String seasonId = seasonMatch.getString(0);
+        addUpdatesById(batch, toFlag, episodeFlagColumn, episodeFlag);
+        addUpdatesById(batch, toReset, episodeFlagColumn, EpisodeFlags.UNWATCHED);
 
-                for (Integer episode : season.episodes.numbers) {
-                    batch.add(ContentProviderOperation
-                            .newUpdate(Episodes.buildEpisodesOfSeasonUri(seasonId))
-                            .withSelection(Episodes.NUMBER + "=?", new String[]{
-                                    episode.toString()
-                            }).withValue(episodeFlagColumn, episodeFlag)
-                            .build());
+        return toFlag.size() + toReset.size();
+    }
+
+    private static long episodeKey(int season, int number) {
+        return ((long) season << 32) | (number & 0xffffffffL);
+    }
+
+    /**
+     * Adds ops setting the given column of the episodes with the given ids, using {@code _id IN
+     * (...)} selections.
+     */
+    private static void addUpdatesById(ArrayList<ContentProviderOperation> batch,
+            List<Integer> episodeIds, String column, int value) {
+        for (int start = 0; start < episodeIds.size(); start += MAX_IDS_PER_UPDATE) {
+            int end = Math.min(start + MAX_IDS_PER_UPDATE, episodeIds.size());
+            StringBuilder selection = new StringBuilder(Episodes._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
                 }
+                selection.append(episodeIds.get(i));
             }
+            selection.append(')');
 
-            seasonMatch.close();
+            batch.add(ContentProviderOperation.newUpdate(Episodes.CONTENT_URI)
+                    .withSelection(selection.toString(), null)
+                    .withValue(column, value)
+                    .build());
         }
     }
 
@@ -365,4 +607,24 @@ public class TraktSync extends AsyncTask<Void, Void, Integer> {
 
         public String SELECTION_UNWATCHED = Episodes.WATCHED + "!=" + EpisodeFlags.WATCHED;
     }
+
+    private interface FlagJournalQuery {
+
+        String[] PROJECTION = new String[]{
+                EpisodeFlagJournal.SHOW_ID, EpisodeFlagJournal.SEASON, EpisodeFlagJournal.NUMBER,
+                EpisodeFlagJournal.WATCHED
+        };
+
+        String SELECTION = EpisodeFlagJournal._ID + "<=? AND " + EpisodeFlagJournal.SHOW_ID
+                + " IN (SELECT " + Shows._ID + " FROM " + Tables.SHOWS + " WHERE "
+                + Shows.SYNCENABLED + "=1)";
+
+        // oldest first, so later changes replace earlier ones
+        String SORT_ORDER = EpisodeFlagJournal._ID + " ASC";
+
+        int SHOW_ID = 0;
+        int SEASON = 1;
+        int NUMBER = 2;
+        int WATCHED = 3;
+    }
 }
@@ -24,7 +24,6 @@ import com.google.analytics.tracking.android.MapBuilder;
 import com.battlelancer.seriesguide.Constants;
 import com.battlelancer.seriesguide.billing.BillingActivity;
 import com.battlelancer.seriesguide.provider.SeriesContract.ListItems;
-import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
 import com.battlelancer.seriesguide.service.NotificationService;
 import com.battlelancer.seriesguide.service.OnAlarmReceiver;
 import com.battlelancer.seriesguide.settings.AdvancedSettings;
@@ -45,7 +44,6 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
@@ -564,28 +562,12 @@ public class Utils {
         }
 
         public void run() {
-            final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-            final boolean isNoReleasedEpisodes = DisplaySettings.isNoReleasedEpisodes(mContext);
-            final boolean isNoSpecials = DisplaySettings.isHidingSpecials(mContext);
-
             if (mShowTvdbId > 0) {
                 // update single show
-                DBUtils.updateLatestEpisode(mContext, mShowTvdbId, isNoReleasedEpisodes, isNoSpecials,
-                        prefs);
+                DBUtils.updateLatestEpisode(mContext, mShowTvdbId);
             } else {
-                // update all shows
-                final Cursor shows = mContext.getContentResolver().query(Shows.CONTENT_URI,
-                        new String[] {
-                            Shows._ID
-                        }, null, null, null);
-                if (shows != null) {
-                    while (shows.moveToNext()) {
-                        int showTvdbId = shows.getInt(0);
-                        DBUtils.updateLatestEpisode(mContext, showTvdbId, isNoReleasedEpisodes,
-                                isNoSpecials, prefs);
-                    }
-                    shows.close();
-                }
+                // update all shows at once
+                DBUtils.updateLatestEpisodes(mContext);
             }
 
             // Show adapter gets notified by ContentProvider
@@ -638,6 +620,35 @@ public class Utils {
                 * DateUtils.MINUTE_IN_MILLIS, pi);
     }
 
+    /**
+     * Returns a hex encoded SHA-1 hash of the given data.
+     */
+    public static String toSHA1(byte[] data) {
+        return toHex(newSHA1Digest().digest(data));
+    }
+
+    /**
+     * Returns a new SHA-1 digest, e.g. to hash data while it is streamed. Use {@link
+     * #toHex(byte[])} to format the hash like {@link #toSHA1(byte[])}.
+     */
+    public static MessageDigest newSHA1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
     public static String toSHA1(Context context, String message) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
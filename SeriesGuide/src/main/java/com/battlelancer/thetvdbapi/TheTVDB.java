@@ -21,13 +21,16 @@ import com.battlelancer.seriesguide.dataliberation.JsonExportTask.ShowStatusExpo
 import com.battlelancer.seriesguide.dataliberation.model.Show;
 import com.battlelancer.seriesguide.enums.EpisodeFlags;
 import com.battlelancer.seriesguide.items.SearchResult;
+import com.battlelancer.seriesguide.provider.SeriesContract;
 import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeSearch;
 import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
 import com.battlelancer.seriesguide.settings.DisplaySettings;
 import com.battlelancer.seriesguide.ui.SeriesGuidePreferences;
+import com.battlelancer.seriesguide.util.ArtFetchQueue;
 import com.battlelancer.seriesguide.util.DBUtils;
+import com.battlelancer.seriesguide.util.HttpStats;
 import com.battlelancer.seriesguide.util.ImageProvider;
 import com.battlelancer.seriesguide.util.ServiceUtils;
 import com.battlelancer.seriesguide.util.TraktSync;
@@ -41,13 +44,12 @@ import com.uwetrottmann.seriesguide.R;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
+import android.content.ContentResolver;
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.preference.PreferenceManager;
 import android.sax.Element;
 import android.sax.EndElementListener;
@@ -58,13 +60,18 @@ import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.Xml;
 
-import java.io.FilterInputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -130,7 +137,10 @@ public class TheTVDB {
 
         final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
         batch.add(DBUtils.buildShowOp(show, context, !isShowExists));
-        getEpisodesAndUpdateDatabase(context, show, language, batch);
+        EpisodesDownload download = downloadEpisodes(show, language, false, context);
+        ShowUpdateSink sink = buildApplyingSink(context);
+        sink.write(new ShowUpdate(show.tvdbId, batch, null, null));
+        parseEpisodes(context, download, show, sink);
 
         storeTraktFlags(showTvdbId, seenShows, context, true);
         storeTraktFlags(showTvdbId, collectedShows, context, false);
@@ -144,12 +154,111 @@ public class TheTVDB {
      * Updates all show information. Adds new, updates changed and removes orphaned episodes.
      */
     public static void updateShow(int showTvdbId, Context context) throws SAXException {
+        fetchShowUpdate(showTvdbId, context, buildApplyingSink(context));
+    }
+
+    /**
+     * A part of a show update which was downloaded and parsed, but not applied, yet. A show update
+     * consists of a part with the show information, parts with chunks of episode changes and a
+     * last part which also stores the validators of the episodes download. See {@link
+     * #fetchShowUpdate(int, Context, ShowUpdateSink)} and {@link #applyShowUpdate(Context,
+     * ShowUpdate)}.
+     */
+    public static class ShowUpdate {
+
+        public final int showTvdbId;
+
+        /**
+         * The show op, {@code null} for parts with episode changes.
+         */
+        final ArrayList<ContentProviderOperation> batch;
+
+        /**
+         * A chunk of episode changes, {@code null} for the show information part.
+         */
+        final EpisodeChanges episodeChanges;
+
+        /**
+         * The validators of the episodes download, only set for the last part. Stored once it was
+         * applied.
+         */
+        final ValidatorCache.Entry validators;
+
+        ShowUpdate(int showTvdbId, ArrayList<ContentProviderOperation> batch,
+                EpisodeChanges episodeChanges, ValidatorCache.Entry validators) {
+            this.showTvdbId = showTvdbId;
+            this.batch = batch;
+            this.episodeChanges = episodeChanges;
+            this.validators = validators;
+        }
+    }
+
+    /**
+     * Receives the parts of a show update in order, as soon as they are parsed.
+     */
+    public interface ShowUpdateSink {
+
+        /**
+         * Called on the thread fetching the show. May block until earlier parts were applied, so
+         * parsing does not run ahead of writing.
+         */
+        void write(ShowUpdate part);
+    }
+
+    private static ShowUpdateSink buildApplyingSink(final Context context) {
+        return new ShowUpdateSink() {
+            @Override
+            public void write(ShowUpdate part) {
+                applyShowUpdate(context, part);
+            }
+        };
+    }
+
+    /**
+     * Downloads show information and episodes, builds the op to update the show and parses the
+     * episodes into chunks of changes. Hands each part to the given sink as soon as it is
+     * complete, so only a chunk of changes has to be kept in memory. Does not write to the
+     * database itself, so it is safe to call this for multiple shows at once.
+     *
+     * <p> Episodes are requested conditionally, if they did not change since the last update only
+     * the show information is updated. If parsing fails half way through, the parts handed over
+     * so far are still valid. As the validators are not stored, the next update parses all
+     * episodes again.
+     */
+    public static void fetchShowUpdate(int showTvdbId, Context context, ShowUpdateSink sink)
+            throws SAXException {
         String language = DisplaySettings.getContentLanguage(context);
         Show show = fetchShow(showTvdbId, language, context);
 
         final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
         batch.add(DBUtils.buildShowOp(show, context, false));
-        getEpisodesAndUpdateDatabase(context, show, language, batch);
+
+        // may be null if episodes did not change, then only show information is updated
+        EpisodesDownload download = downloadEpisodes(show, language, true, context);
+
+        sink.write(new ShowUpdate(show.tvdbId, batch, null, null));
+        if (download != null) {
+            parseEpisodes(context, download, show, sink);
+        }
+    }
+
+    /**
+     * Applies a part of a show update built by {@link #fetchShowUpdate(int, Context,
+     * ShowUpdateSink)}. Only writes to the database, episodes were already parsed.
+     */
+    public static void applyShowUpdate(Context context, ShowUpdate update) {
+        if (update.batch != null) {
+            DBUtils.applyInSmallBatches(context, update.batch);
+        }
+
+        if (update.episodeChanges != null) {
+            update.episodeChanges.apply(context);
+        }
+
+        if (update.validators != null) {
+            // only remember validators once all changes are stored
+            ValidatorCache.put(context, update.showTvdbId, update.validators);
+        }
     }
 
     /**
@@ -198,10 +307,11 @@ public class TheTVDB {
             }
         });
 
-        URLConnection connection = url.openConnection();
+        HttpURLConnection connection = ServiceUtils.getOkHttpClient(context).open(url);
         connection.setConnectTimeout(25000);
         connection.setReadTimeout(90000);
         InputStream in = connection.getInputStream();
+        HttpStats.record(connection);
         try {
             Xml.parse(in, Xml.Encoding.UTF_8, root.getContentHandler());
         } catch (Exception e) {
@@ -250,25 +360,6 @@ public class TheTVDB {
         return showTvdbIds;
     }
 
-    /**
-     * Fetches episodes for the given show from TVDb, adds database ops for them. Then adds all
-     * information to the database.
-     */
-    private static void getEpisodesAndUpdateDatabase(Context context, Show show,
-            String language, final ArrayList<ContentProviderOperation> batch)
-            throws SAXException {
-        // get ops for episodes of this show
-        ArrayList<ContentValues> importShowEpisodes = fetchEpisodes(batch, show, language,
-                context);
-        ContentValues[] newEpisodesValues = new ContentValues[importShowEpisodes.size()];
-        newEpisodesValues = importShowEpisodes.toArray(newEpisodesValues);
-
-        DBUtils.applyInSmallBatches(context, batch);
-
-        // insert all new episodes in bulk
-        context.getContentResolver().bulkInsert(Episodes.CONTENT_URI, newEpisodesValues);
-    }
-
     private static void storeTraktFlags(int showTvdbId, List<TvShow> shows, Context context,
             boolean isSeenFlags) {
         // try to find seen episodes from trakt of the given show
@@ -280,9 +371,9 @@ public class TheTVDB {
 
             final ArrayList<ContentProviderOperation> batch = new ArrayList<>();
 
-            TraktSync.buildSeasonBatch(context, batch, tvShow,
+            TraktSync.buildEpisodeFlagBatch(context, batch, tvShow,
                     isSeenFlags ? Episodes.WATCHED : Episodes.COLLECTED,
-                    EpisodeFlags.WATCHED);
+                    EpisodeFlags.WATCHED, false);
 
             // apply ops for this show
             DBUtils.applyInSmallBatches(context, batch);
@@ -436,8 +527,11 @@ public class TheTVDB {
         show.getChild("poster").setEndTextElementListener(new EndTextElementListener() {
             public void end(String body) {
                 currentShow.poster = body;
-                if (body.length() != 0) {
-                    fetchArt(body, true, context);
+                if (body.length() != 0
+                        && !ImageProvider.getInstance(context).exists(body)) {
+                    // download in the background once the show is stored, in parallel with
+                    // other posters
+                    ArtFetchQueue.getInstance(context).queue(body, true);
                 }
             }
         });
@@ -456,30 +550,131 @@ public class TheTVDB {
             }
         });
 
-        downloadAndParse(url, root.getContentHandler(), false);
+        downloadAndParse(url, root.getContentHandler(), false, context);
 
         return currentShow;
     }
 
-    private static ArrayList<ContentValues> fetchEpisodes(
-            ArrayList<ContentProviderOperation> batch, Show show, String language, Context context)
-            throws SAXException {
+    /**
+     * A downloaded episodes ZIP file along with the validators to store once it was processed.
+     * The file is a temporary file, it is deleted once it was parsed.
+     */
+    static class EpisodesDownload {
+
+        final String url;
+
+        final File file;
+
+        final ValidatorCache.Entry validators;
+
+        EpisodesDownload(String url, File file, ValidatorCache.Entry validators) {
+            this.url = url;
+            this.file = file;
+            this.validators = validators;
+        }
+    }
+
+    /**
+     * Downloads the zipped episodes XML of the given show.
+     *
+     * @param isConditional If true, uses stored validators to request the file conditionally.
+     * @return {@code null} if {@code isConditional} and the episodes did not change since they
+     * were last stored.
+     */
+    private static EpisodesDownload downloadEpisodes(Show show, String language,
+            boolean isConditional, Context context) throws SAXException {
         String url = TVDB_API_URL + context.getResources().getString(R.string.tvdb_apikey)
                 + "/series/" + show.tvdbId + "/all/"
                 + (language != null ? language + ".zip" : "en.zip");
 
-        return parseEpisodes(batch, url, show, context);
+        // episode air times depend on the show air time, so process again if it or the language
+        // changed
+        final String variant = language + "-" + show.airtime;
+        ValidatorCache.Entry cached = isConditional
+                ? ValidatorCache.get(context, show.tvdbId) : null;
+        if (cached != null && !variant.equals(cached.variant)) {
+            cached = null;
+        }
+
+        try {
+            HttpURLConnection conn = ServiceUtils.buildHttpUrlConnection(context, url);
+            // archives are big and already validated with the ValidatorCache, don't cache them
+            conn.setUseCaches(false);
+            if (cached != null) {
+                if (cached.etag != null) {
+                    conn.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+                }
+            }
+            conn.connect();
+            HttpStats.record(conn);
+
+            if (cached != null
+                    && conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                conn.disconnect();
+                ValidatorCache.onNotModified(cached.size);
+                return null;
+            }
+
+            // stream the archive to a temporary file instead of holding it in memory, hash it
+            // along the way
+            File file = File.createTempFile("episodes", ".zip", context.getCacheDir());
+            MessageDigest digest = Utils.newSHA1Digest();
+            long size;
+            boolean isDownloaded = false;
+            try {
+                InputStream input = new DigestInputStream(conn.getInputStream(), digest);
+                try {
+                    OutputStream output = new FileOutputStream(file);
+                    try {
+                        size = AndroidUtils.copy(input, output);
+                    } finally {
+                        output.close();
+                    }
+                } finally {
+                    input.close();
+                }
+                isDownloaded = true;
+            } finally {
+                if (!isDownloaded) {
+                    file.delete();
+                }
+            }
+
+            ValidatorCache.Entry validators = new ValidatorCache.Entry();
+            validators.etag = conn.getHeaderField("ETag");
+            validators.lastModified = conn.getHeaderField("Last-Modified");
+            validators.variant = variant;
+            validators.hash = Utils.toHex(digest.digest());
+            validators.size = size;
+
+            if (cached != null && validators.hash.equals(cached.hash)) {
+                // server does not support validators, but content is identical
+                file.delete();
+                ValidatorCache.put(context, show.tvdbId, validators);
+                ValidatorCache.onUnchanged();
+                return null;
+            }
+
+            ValidatorCache.onMiss();
+            return new EpisodesDownload(url, file, validators);
+        } catch (IOException e) {
+            throw new SAXException("Problem reading remote response for " + url, e);
+        }
     }
 
     /**
-     * Loads the given zipped XML and parses containing episodes to create an array of {@link
-     * ContentValues} for new episodes.<br> Adds update ops for updated episodes and delete ops for
-     * local orphaned episodes to the given {@link ContentProviderOperation} batch.
+     * Parses the given zipped XML and compares each episode with the local episodes as it is
+     * parsed. Builds inserts of new episodes, updates of changed episodes and deletes of local
+     * orphaned episodes and hands them to the given sink in chunks. Only reads from the database,
+     * the changes are applied with {@link EpisodeChanges#apply(Context)}. Deletes the downloaded
+     * file when done.
      */
-    private static ArrayList<ContentValues> parseEpisodes(
-            final ArrayList<ContentProviderOperation> batch, String url, final Show show,
-            Context context) throws SAXException {
-        final ArrayList<ContentValues> newEpisodesValues = Lists.newArrayList();
+    private static void parseEpisodes(Context context, EpisodesDownload download,
+            final Show show, ShowUpdateSink sink) throws SAXException {
+        final EpisodeChangesWriter changes = new EpisodeChangesWriter(show.tvdbId, sink);
         final long dateLastMonthEpoch = (System.currentTimeMillis()
                 - (DateUtils.DAY_IN_MILLIS * 30)) / 1000;
 
@@ -490,7 +685,6 @@ public class TheTVDB {
                 .getEpisodeMapForShow(context, show.tvdbId);
         final HashMap<Integer, Long> removableEpisodeIds = new HashMap<>(
                 localEpisodeIds); // just copy episodes list, then remove valid ones
-        final HashSet<Integer> localSeasonIds = DBUtils.getSeasonIdsOfShow(context, show.tvdbId);
         // store updated seasons to avoid duplicate ops
         final HashSet<Integer> seasonIdsToUpdate = new HashSet<>();
         final ContentValues values = new ContentValues();
@@ -510,9 +704,9 @@ public class TheTVDB {
                 // decide whether to insert or update
                 if (localEpisodeIds.containsKey(episodeId)) {
                     /*
-                     * Update uses provider ops which take a long time. Only
-                     * update if episode was edited on TVDb or is not older than
-                     * a month (ensures show air time changes get stored).
+                     * Updating still takes time. Only update if episode was
+                     * edited on TVDb or is not older than a month (ensures show
+                     * air time changes get stored).
                      */
                     Long lastEditEpoch = localEpisodeIds.get(episodeId);
                     Long lastEditEpochNew = values.getAsLong(Episodes.LAST_EDITED);
@@ -520,17 +714,17 @@ public class TheTVDB {
                             && (lastEditEpoch < lastEditEpochNew
                             || dateLastMonthEpoch < lastEditEpoch)) {
                         // complete update op for episode
-                        batch.add(DBUtils.buildEpisodeUpdateOp(values));
+                        changes.addUpdate(episodeId, values);
                     }
                 } else {
                     // episode does not exist, yet
-                    newEpisodesValues.add(new ContentValues(values));
+                    changes.addInsert(new ContentValues(values));
                 }
 
                 Integer seasonId = values.getAsInteger(Seasons.REF_SEASON_ID);
                 if (seasonId != null && !seasonIdsToUpdate.contains(seasonId)) {
-                    // add insert/update op for season
-                    batch.add(DBUtils.buildSeasonOp(values, !localSeasonIds.contains(seasonId)));
+                    // insert or update season
+                    changes.addSeason(DBUtils.buildSeasonValues(values));
                     seasonIdsToUpdate.add(values.getAsInteger(Seasons.REF_SEASON_ID));
                 }
 
@@ -631,15 +825,156 @@ public class TheTVDB {
             }
         });
 
-        downloadAndParse(url, root.getContentHandler(), true);
+        try {
+            InputStream input;
+            try {
+                input = new BufferedInputStream(new FileInputStream(download.file));
+            } catch (IOException e) {
+                throw new SAXException("Problem reading downloaded file for " + download.url, e);
+            }
+            parse(download.url, input, root.getContentHandler(), true);
+        } finally {
+            download.file.delete();
+        }
 
         // add delete ops for leftover episodeIds in our db
         for (Integer episodeId : removableEpisodeIds.keySet()) {
-            batch.add(ContentProviderOperation.newDelete(Episodes.buildEpisodeUri(episodeId))
+            changes.addOp(ContentProviderOperation.newDelete(Episodes.buildEpisodeUri(episodeId))
                     .build());
         }
 
-        return newEpisodesValues;
+        changes.finish(download.validators);
+    }
+
+    /**
+     * A chunk of episode ops, new episode values, episode updates and season values collected
+     * while parsing. Each is limited to {@link #CHUNK_SIZE} entries, so each bulk insert or update
+     * stays small and a show of any size only needs memory for a few chunks.
+     */
+    static class EpisodeChanges {
+
+        private static final int CHUNK_SIZE = DBUtils.SMALL_BATCH_SIZE;
+
+        private final ArrayList<ContentProviderOperation> mOps = Lists.newArrayList();
+
+        private final ArrayList<ContentValues> mInserts = Lists.newArrayList();
+
+        private final long[] mUpdateIds = new long[CHUNK_SIZE];
+
+        private final ArrayList<ContentValues> mUpdates = Lists.newArrayList();
+
+        private final ArrayList<ContentValues> mSeasons = Lists.newArrayList();
+
+        void addOp(ContentProviderOperation op) {
+            mOps.add(op);
+        }
+
+        void addUpdate(int episodeId, ContentValues values) {
+            ContentValues update = new ContentValues(values);
+            update.remove(Episodes._ID);
+            mUpdateIds[mUpdates.size()] = episodeId;
+            mUpdates.add(update);
+        }
+
+        void addInsert(ContentValues values) {
+            mInserts.add(values);
+        }
+
+        void addSeason(ContentValues values) {
+            mSeasons.add(values);
+        }
+
+        boolean isFull() {
+            return mOps.size() >= CHUNK_SIZE || mInserts.size() >= CHUNK_SIZE
+                    || mUpdates.size() >= CHUNK_SIZE || mSeasons.size() >= CHUNK_SIZE;
+        }
+
+        boolean isEmpty() {
+            return mOps.isEmpty() && mInserts.isEmpty() && mUpdates.isEmpty()
+                    && mSeasons.isEmpty();
+        }
+
+        /**
+         * Writes the changes to the database.
+         */
+        void apply(Context context) {
+            ContentResolver resolver = context.getContentResolver();
+            if (!mInserts.isEmpty()) {
+                resolver.bulkInsert(Episodes.CONTENT_URI,
+                        mInserts.toArray(new ContentValues[mInserts.size()]));
+            }
+
+            if (!mUpdates.isEmpty()) {
+                long[] episodeIds = new long[mUpdates.size()];
+                System.arraycopy(mUpdateIds, 0, episodeIds, 0, episodeIds.length);
+                DBUtils.updateEpisodes(context, episodeIds,
+                        mUpdates.toArray(new ContentValues[mUpdates.size()]));
+            }
+
+            if (!mSeasons.isEmpty()) {
+                resolver.bulkInsert(SeriesContract.buildUpsertUri(Seasons.CONTENT_URI),
+                        mSeasons.toArray(new ContentValues[mSeasons.size()]));
+            }
+
+            if (!mOps.isEmpty()) {
+                DBUtils.applyInSmallBatches(context, mOps);
+            }
+        }
+    }
+
+    /**
+     * Collects the episode changes of a show into {@link EpisodeChanges} chunks and hands each
+     * full chunk to a {@link ShowUpdateSink}.
+     */
+    private static class EpisodeChangesWriter {
+
+        private final int mShowTvdbId;
+
+        private final ShowUpdateSink mSink;
+
+        private EpisodeChanges mChanges = new EpisodeChanges();
+
+        EpisodeChangesWriter(int showTvdbId, ShowUpdateSink sink) {
+            mShowTvdbId = showTvdbId;
+            mSink = sink;
+        }
+
+        void addOp(ContentProviderOperation op) {
+            mChanges.addOp(op);
+            writeIfFull();
+        }
+
+        void addUpdate(int episodeId, ContentValues values) {
+            mChanges.addUpdate(episodeId, values);
+            writeIfFull();
+        }
+
+        void addInsert(ContentValues values) {
+            mChanges.addInsert(values);
+            writeIfFull();
+        }
+
+        void addSeason(ContentValues values) {
+            mChanges.addSeason(values);
+            writeIfFull();
+        }
+
+        private void writeIfFull() {
+            if (mChanges.isFull()) {
+                mSink.write(new ShowUpdate(mShowTvdbId, null, mChanges, null));
+                mChanges = new EpisodeChanges();
+            }
+        }
+
+        /**
+         * Hands the remaining changes to the sink along with the validators to store once all
+         * changes were applied.
+         */
+        void finish(ValidatorCache.Entry validators) {
+            mSink.write(new ShowUpdate(mShowTvdbId, null,
+                    mChanges.isEmpty() ? null : mChanges, validators));
+            mChanges = null;
+        }
     }
 
     /**
@@ -648,10 +983,25 @@ public class TheTVDB {
      * ContentHandler}.
      */
     private static void downloadAndParse(String urlString,
-            ContentHandler handler, boolean isZipFile) throws SAXException {
+            ContentHandler handler, boolean isZipFile, Context context) throws SAXException {
+        final InputStream input;
         try {
-            final InputStream input = AndroidUtils.downloadUrl(urlString);
+            input = ServiceUtils.downloadUrl(context, urlString);
+        } catch (IOException e) {
+            throw new SAXException("Problem reading remote response for "
+                    + urlString, e);
+        }
+        parse(urlString, input, handler, isZipFile);
+    }
 
+    /**
+     * Passes the given XML or ZIP file stream to {@link Xml#parse(InputStream,
+     * android.util.Xml.Encoding, ContentHandler)} using the given {@link ContentHandler}. Closes
+     * the stream when done.
+     */
+    private static void parse(String urlString, InputStream input, ContentHandler handler,
+            boolean isZipFile) throws SAXException {
+        try {
             if (isZipFile) {
                 // We downloaded the compressed file from TheTVDB
                 final ZipInputStream zipin = new ZipInputStream(input);
@@ -713,11 +1063,8 @@ public class TheTVDB {
                 imageUrl = TVDB_MIRROR_BANNERS + "/" + fileName;
             }
 
-            // try to download, decode and store the image
-            final Bitmap bitmap = downloadBitmap(imageUrl, context);
-            if (bitmap != null) {
-                imageProvider.storeImage(fileName, bitmap, isPoster);
-            } else {
+            // try to download and store the image
+            if (!downloadImage(imageUrl, fileName, imageProvider, context)) {
                 return false;
             }
         }
@@ -725,21 +1072,27 @@ public class TheTVDB {
         return true;
     }
 
-    private static Bitmap downloadBitmap(String url, Context context) {
+    /**
+     * Streams the image at the given URL to the image cache without decoding it.
+     */
+    private static boolean downloadImage(String url, String fileName,
+            ImageProvider imageProvider, Context context) {
         InputStream inputStream = null;
         try {
-            HttpURLConnection conn = AndroidUtils.buildHttpUrlConnection(url);
+            // reuse kept alive connections to the banner mirror
+            HttpURLConnection conn = ServiceUtils.buildHttpUrlConnection(context, url);
+            // images are stored in the image cache, don't store them twice
+            conn.setUseCaches(false);
             conn.connect();
+            HttpStats.record(conn);
             long imageSize = conn.getContentLength();
             // allow images up to 300K (although size is always around
             // 30K for posters and 100K for episode images)
             if (imageSize > 300000) {
-                return null;
+                return false;
             } else {
                 inputStream = conn.getInputStream();
-                // return BitmapFactory.decodeStream(inputStream);
-                // Bug on slow connections, fixed in future release.
-                return BitmapFactory.decodeStream(new FlushedInputStream(inputStream));
+                return imageProvider.storeImage(fileName, inputStream);
             }
         } catch (IOException e) {
             Log.w(TAG, "I/O error retrieving bitmap from " + url, e);
@@ -761,38 +1114,13 @@ public class TheTVDB {
                 }
             }
         }
-        return null;
+        return false;
     }
 
-    /*
-     * An InputStream that skips the exact number of bytes provided, unless it
-     * reaches EOF.
+    /**
+     * Rebuilds the episode search table from scratch. The database keeps it up to date on its
+     * own, so only use this to repair it.
      */
-    static class FlushedInputStream extends FilterInputStream {
-
-        public FlushedInputStream(InputStream inputStream) {
-            super(inputStream);
-        }
-
-        @Override
-        public long skip(long n) throws IOException {
-            long totalBytesSkipped = 0L;
-            while (totalBytesSkipped < n) {
-                long bytesSkipped = in.skip(n - totalBytesSkipped);
-                if (bytesSkipped == 0L) {
-                    int b = read();
-                    if (b < 0) {
-                        break; // we reached EOF
-                    } else {
-                        bytesSkipped = 1; // we read one byte
-                    }
-                }
-                totalBytesSkipped += bytesSkipped;
-            }
-            return totalBytesSkipped;
-        }
-    }
-
     public static void onRenewFTSTable(Context context) {
         Log.d(TAG, "Query to renew FTS table");
         context.getContentResolver().query(EpisodeSearch.CONTENT_URI_RENEWFTSTABLE, null, null,
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.battlelancer.thetvdbapi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists HTTP validators (ETag, Last-Modified) and a hash of the last processed episodes download
+ * per show, so unchanged TVDb downloads can be requested conditionally and skipped. Also keeps
+ * counters on how often downloads could be skipped.
+ */
+public class ValidatorCache {
+
+    private static final String TAG = "ValidatorCache";
+
+    private static final String SETTINGS_FILE = "tvdb-validators";
+
+    private static final String KEY_ETAG = "#etag";
+
+    private static final String KEY_LAST_MODIFIED = "#lastmodified";
+
+    private static final String KEY_VARIANT = "#variant";
+
+    private static final String KEY_HASH = "#hash";
+
+    private static final String KEY_SIZE = "#size";
+
+    private static final AtomicInteger sNotModifiedCount = new AtomicInteger();
+
+    private static final AtomicInteger sUnchangedCount = new AtomicInteger();
+
+    private static final AtomicInteger sMissCount = new AtomicInteger();
+
+    private static final AtomicLong sBytesSaved = new AtomicLong();
+
+    /**
+     * Validators of a previously processed response.
+     */
+    public static class Entry {
+
+        public String etag;
+
+        public String lastModified;
+
+        /**
+         * Additional local state the response was processed with. If it changes, the response
+         * has to be processed again even if it did not change remotely.
+         */
+        public String variant;
+
+        public String hash;
+
+        public long size;
+    }
+
+    /**
+     * Returns the validators stored for the episodes of the given show, or {@code null} if there
+     * are none.
+     */
+    public static Entry get(Context context, int showTvdbId) {
+        SharedPreferences prefs = getPrefs(context);
+        String key = String.valueOf(showTvdbId);
+        String hash = prefs.getString(key + KEY_HASH, null);
+        if (hash == null) {
+            return null;
+        }
+
+        Entry entry = new Entry();
+        entry.etag = prefs.getString(key + KEY_ETAG, null);
+        entry.lastModified = prefs.getString(key + KEY_LAST_MODIFIED, null);
+        entry.variant = prefs.getString(key + KEY_VARIANT, null);
+        entry.hash = hash;
+        entry.size = prefs.getLong(key + KEY_SIZE, 0);
+        return entry;
+    }
+
+    /**
+     * Stores the validators for the episodes of the given show. Only call this once the response
+     * was processed successfully.
+     */
+    public static void put(Context context, int showTvdbId, Entry entry) {
+        String key = String.valueOf(showTvdbId);
+        getPrefs(context).edit()
+                .putString(key + KEY_ETAG, entry.etag)
+                .putString(key + KEY_LAST_MODIFIED, entry.lastModified)
+                .putString(key + KEY_VARIANT, entry.variant)
+                .putString(key + KEY_HASH, entry.hash)
+                .putLong(key + KEY_SIZE, entry.size)
+                .commit();
+    }
+
+    /**
+     * Removes the validators of the given show. Use once the show was removed.
+     */
+    public static void remove(Context context, int showTvdbId) {
+        String key = String.valueOf(showTvdbId);
+        getPrefs(context).edit()
+                .remove(key + KEY_ETAG)
+                .remove(key + KEY_LAST_MODIFIED)
+                .remove(key + KEY_VARIANT)
+                .remove(key + KEY_HASH)
+                .remove(key + KEY_SIZE)
+                .commit();
+    }
+
+    /**
+     * Removes all stored validators, so the next downloads are processed in full. Use if local
+     * data was replaced, for example when importing a backup.
+     */
+    public static void clear(Context context) {
+        getPrefs(context).edit().clear().commit();
+    }
+
+    static void onNotModified(long bytesSaved) {
+        sNotModifiedCount.incrementAndGet();
+        sBytesSaved.addAndGet(bytesSaved);
+    }
+
+    static void onUnchanged() {
+        sUnchangedCount.incrementAndGet();
+    }
+
+    static void onMiss() {
+        sMissCount.incrementAndGet();
+    }
+
+    /**
+     * Number of downloads skipped because the server responded with 304 Not Modified.
+     */
+    public static int getNotModifiedCount() {
+        return sNotModifiedCount.get();
+    }
+
+    /**
+     * Number of downloads not processed because the body was identical to the last one.
+     */
+    public static int getUnchangedCount() {
+        return sUnchangedCount.get();
+    }
+
+    /**
+     * Number of downloads which had to be processed.
+     */
+    public static int getMissCount() {
+        return sMissCount.get();
+    }
+
+    /**
+     * Estimated number of bytes not downloaded thanks to 304 Not Modified responses.
+     */
+    public static long getBytesSaved() {
+        return sBytesSaved.get();
+    }
+
+    public static void logStats() {
+        Log.d(TAG, "Not modified: " + getNotModifiedCount() + ", unchanged: "
+                + getUnchangedCount() + ", processed: " + getMissCount() + ", saved ~"
+                + getBytesSaved() / 1024 + " KB");
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(SETTINGS_FILE, 0);
+    }
+
+}
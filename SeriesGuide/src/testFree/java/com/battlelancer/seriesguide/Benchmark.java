@@ -0,0 +1,56 @@
+package com.battlelancer.seriesguide;
+
+import org.robolectric.shadows.ShadowLog;
+
+import android.util.Log;
+
+/**
+ * Times the steps of a benchmark test and logs the results once it is done.
+ * <p>
+ * Benchmarks take a while, so their classes are annotated with {@code @Ignore(Benchmark.MANUAL)}
+ * to keep them out of the regular test run. To run one, drop the annotation locally and run just
+ * that class. The results show up in the test output, tagged {@value #TAG}.
+ */
+public class Benchmark {
+
+    public static final String MANUAL = "Benchmark, run manually";
+
+    private static final String TAG = "Benchmark";
+
+    private final String mName;
+
+    private final StringBuilder mResults = new StringBuilder();
+
+    private long mStartTime;
+
+    public Benchmark(String name) {
+        mName = name;
+        // Robolectric drops log output unless it has a stream to write to
+        ShadowLog.stream = System.out;
+    }
+
+    /**
+     * Adds a line about the setup, e.g. the size of the test data.
+     */
+    public void describe(String description) {
+        mResults.append('\n').append(description);
+    }
+
+    public void start() {
+        mStartTime = System.nanoTime();
+    }
+
+    /**
+     * Records the time since {@link #start()} as the duration of the given step.
+     */
+    public void stop(String step) {
+        long duration = System.nanoTime() - mStartTime;
+        mResults.append('\n').append(step).append(": ").append(duration / 1000000)
+                .append(" ms");
+    }
+
+    public void report() {
+        Log.i(TAG, mName + mResults);
+    }
+
+}
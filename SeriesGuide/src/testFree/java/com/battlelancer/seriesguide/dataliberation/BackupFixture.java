@@ -0,0 +1,215 @@
+package com.battlelancer.seriesguide.dataliberation;
+
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.EpisodesQuery;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.SeasonsQuery;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.ShowsQuery;
+import com.battlelancer.seriesguide.dataliberation.model.Episode;
+import com.battlelancer.seriesguide.dataliberation.model.List;
+import com.battlelancer.seriesguide.dataliberation.model.Season;
+import com.battlelancer.seriesguide.dataliberation.model.Show;
+import com.battlelancer.seriesguide.enums.EpisodeFlags;
+import com.battlelancer.thetvdbapi.TheTVDB.ShowStatus;
+import com.google.myjson.Gson;
+import com.google.myjson.stream.JsonReader;
+
+import android.database.MatrixCursor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * A generated library of shows, seasons and episodes in cursors like the ones queried by
+ * {@link JsonExportTask}, plus helpers to read backups of it back in.
+ */
+class BackupFixture {
+
+    private final int mShowCount;
+
+    private final int mSeasonsPerShow;
+
+    private final int mEpisodesPerSeason;
+
+    private final MatrixCursor mShows;
+
+    private final MatrixCursor mSeasons;
+
+    private final MatrixCursor mEpisodes;
+
+    /**
+     * @param isFullDump Whether to also fill the meta-data columns only exported in full dumps.
+     */
+    BackupFixture(int showCount, int seasonsPerShow, int episodesPerSeason, boolean isFullDump) {
+        mShowCount = showCount;
+        mSeasonsPerShow = seasonsPerShow;
+        mEpisodesPerSeason = episodesPerSeason;
+
+        mShows = new MatrixCursor(isFullDump ? ShowsQuery.PROJECTION_FULL
+                : ShowsQuery.PROJECTION);
+        mSeasons = new MatrixCursor(SeasonsQuery.PROJECTION);
+        mEpisodes = new MatrixCursor(isFullDump ? EpisodesQuery.PROJECTION_FULL
+                : EpisodesQuery.PROJECTION);
+
+        for (int show = 1; show <= showCount; show++) {
+            Object[] showRow = new Object[] {
+                    show, "Show " + show, show % 2, 0, 72000000L, "Monday", null, 0,
+                    "posters/" + show + "-1.jpg", "TV-14", ShowStatus.CONTINUING, 45, "Network",
+                    "tt" + show, 1, "2010-09-20"
+            };
+            if (isFullDump) {
+                showRow = concat(showRow, new Object[] {
+                        "Overview " + show, 8.5, "|Drama|", "|Actor " + show + "|",
+                        1380000000000L + show, 1370000000L + show
+                });
+            }
+            mShows.addRow(showRow);
+
+            for (int season = 1; season <= seasonsPerShow; season++) {
+                int seasonId = show * 100 + season;
+                mSeasons.addRow(new Object[] {
+                        seasonId, season, String.valueOf(show)
+                });
+                for (int episode = 1; episode <= episodesPerSeason; episode++) {
+                    int episodeId = seasonId * 100 + episode;
+                    Object[] episodeRow = new Object[] {
+                            episodeId, episode, (season - 1) * episodesPerSeason + episode,
+                            episode % 3 == 0 ? EpisodeFlags.UNWATCHED : EpisodeFlags.WATCHED,
+                            episode % 2, "Episode " + episode, 1284940800000L + episode,
+                            "tt" + seasonId + episode, 0.0, String.valueOf(show), season
+                    };
+                    if (isFullDump) {
+                        episodeRow = concat(episodeRow, new Object[] {
+                                "Overview " + episodeId, "episodes/" + episodeId + ".jpg",
+                                "|Writer|", "|Guest " + episode + "|", "|Director|", 7.5,
+                                1370000000L + episodeId
+                        });
+                    }
+                    mEpisodes.addRow(episodeRow);
+                }
+            }
+        }
+    }
+
+    int getShowCount() {
+        return mShowCount;
+    }
+
+    int getEpisodeCount() {
+        return mShowCount * mSeasonsPerShow * mEpisodesPerSeason;
+    }
+
+    /**
+     * Writes all shows in the same order {@link JsonExportTask} does, does not close the writer.
+     */
+    void write(JsonExportTask.ShowsWriter writer) throws IOException {
+        for (int show = 0; show < mShowCount; show++) {
+            mShows.moveToPosition(show);
+            writer.beginShow(mShows);
+            for (int season = 0; season < mSeasonsPerShow; season++) {
+                int seasonPosition = show * mSeasonsPerShow + season;
+                mSeasons.moveToPosition(seasonPosition);
+                writer.beginSeason(mSeasons);
+                for (int episode = 0; episode < mEpisodesPerSeason; episode++) {
+                    mEpisodes.moveToPosition(seasonPosition * mEpisodesPerSeason + episode);
+                    writer.writeEpisode(mEpisodes);
+                }
+                writer.endSeason();
+            }
+            writer.endShow();
+        }
+    }
+
+    /**
+     * Reads a JSON shows backup, like {@link JsonImportTask} does.
+     */
+    static java.util.List<Show> readJson(byte[] json) throws IOException {
+        java.util.List<Show> shows = new ArrayList<>();
+        Gson gson = new Gson();
+        JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(json), "UTF-8"));
+        reader.beginArray();
+        while (reader.hasNext()) {
+            shows.add(gson.<Show>fromJson(reader, Show.class));
+        }
+        reader.endArray();
+        reader.close();
+        return shows;
+    }
+
+    static java.util.List<Show> readBinary(byte[] binary) throws IOException {
+        final java.util.List<Show> shows = new ArrayList<>();
+        BinaryBackup.Reader reader = new BinaryBackup.Reader(new ByteArrayInputStream(binary));
+        try {
+            reader.read(new BinaryBackup.Reader.Callback() {
+                @Override
+                public void onShow(Show show) {
+                    shows.add(show);
+                }
+
+                @Override
+                public void onList(List list) {
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        return shows;
+    }
+
+    static void assertSameShows(java.util.List<Show> actual, java.util.List<Show> expected) {
+        assertThat(actual).hasSize(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Show actualShow = actual.get(i);
+            Show expectedShow = expected.get(i);
+            assertThat(actualShow.tvdbId).isEqualTo(expectedShow.tvdbId);
+            assertThat(actualShow.title).isEqualTo(expectedShow.title);
+            assertThat(actualShow.favorite).isEqualTo(expectedShow.favorite);
+            assertThat(actualShow.airtime).isEqualTo(expectedShow.airtime);
+            assertThat(actualShow.checkInGetGlueId).isEqualTo(expectedShow.checkInGetGlueId);
+            assertThat(actualShow.status).isEqualTo(expectedShow.status);
+            assertThat(actualShow.overview).isEqualTo(expectedShow.overview);
+            assertThat(actualShow.rating).isEqualTo(expectedShow.rating);
+            assertThat(actualShow.genres).isEqualTo(expectedShow.genres);
+            assertThat(actualShow.actors).isEqualTo(expectedShow.actors);
+            assertThat(actualShow.lastUpdated).isEqualTo(expectedShow.lastUpdated);
+            assertThat(actualShow.lastEdited).isEqualTo(expectedShow.lastEdited);
+            assertThat(actualShow.seasons).hasSize(expectedShow.seasons.size());
+            for (int j = 0; j < expectedShow.seasons.size(); j++) {
+                Season actualSeason = actualShow.seasons.get(j);
+                Season expectedSeason = expectedShow.seasons.get(j);
+                assertThat(actualSeason.tvdbId).isEqualTo(expectedSeason.tvdbId);
+                assertThat(actualSeason.episodes).hasSize(expectedSeason.episodes.size());
+                for (int k = 0; k < expectedSeason.episodes.size(); k++) {
+                    assertSameEpisode(actualSeason.episodes.get(k),
+                            expectedSeason.episodes.get(k));
+                }
+            }
+        }
+    }
+
+    private static void assertSameEpisode(Episode actual, Episode expected) {
+        assertThat(actual.tvdbId).isEqualTo(expected.tvdbId);
+        assertThat(actual.title).isEqualTo(expected.title);
+        assertThat(actual.watched).isEqualTo(expected.watched);
+        assertThat(actual.collected).isEqualTo(expected.collected);
+        assertThat(actual.firstAired).isEqualTo(expected.firstAired);
+        assertThat(actual.overview).isEqualTo(expected.overview);
+        assertThat(actual.image).isEqualTo(expected.image);
+        assertThat(actual.writers).isEqualTo(expected.writers);
+        assertThat(actual.gueststars).isEqualTo(expected.gueststars);
+        assertThat(actual.directors).isEqualTo(expected.directors);
+        assertThat(actual.rating).isEqualTo(expected.rating);
+        assertThat(actual.lastEdited).isEqualTo(expected.lastEdited);
+    }
+
+    private static Object[] concat(Object[] first, Object[] second) {
+        Object[] result = new Object[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+}
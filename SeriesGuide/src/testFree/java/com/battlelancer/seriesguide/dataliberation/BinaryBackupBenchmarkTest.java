@@ -0,0 +1,65 @@
+package com.battlelancer.seriesguide.dataliberation;
+
+import com.battlelancer.seriesguide.Benchmark;
+import com.battlelancer.seriesguide.dataliberation.model.Show;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares size and speed of the binary backup format against the JSON export on a library of
+ * 72,000 episodes.
+ */
+@Ignore(Benchmark.MANUAL)
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class BinaryBackupBenchmarkTest {
+
+    private static final int SHOWS = 300;
+
+    private static final int SEASONS_PER_SHOW = 10;
+
+    private static final int EPISODES_PER_SEASON = 24;
+
+    @Test
+    public void benchmarkBackup() throws IOException {
+        BackupFixture fixture = new BackupFixture(SHOWS, SEASONS_PER_SHOW, EPISODES_PER_SEASON,
+                false);
+
+        Benchmark benchmark = new Benchmark("Backup");
+        benchmark.describe(fixture.getShowCount() + " shows, " + fixture.getEpisodeCount()
+                + " episodes");
+
+        benchmark.start();
+        byte[] json = BinaryBackupTest.writeJson(fixture, false);
+        benchmark.stop("JSON write");
+
+        benchmark.start();
+        byte[] binary = BinaryBackupTest.writeBinary(fixture, true, false);
+        benchmark.stop("Binary write");
+
+        benchmark.start();
+        List<Show> jsonShows = BackupFixture.readJson(json);
+        benchmark.stop("JSON read");
+
+        benchmark.start();
+        List<Show> binaryShows = BackupFixture.readBinary(binary);
+        benchmark.stop("Binary read");
+
+        benchmark.describe("JSON: " + json.length / 1024 + " KB, binary: "
+                + binary.length / 1024 + " KB");
+        benchmark.report();
+
+        BackupFixture.assertSameShows(binaryShows, jsonShows);
+        assertThat(binary.length * 3).isLessThan(json.length);
+    }
+
+}
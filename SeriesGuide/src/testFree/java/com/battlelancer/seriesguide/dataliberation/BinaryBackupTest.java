@@ -0,0 +1,152 @@
+package com.battlelancer.seriesguide.dataliberation;
+
+import com.battlelancer.seriesguide.dataliberation.model.Episode;
+import com.battlelancer.seriesguide.dataliberation.model.List;
+import com.battlelancer.seriesguide.dataliberation.model.ListItem;
+import com.battlelancer.seriesguide.dataliberation.model.Show;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Round trips a small library through the binary backup format and compares the result to the
+ * JSON export. {@link BinaryBackupBenchmarkTest} compares size and speed on a large library.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class BinaryBackupTest {
+
+    private static final int SHOWS = 3;
+
+    private static final int SEASONS_PER_SHOW = 2;
+
+    private static final int EPISODES_PER_SEASON = 4;
+
+    @Test
+    public void test_roundTrip_matchesJson() throws IOException {
+        BackupFixture fixture = new BackupFixture(SHOWS, SEASONS_PER_SHOW, EPISODES_PER_SEASON,
+                false);
+        java.util.List<Show> jsonShows = BackupFixture.readJson(writeJson(fixture, false));
+        java.util.List<Show> binaryShows = BackupFixture.readBinary(
+                writeBinary(fixture, true, false));
+
+        assertThat(binaryShows).hasSize(SHOWS);
+        BackupFixture.assertSameShows(binaryShows, jsonShows);
+        // meta-data is only written to full dumps
+        assertThat(binaryShows.get(0).overview).isNull();
+        assertThat(binaryShows.get(0).seasons.get(0).episodes.get(0).overview).isNull();
+    }
+
+    @Test
+    public void test_roundTrip_fullDump() throws IOException {
+        BackupFixture fixture = new BackupFixture(SHOWS, SEASONS_PER_SHOW, EPISODES_PER_SEASON,
+                true);
+        java.util.List<Show> jsonShows = BackupFixture.readJson(writeJson(fixture, true));
+        java.util.List<Show> binaryShows = BackupFixture.readBinary(
+                writeBinary(fixture, false, true));
+
+        assertThat(binaryShows).hasSize(SHOWS);
+        BackupFixture.assertSameShows(binaryShows, jsonShows);
+
+        Show show = binaryShows.get(1);
+        assertThat(show.overview).isEqualTo("Overview 2");
+        assertThat(show.rating).isEqualTo(8.5);
+        assertThat(show.genres).isEqualTo("|Drama|");
+        assertThat(show.actors).isEqualTo("|Actor 2|");
+        assertThat(show.lastUpdated).isEqualTo(1380000000002L);
+        assertThat(show.lastEdited).isEqualTo(1370000002L);
+
+        Episode episode = show.seasons.get(1).episodes.get(2);
+        assertThat(episode.tvdbId).isEqualTo(20203);
+        assertThat(episode.overview).isEqualTo("Overview 20203");
+        assertThat(episode.image).isEqualTo("episodes/20203.jpg");
+        assertThat(episode.writers).isEqualTo("|Writer|");
+        assertThat(episode.gueststars).isEqualTo("|Guest 3|");
+        assertThat(episode.directors).isEqualTo("|Director|");
+        assertThat(episode.rating).isEqualTo(7.5);
+        assertThat(episode.lastEdited).isEqualTo(1370020203L);
+    }
+
+    @Test(expected = EOFException.class)
+    public void test_read_abortedBackup() throws IOException {
+        BackupFixture fixture = new BackupFixture(SHOWS, SEASONS_PER_SHOW, EPISODES_PER_SEASON,
+                false);
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryBackup.Writer writer = new BinaryBackup.Writer(binary, true, false);
+        fixture.write(writer);
+        writer.abort();
+
+        BackupFixture.readBinary(binary.toByteArray());
+    }
+
+    @Test
+    public void test_roundTrip_lists() throws IOException {
+        List list = new List();
+        list.listId = "list-1";
+        list.name = "Favorites";
+        list.items = new ArrayList<>();
+        ListItem item = new ListItem();
+        item.listItemId = "1-1-list-1";
+        item.tvdbId = 1;
+        item.type = JsonExportTask.ListItemTypesExport.SHOW;
+        list.items.add(item);
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryBackup.Writer writer = new BinaryBackup.Writer(binary, false, false);
+        writer.writeList(list);
+        writer.close();
+
+        final java.util.List<List> lists = new ArrayList<>();
+        BinaryBackup.Reader reader = new BinaryBackup.Reader(
+                new ByteArrayInputStream(binary.toByteArray()));
+        reader.read(new BinaryBackup.Reader.Callback() {
+            @Override
+            public void onShow(Show show) {
+            }
+
+            @Override
+            public void onList(List list) {
+                lists.add(list);
+            }
+        });
+        reader.close();
+
+        assertThat(lists).hasSize(1);
+        assertThat(lists.get(0).listId).isEqualTo("list-1");
+        assertThat(lists.get(0).name).isEqualTo("Favorites");
+        assertThat(lists.get(0).items).hasSize(1);
+        assertThat(lists.get(0).items.get(0).listItemId).isEqualTo("1-1-list-1");
+        assertThat(lists.get(0).items.get(0).tvdbId).isEqualTo(1);
+        assertThat(lists.get(0).items.get(0).type)
+                .isEqualTo(JsonExportTask.ListItemTypesExport.SHOW);
+    }
+
+    static byte[] writeJson(BackupFixture fixture, boolean isFullDump) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        JsonExportTask.JsonShowsWriter writer = new JsonExportTask.JsonShowsWriter(json,
+                isFullDump);
+        fixture.write(writer);
+        writer.close();
+        return json.toByteArray();
+    }
+
+    static byte[] writeBinary(BackupFixture fixture, boolean isDeflating, boolean isFullDump)
+            throws IOException {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryBackup.Writer writer = new BinaryBackup.Writer(binary, isDeflating, isFullDump);
+        fixture.write(writer);
+        writer.close();
+        return binary.toByteArray();
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.battlelancer.seriesguide.provider;
+
+import com.battlelancer.seriesguide.Benchmark;
+import com.battlelancer.seriesguide.provider.SeriesContract.EpisodeSearchColumns;
+import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares search latency of the FTS4 external content table with prefix indexes against the
+ * previous FTS3 table on a library of 50,000 episodes.
+ */
+@Ignore(Benchmark.MANUAL)
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class SearchBenchmarkTest {
+
+    private static final int SHOWS = 50;
+
+    private static final int EPISODES_PER_SHOW = 1000;
+
+    private static final int WORDS_PER_OVERVIEW = 40;
+
+    private static final int RUNS = 20;
+
+    private static final String[] WORDS = {
+            "the", "secret", "of", "love", "murder", "island", "return", "night", "family",
+            "truth", "wedding", "escape", "ghost", "pilot", "finale", "brother", "mystery",
+            "house", "war", "dream", "thief", "storm", "road", "kingdom", "lost", "city"
+    };
+
+    /**
+     * Prefixes of two and three characters, like typed into the search box.
+     */
+    private static final String[] QUERIES = {
+            "th", "se", "lo", "mu", "isl", "ret", "fam", "gho", "mys", "kin"
+    };
+
+    private static final String CREATE_SEARCH_TABLE_FTS3 = "CREATE VIRTUAL TABLE "
+            + Tables.EPISODES_SEARCH + " USING FTS3(" + EpisodeSearchColumns.TITLE + " TEXT,"
+            + EpisodeSearchColumns.OVERVIEW + " TEXT);";
+
+    private SeriesGuideDatabase mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mHelper = new SeriesGuideDatabase(Robolectric.application);
+        mDb = mHelper.getWritableDatabase();
+        insertFixture();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+    }
+
+    @Test
+    public void benchmarkSearch() {
+        Benchmark benchmark = new Benchmark("Search");
+        benchmark.describe("SQLite " + DatabaseUtils.stringForQuery(mDb,
+                "SELECT sqlite_version()", null) + ", " + SHOWS * EPISODES_PER_SHOW
+                + " episodes, " + RUNS * QUERIES.length + " searches");
+
+        // search table as created by onCreate, filled by triggers
+        int results = countResults();
+        benchmark.start();
+        runSearches();
+        benchmark.stop("Current layout");
+
+        // previous layout: FTS3 table storing its own copy, no prefix indexes
+        mDb.execSQL("DROP TABLE " + Tables.EPISODES_SEARCH);
+        mDb.execSQL(CREATE_SEARCH_TABLE_FTS3);
+        mDb.execSQL("INSERT INTO " + Tables.EPISODES_SEARCH + "(docid," + Episodes.TITLE + ","
+                + Episodes.OVERVIEW + ") SELECT " + Episodes._ID + "," + Episodes.TITLE + ","
+                + Episodes.OVERVIEW + " FROM " + Tables.EPISODES);
+        benchmark.start();
+        runSearches();
+        benchmark.stop("FTS3 layout");
+        benchmark.report();
+
+        assertThat(countResults()).isEqualTo(results);
+    }
+
+    private void insertFixture() {
+        Random random = new Random(42);
+        mDb.beginTransaction();
+        try {
+            SQLiteStatement show = mDb.compileStatement("INSERT INTO " + Tables.SHOWS + "("
+                    + Shows._ID + "," + Shows.TITLE + ") VALUES (?,?)");
+            SQLiteStatement episode = mDb.compileStatement("INSERT INTO " + Tables.EPISODES
+                    + "(" + Episodes._ID + "," + Episodes.TITLE + "," + Episodes.OVERVIEW + ","
+                    + Shows.REF_SHOW_ID + "," + Episodes.SEASON + "," + Episodes.NUMBER
+                    + ") VALUES (?,?,?,?,?,?)");
+            for (int showId = 1; showId <= SHOWS; showId++) {
+                show.bindLong(1, showId);
+                show.bindString(2, words(random, 2));
+                show.executeInsert();
+                for (int number = 1; number <= EPISODES_PER_SHOW; number++) {
+                    episode.bindLong(1, showId * EPISODES_PER_SHOW + number);
+                    episode.bindString(2, words(random, 3));
+                    episode.bindString(3, words(random, WORDS_PER_OVERVIEW));
+                    episode.bindLong(4, showId);
+                    episode.bindLong(5, number / 25 + 1);
+                    episode.bindLong(6, number % 25 + 1);
+                    episode.executeInsert();
+                }
+            }
+            show.close();
+            episode.close();
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+
+    private void runSearches() {
+        for (int run = 0; run < RUNS; run++) {
+            for (String query : QUERIES) {
+                Cursor results = SeriesGuideDatabase.search(null, new String[] {
+                        query
+                }, mDb);
+                // step through all rows, like a list scrolled to the end
+                while (results.moveToNext()) {
+                    results.getString(2);
+                }
+                results.close();
+            }
+        }
+    }
+
+    private int countResults() {
+        int count = 0;
+        for (String query : QUERIES) {
+            Cursor results = SeriesGuideDatabase.search(null, new String[] {
+                    query
+            }, mDb);
+            count += results.getCount();
+            results.close();
+        }
+        return count;
+    }
+
+}
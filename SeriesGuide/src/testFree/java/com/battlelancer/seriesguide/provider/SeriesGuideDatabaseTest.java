@@ -0,0 +1,116 @@
+package com.battlelancer.seriesguide.provider;
+
+import com.battlelancer.seriesguide.provider.SeriesContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesContract.Seasons;
+import com.battlelancer.seriesguide.provider.SeriesContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Indices;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Triggers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class SeriesGuideDatabaseTest {
+
+    private static final String EPISODES_OF_SHOW = "SELECT " + Episodes._ID + " FROM "
+            + Tables.EPISODES + " WHERE " + Shows.REF_SHOW_ID + "='1' AND "
+            + Episodes.WATCHED + "=0 AND " + Episodes.FIRSTAIREDMS + ">0";
+
+    private static final String EPISODES_OF_SEASON = "SELECT " + Episodes._ID + " FROM "
+            + Tables.EPISODES + " WHERE " + Seasons.REF_SEASON_ID + "='1' AND "
+            + Episodes.WATCHED + "=0";
+
+    private static final String SEASONS_OF_SHOW = "SELECT " + Seasons._ID + " FROM "
+            + Tables.SEASONS + " WHERE " + Shows.REF_SHOW_ID + "='1'";
+
+    private SeriesGuideDatabase mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mHelper = new SeriesGuideDatabase(Robolectric.application);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+    }
+
+    @Test
+    public void test_onCreate_usesIndices() {
+        assertQueryUsesIndex(EPISODES_OF_SHOW, Indices.EPISODES_SHOW_WATCHED_AIRED);
+        assertQueryUsesIndex(EPISODES_OF_SEASON, Indices.EPISODES_SEASON_WATCHED);
+        assertQueryUsesIndex(SEASONS_OF_SHOW, Indices.SEASONS_SHOW);
+    }
+
+    @Test
+    public void test_onUpgrade_addsIndices() {
+        // simulate a database of the previous version
+        mDb.execSQL("DROP INDEX " + Indices.EPISODES_SHOW_WATCHED_AIRED);
+        mDb.execSQL("DROP INDEX " + Indices.EPISODES_SEASON_WATCHED);
+        mDb.execSQL("DROP INDEX " + Indices.SEASONS_SHOW);
+
+        mHelper.onUpgrade(mDb, SeriesGuideDatabase.DBVER_LASTWATCHEDID,
+                SeriesGuideDatabase.DBVER_INDICES);
+
+        assertQueryUsesIndex(EPISODES_OF_SHOW, Indices.EPISODES_SHOW_WATCHED_AIRED);
+        assertQueryUsesIndex(EPISODES_OF_SEASON, Indices.EPISODES_SEASON_WATCHED);
+        assertQueryUsesIndex(SEASONS_OF_SHOW, Indices.SEASONS_SHOW);
+    }
+
+    @Test
+    public void test_onUpgrade_recreatesTriggers() {
+        // all later steps run again on a database which already has their schema
+        mHelper.onUpgrade(mDb, SeriesGuideDatabase.DBVER_LASTWATCHEDID,
+                SeriesGuideDatabase.DATABASE_VERSION);
+
+        assertThat(getTriggers()).containsOnly(
+                Triggers.EPISODES_SEARCH_INSERT,
+                Triggers.EPISODES_SEARCH_BEFORE_UPDATE,
+                Triggers.EPISODES_SEARCH_AFTER_UPDATE,
+                Triggers.EPISODES_SEARCH_DELETE,
+                Triggers.EPISODES_FLAG_JOURNAL,
+                Triggers.SHOWS_SYNC_JOURNAL);
+    }
+
+    private List<String> getTriggers() {
+        Cursor triggers = mDb.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type='trigger'", null);
+        List<String> names = new ArrayList<>();
+        while (triggers.moveToNext()) {
+            names.add(triggers.getString(0));
+        }
+        triggers.close();
+        return names;
+    }
+
+    private void assertQueryUsesIndex(String query, String index) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            // last column holds the human readable plan step
+            details.append(plan.getString(plan.getColumnCount() - 1)).append('\n');
+        }
+        plan.close();
+
+        assertThat(details.toString()).contains(index);
+    }
+
+}